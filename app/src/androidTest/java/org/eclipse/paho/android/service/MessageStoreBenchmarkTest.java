@@ -0,0 +1,148 @@
+package org.eclipse.paho.android.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the same store / discard burst against the SQLite store and the segment store on a device,
+ * so the stores are compared on the real storage. Results are written to logcat (tag MessageStoreBenchmark).
+ * Tracing is disabled: MqttService sends each trace line as a broadcast, which would dominate the numbers.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageStoreBenchmarkTest {
+    private static final String LOG_TAG = "MessageStoreBenchmark";
+    private static final String CLIENT = "client";
+    private static final String TOPIC = "device";
+    private static final int WARMUP_MESSAGES = 200;
+    private static final int MESSAGES = 1000;
+    private static final int PAYLOAD_SIZE = 256;
+
+    private Context context;
+    private File segmentDir;
+
+    private static class NoTrace implements MqttTraceHandler {
+        @Override
+        public void traceDebug(String tag, String message) {
+        }
+
+        @Override
+        public void traceError(String tag, String message) {
+        }
+
+        @Override
+        public void traceException(String tag, String message, Exception e) {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        // The SQLite store has a fixed database name; the launcher migrates and deletes it anyway
+        context.deleteDatabase(DatabaseMessageStore.DATABASE_NAME);
+        segmentDir = new File(context.getCacheDir(), "segment_benchmark");
+        deleteDir(segmentDir);
+        segmentDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        context.deleteDatabase(DatabaseMessageStore.DATABASE_NAME);
+        deleteDir(segmentDir);
+    }
+
+    @Test
+    public void databaseMessageStore() {
+        benchmark("DatabaseMessageStore", new DatabaseMessageStore(new NoTrace(), context));
+    }
+
+    @Test
+    public void segmentMessageStore() {
+        benchmark("SegmentMessageStore", new SegmentMessageStore(new NoTrace(), segmentDir));
+    }
+
+    private static void benchmark(String name, MessageStore store) {
+        run(store, WARMUP_MESSAGES);
+
+        long start = System.nanoTime();
+        long[] times = run(store, MESSAGES);
+        long total = System.nanoTime() - start;
+
+        Log.i(LOG_TAG, name + ": " + MESSAGES + " messages of " + PAYLOAD_SIZE + " bytes in " +
+                total / 1000000 + " ms; store " + percentiles(times, 0) + "; discard " + percentiles(times, 1));
+
+        // Everything has been discarded
+        assertEquals(0, count(store.getAllArrivedMessages(null)));
+        store.close();
+    }
+
+    // Stores and discards the messages; returns the times of each operation, ns
+    private static long[] run(MessageStore store, int messages) {
+        long[] times = new long[messages * 2];
+        List<String> ids = new ArrayList<>();
+        for (int n = 0; n < messages; n++) {
+            long start = System.nanoTime();
+            ids.add(store.storeArrived(CLIENT, TOPIC, message(n)));
+            times[n * 2] = System.nanoTime() - start;
+        }
+        for (int n = 0; n < messages; n++) {
+            long start = System.nanoTime();
+            store.discardArrived(CLIENT, ids.get(n));
+            times[n * 2 + 1] = System.nanoTime() - start;
+        }
+        return times;
+    }
+
+    private static MqttMessage message(int n) {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        Arrays.fill(payload, (byte) n);
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(2);
+        return message;
+    }
+
+    private static int count(Iterator<MessageStore.StoredMessage> iterator) {
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+
+    // Median and 99th percentile of every second item starting from offset, us
+    private static String percentiles(long[] times, int offset) {
+        long[] values = new long[times.length / 2];
+        for (int n = 0; n < values.length; n++) {
+            values[n] = times[n * 2 + offset];
+        }
+        Arrays.sort(values);
+        return "p50 " + values[values.length / 2] / 1000 + " us, p99 " + values[values.length * 99 / 100] / 1000 + " us";
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
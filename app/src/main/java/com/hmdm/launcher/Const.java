@@ -157,6 +157,7 @@ public class Const {
 
     public static final String HEADER_IP_ADDRESS = "X-IP-Address";
     public static final String HEADER_RESPONSE_SIGNATURE = "X-Response-Signature";
+    public static final String HEADER_ETAG = "ETag";
 
     public static final int SCREEN_ORIENTATION_PORTRAIT = 1;
     public static final int SCREEN_ORIENTATION_LANDSCAPE = 2;
@@ -0,0 +1,169 @@
+package com.hmdm.launcher.db;
+
+import android.annotation.SuppressLint;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Foreground time and launches of applications, aggregated by hours
+ */
+public class AppUsageTable {
+    private static final String CREATE_TABLE =
+            "CREATE TABLE app_usage (" +
+                    "pkg TEXT, " +
+                    "hour INTEGER, " +
+                    "foreground INTEGER, " +
+                    "launches INTEGER, " +
+                    "PRIMARY KEY (pkg, hour)" +
+                    ")";
+    // UPSERT requires SQLite 3.24 (Android 11), so a row is created first and then updated
+    private static final String INSERT_EMPTY =
+            "INSERT OR IGNORE INTO app_usage(pkg, hour, foreground, launches) " +
+            "VALUES (?, ?, 0, 0)";
+    private static final String UPDATE_ADD =
+            "UPDATE app_usage SET foreground = foreground + ?, launches = launches + ? " +
+            "WHERE pkg = ? AND hour = ?";
+    private static final String SELECT_BEFORE =
+            "SELECT * FROM app_usage WHERE hour < ? ORDER BY hour, pkg LIMIT ?";
+    // The item is deleted only if it hasn't been changed since it was selected
+    private static final String DELETE_ITEM =
+            "DELETE FROM app_usage WHERE pkg = ? AND hour = ? AND foreground = ? AND launches = ?";
+    private static final String DELETE_BEFORE =
+            "DELETE FROM app_usage WHERE hour < ?";
+
+    public static class AppUsage {
+        private String pkg;
+        // Start of the hour
+        private long hour;
+        // Foreground time, ms
+        private long foreground;
+        private int launches;
+
+        public AppUsage() {}
+
+        public AppUsage(String pkg, long hour) {
+            this.pkg = pkg;
+            this.hour = hour;
+        }
+
+        @SuppressLint("Range")
+        public AppUsage(Cursor cursor) {
+            pkg = cursor.getString(cursor.getColumnIndex("pkg"));
+            hour = cursor.getLong(cursor.getColumnIndex("hour"));
+            foreground = cursor.getLong(cursor.getColumnIndex("foreground"));
+            launches = cursor.getInt(cursor.getColumnIndex("launches"));
+        }
+
+        public String getPkg() {
+            return pkg;
+        }
+
+        public void setPkg(String pkg) {
+            this.pkg = pkg;
+        }
+
+        public long getHour() {
+            return hour;
+        }
+
+        public void setHour(long hour) {
+            this.hour = hour;
+        }
+
+        public long getForeground() {
+            return foreground;
+        }
+
+        public void setForeground(long foreground) {
+            this.foreground = foreground;
+        }
+
+        public int getLaunches() {
+            return launches;
+        }
+
+        public void setLaunches(int launches) {
+            this.launches = launches;
+        }
+    }
+
+    public static String getCreateTableSql() {
+        return CREATE_TABLE;
+    }
+
+    // Add the usage to the stored one
+    public static void add(SQLiteDatabase db, List<AppUsage> items) {
+        db.beginTransaction();
+        try {
+            for (AppUsage item : items) {
+                String hour = Long.toString(item.getHour());
+                db.execSQL(INSERT_EMPTY, new String[]{
+                        item.getPkg(),
+                        hour
+                });
+                db.execSQL(UPDATE_ADD, new String[]{
+                        Long.toString(item.getForeground()),
+                        Integer.toString(item.getLaunches()),
+                        item.getPkg(),
+                        hour
+                });
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public static List<AppUsage> selectBefore(SQLiteDatabase db, long hour, int limit) {
+        Cursor cursor = db.rawQuery(SELECT_BEFORE, new String[] {
+                Long.toString(hour),
+                Integer.toString(limit)
+        });
+        List<AppUsage> result = new LinkedList<>();
+
+        boolean isDataNotEmpty = cursor.moveToFirst();
+        while (isDataNotEmpty) {
+            result.add(new AppUsage(cursor));
+            isDataNotEmpty = cursor.moveToNext();
+        }
+        cursor.close();
+
+        return result;
+    }
+
+    // Delete the uploaded items; the items updated after the upload are kept and sent again
+    public static void delete(SQLiteDatabase db, List<AppUsage> items) {
+        db.beginTransaction();
+        try {
+            for (AppUsage item : items) {
+                db.execSQL(DELETE_ITEM, new String[]{
+                        item.getPkg(),
+                        Long.toString(item.getHour()),
+                        Long.toString(item.getForeground()),
+                        Integer.toString(item.getLaunches())
+                });
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public static void deleteBefore(SQLiteDatabase db, long hour) {
+        try {
+            db.execSQL(DELETE_BEFORE, new String[]{
+                    Long.toString(hour)
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -24,9 +24,9 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
-    // Next version should be 10 and versions must be increased by 10
+    // Next version should be 40 and versions must be increased by 10
     // to enable custom database changes
-    private static final int DATABASE_VERSION = 10;
+    private static final int DATABASE_VERSION = 40;
     private static final String DATABASE_NAME = "hmdm.launcher.sqlite";
 
     private static DatabaseHelper sInstance;
@@ -47,11 +47,14 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.beginTransaction();
         try {
             db.execSQL(LogTable.getCreateTableSql());
+            db.execSQL(LogTable.getCreateIndexTsSql());
+            db.execSQL(LogTable.getCreateIndexLevelSql());
             db.execSQL(LogConfigTable.getCreateTableSql());
             db.execSQL(InfoHistoryTable.getCreateTableSql());
             db.execSQL(RemoteFileTable.getCreateTableSql());
             db.execSQL(LocationTable.getCreateTableSql());
             db.execSQL(DownloadTable.getCreateTableSql());
+            db.execSQL(AppUsageTable.getCreateTableSql());
             db.setTransactionSuccessful();
         }
         catch ( Exception e ) {
@@ -82,6 +85,18 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             if (oldVersion < 10 && newVersion >= 10) {
                 db.execSQL(DownloadTable.getCreateTableSql());
             }
+            if (oldVersion < 20 && newVersion >= 20) {
+                db.execSQL(LogTable.getCreateIndexTsSql());
+                db.execSQL(LogTable.getCreateIndexLevelSql());
+            }
+            if (oldVersion < 30 && newVersion >= 30) {
+                db.execSQL(AppUsageTable.getCreateTableSql());
+            }
+            if (oldVersion >= 5 && oldVersion < 40 && newVersion >= 40) {
+                // Before version 5, the table is created above with these columns
+                db.execSQL(LocationTable.getAlterTableAddAccuracySql());
+                db.execSQL(LocationTable.getAlterTableAddProviderSql());
+            }
             db.setTransactionSuccessful();
         } catch ( Exception e ) {
             e.printStackTrace();
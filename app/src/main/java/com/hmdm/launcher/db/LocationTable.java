@@ -24,6 +24,8 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import java.util.LinkedList;
 import java.util.List;
 
@@ -33,23 +35,34 @@ public class LocationTable {
                     "_id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
                     "ts INTEGER, " +
                     "lat REAL, " +
-                    "lon REAL " +
+                    "lon REAL, " +
+                    "accuracy REAL, " +
+                    "provider TEXT" +
                     ")";
     private static final String SELECT_LAST_LOCATION =
-            "SELECT * FROM locations ORDER BY ts LIMIT ?";
+            "SELECT * FROM locations ORDER BY _id LIMIT ?";
+    private static final String ALTER_TABLE_ADD_ACCURACY = "ALTER TABLE locations ADD accuracy REAL";
+    private static final String ALTER_TABLE_ADD_PROVIDER = "ALTER TABLE locations ADD provider TEXT";
     private static final String INSERT_LOCATIONS =
-            "INSERT OR IGNORE INTO locations(ts, lat, lon) " +
-            "VALUES (?, ?, ?)";
+            "INSERT OR IGNORE INTO locations(ts, lat, lon, accuracy, provider) " +
+            "VALUES (?, ?, ?, ?, ?)";
     private static final String DELETE_FROM_LOCATION =
             "DELETE FROM locations WHERE _id=?";
+    private static final String DELETE_UP_TO =
+            "DELETE FROM locations WHERE _id <= ?";
     private static final String DELETE_OLD_ITEMS =
             "DELETE FROM locations WHERE ts < ?";
+    private static final String DELETE_EXCEEDING_ITEMS =
+            "DELETE FROM locations WHERE _id <= (SELECT MAX(_id) FROM locations) - ?";
 
     public static class Location {
         private long _id;
         private long ts;
         private double lat;
         private double lon;
+        // Accuracy radius in meters, null if unknown
+        private Float accuracy;
+        private String provider;
 
         public Location() {}
 
@@ -57,6 +70,8 @@ public class LocationTable {
             this.ts = location.getTime();
             this.lat = location.getLatitude();
             this.lon = location.getLongitude();
+            this.accuracy = location.hasAccuracy() ? location.getAccuracy() : null;
+            this.provider = location.getProvider();
         }
 
         @SuppressLint("Range")
@@ -65,12 +80,17 @@ public class LocationTable {
             ts = cursor.getLong(cursor.getColumnIndex("ts"));
             lat = cursor.getDouble(cursor.getColumnIndex("lat"));
             lon = cursor.getDouble(cursor.getColumnIndex("lon"));
+            int accuracyIndex = cursor.getColumnIndex("accuracy");
+            accuracy = cursor.isNull(accuracyIndex) ? null : cursor.getFloat(accuracyIndex);
+            provider = cursor.getString(cursor.getColumnIndex("provider"));
         }
 
+        @JsonIgnore
         public long getId() {
             return _id;
         }
 
+        @JsonIgnore
         public void setId(int id) {
             this._id = id;
         }
@@ -98,18 +118,44 @@ public class LocationTable {
         public void setLon(double lon) {
             this.lon = lon;
         }
+
+        public Float getAccuracy() {
+            return accuracy;
+        }
+
+        public void setAccuracy(Float accuracy) {
+            this.accuracy = accuracy;
+        }
+
+        public String getProvider() {
+            return provider;
+        }
+
+        public void setProvider(String provider) {
+            this.provider = provider;
+        }
     }
 
     public static String getCreateTableSql() {
         return CREATE_TABLE;
     }
 
+    public static String getAlterTableAddAccuracySql() {
+        return ALTER_TABLE_ADD_ACCURACY;
+    }
+
+    public static String getAlterTableAddProviderSql() {
+        return ALTER_TABLE_ADD_PROVIDER;
+    }
+
     public static void insert(SQLiteDatabase db, Location location) {
         try {
             db.execSQL(INSERT_LOCATIONS, new String[]{
                     Long.toString(location.getTs()),
                     Double.toString(location.getLat()),
-                    Double.toString(location.getLon())
+                    Double.toString(location.getLon()),
+                    location.getAccuracy() != null ? Float.toString(location.getAccuracy()) : null,
+                    location.getProvider()
             });
         } catch (SQLException e) {
             e.printStackTrace();
@@ -127,6 +173,28 @@ public class LocationTable {
         }
     }
 
+    // Keep only the given number of latest items
+    public static void deleteExceedingItems(SQLiteDatabase db, int maxItems) {
+        try {
+            db.execSQL(DELETE_EXCEEDING_ITEMS, new String[]{
+                    Integer.toString(maxItems)
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Items are selected in the order of IDs, so all items up to the last sent one can be removed
+    public static void deleteUpTo(SQLiteDatabase db, long lastId) {
+        try {
+            db.execSQL(DELETE_UP_TO, new String[]{
+                    Long.toString(lastId)
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
     public static void delete(SQLiteDatabase db, List<Location> items) {
         db.beginTransaction();
         try {
@@ -24,6 +24,7 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 
+import com.hmdm.launcher.Const;
 import com.hmdm.launcher.json.RemoteLogItem;
 
 import java.util.LinkedList;
@@ -38,19 +39,41 @@ public class LogTable {
                     "packageId TEXT, " +
                     "message TEXT" +
                     ")";
+    private static final String CREATE_INDEX_TS =
+            "CREATE INDEX IF NOT EXISTS logs_ts ON logs(ts)";
+    private static final String CREATE_INDEX_LEVEL =
+            "CREATE INDEX IF NOT EXISTS logs_level_ts ON logs(level, ts)";
     private static final String SELECT_LAST_LOGS =
-            "SELECT * FROM logs ORDER BY ts LIMIT ?";
+            "SELECT * FROM logs ORDER BY _id LIMIT ?";
     private static final String INSERT_LOG =
             "INSERT OR IGNORE INTO logs(ts, level, packageId, message) VALUES (?, ?, ?, ?)";
-    private static final String DELETE_FROM_LOGS =
-            "DELETE FROM logs WHERE _id=?";
+    private static final String DELETE_UP_TO =
+            "DELETE FROM logs WHERE _id <= ?";
     private static final String DELETE_OLD_LOGS =
             "DELETE FROM logs WHERE ts < ?";
+    // Estimated size: the message and the fixed overhead of other columns
+    private static final String SELECT_USAGE =
+            "SELECT COUNT(*), IFNULL(SUM(LENGTH(message)), 0) + COUNT(*) * 64 FROM logs";
+    private static final String WHERE_OLDEST_BY_LEVEL =
+            "_id IN (SELECT _id FROM logs WHERE level = ? ORDER BY ts LIMIT ?)";
+    // Same estimate for the items to be evicted
+    private static final String SELECT_USAGE_OLDEST_BY_LEVEL =
+            "SELECT COUNT(*), IFNULL(SUM(LENGTH(message)), 0) + COUNT(*) * 64 FROM logs WHERE " + WHERE_OLDEST_BY_LEVEL;
+    // Items are evicted in chunks to keep transactions short
+    private static final int EVICT_CHUNK = 1000;
 
     public static String getCreateTableSql() {
         return CREATE_TABLE;
     }
 
+    public static String getCreateIndexTsSql() {
+        return CREATE_INDEX_TS;
+    }
+
+    public static String getCreateIndexLevelSql() {
+        return CREATE_INDEX_LEVEL;
+    }
+
     public static void insert(SQLiteDatabase db, RemoteLogItem item) {
         try {
             db.execSQL(INSERT_LOG, new String[]{
@@ -64,10 +87,30 @@ public class LogTable {
         }
     }
 
+    // Insert several items in one transaction
+    public static void insert(SQLiteDatabase db, List<RemoteLogItem> items) {
+        db.beginTransaction();
+        try {
+            for (RemoteLogItem item : items) {
+                db.execSQL(INSERT_LOG, new String[]{
+                        Long.toString(item.getTimestamp()),
+                        Integer.toString(item.getLogLevel()),
+                        item.getPackageId(),
+                        item.getMessage()
+                });
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     public static void deleteOldItems(SQLiteDatabase db) {
         long oldTs = System.currentTimeMillis() - 7 * 24 * 60 * 60 * 1000L;
         try {
-            db.execSQL(DELETE_FROM_LOGS, new String[]{
+            db.execSQL(DELETE_OLD_LOGS, new String[]{
                     Long.toString(oldTs)
             });
         } catch (SQLException e) {
@@ -75,19 +118,73 @@ public class LogTable {
         }
     }
 
-    public static void delete(SQLiteDatabase db, List<RemoteLogItem> items) {
-        db.beginTransaction();
-        try {
-            for (RemoteLogItem item : items) {
-                db.execSQL(DELETE_FROM_LOGS, new String[]{
-                        Long.toString(item.getId())
-                });
+    // Evict items if the table exceeds the limits: less important levels first, then oldest first
+    // The usage of the whole table is calculated once, then the usage of each evicted chunk is subtracted
+    // Returns the number of removed items
+    public static int enforceLimits(SQLiteDatabase db, long maxRows, long maxBytes) {
+        int removed = 0;
+        long[] usage = getUsage(db, SELECT_USAGE, null);
+        long rows = usage[0];
+        long bytes = usage[1];
+        for (int level = Const.LOG_VERBOSE; level >= Const.LOG_ERROR; level--) {
+            while (true) {
+                if (rows <= maxRows && bytes <= maxBytes) {
+                    return removed;
+                }
+                long excessRows = Math.max(rows - maxRows, 0);
+                if (bytes > maxBytes && rows > 0) {
+                    long averageBytes = Math.max(bytes / rows, 1);
+                    excessRows = Math.max(excessRows, (bytes - maxBytes) / averageBytes + 1);
+                }
+                String[] args = new String[]{
+                        Integer.toString(level),
+                        Long.toString(Math.min(excessRows, EVICT_CHUNK))
+                };
+                int count;
+                // The chunk is measured and deleted in one transaction, so it's the same set of items
+                db.beginTransaction();
+                try {
+                    usage = getUsage(db, SELECT_USAGE_OLDEST_BY_LEVEL, args);
+                    count = db.delete("logs", WHERE_OLDEST_BY_LEVEL, args);
+                    db.setTransactionSuccessful();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    return removed;
+                } finally {
+                    db.endTransaction();
+                }
+                if (count == 0) {
+                    // No more items of this level
+                    break;
+                }
+                removed += count;
+                rows -= count;
+                bytes -= usage[1];
             }
-            db.setTransactionSuccessful();
+        }
+        return removed;
+    }
+
+    // Returns the number of rows and the estimated size in bytes
+    private static long[] getUsage(SQLiteDatabase db, String sql, String[] args) {
+        long[] result = new long[] {0, 0};
+        Cursor cursor = db.rawQuery(sql, args);
+        if (cursor.moveToFirst()) {
+            result[0] = cursor.getLong(0);
+            result[1] = cursor.getLong(1);
+        }
+        cursor.close();
+        return result;
+    }
+
+    // Items are selected in the order of IDs, so all items up to the last sent one can be removed
+    public static void deleteUpTo(SQLiteDatabase db, long lastId) {
+        try {
+            db.execSQL(DELETE_UP_TO, new String[]{
+                    Long.toString(lastId)
+            });
         } catch (SQLException e) {
             e.printStackTrace();
-        } finally {
-            db.endTransaction();
         }
     }
 
@@ -0,0 +1,126 @@
+package com.hmdm.launcher.helper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdm.launcher.json.ServerConfig;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sections of the server config changed by the update.
+ * ConfigUpdater uses it to skip the expensive update steps (files, push service, restrictions) if their
+ * sections are unchanged. Cheap idempotent steps (permissions, default launcher, proxy, actions) run on every update
+ * to enforce the policy, so they have no sections.
+ */
+public class ConfigDiff {
+    public static final int FILES = 1;
+    public static final int SETTINGS = 2;
+    public static final int RESTRICTIONS = 4;
+    public static final int PUSH = 8;
+    // Everything else: no update step depends on it, but it makes the diff non-empty,
+    // so plugins are notified about the update
+    public static final int OTHER = 16;
+
+    private static final int ALL = FILES | SETTINGS | RESTRICTIONS | PUSH | OTHER;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    // Config attributes (JSON names) which affect specific update steps
+    private static final Map<String, Integer> SECTIONS = new HashMap<>();
+    static {
+        SECTIONS.put("files", FILES);
+        // Time and network restrictions of downloads
+        SECTIONS.put("appUpdateFrom", FILES);
+        SECTIONS.put("appUpdateTo", FILES);
+        SECTIONS.put("downloadUpdates", FILES);
+        SECTIONS.put("applicationSettings", SETTINGS);
+        SECTIONS.put("restrictions", RESTRICTIONS);
+        SECTIONS.put("pushOptions", PUSH);
+        SECTIONS.put("keepaliveTime", PUSH);
+    }
+
+    private int changes;
+
+    private ConfigDiff(int changes) {
+        this.changes = changes;
+    }
+
+    // Used when there's nothing to compare with, so all update steps are required
+    public static ConfigDiff all() {
+        return new ConfigDiff(ALL);
+    }
+
+    public static ConfigDiff none() {
+        return new ConfigDiff(0);
+    }
+
+    public static ConfigDiff compare(ServerConfig oldConfig, ServerConfig newConfig) {
+        if (oldConfig == null || newConfig == null) {
+            return all();
+        }
+        JsonNode oldTree;
+        JsonNode newTree;
+        try {
+            oldTree = mapper.valueToTree(oldConfig);
+            newTree = mapper.valueToTree(newConfig);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return all();
+        }
+
+        Set<String> fields = new HashSet<>();
+        Iterator<String> it = oldTree.fieldNames();
+        while (it.hasNext()) {
+            fields.add(it.next());
+        }
+        it = newTree.fieldNames();
+        while (it.hasNext()) {
+            fields.add(it.next());
+        }
+
+        int changes = 0;
+        for (String field : fields) {
+            JsonNode oldValue = oldTree.get(field);
+            JsonNode newValue = newTree.get(field);
+            if (oldValue == null ? newValue != null : !oldValue.equals(newValue)) {
+                Integer section = SECTIONS.get(field);
+                changes |= section != null ? section : OTHER;
+            }
+        }
+        return new ConfigDiff(changes);
+    }
+
+    // Returns true if any of the given sections (bit mask) has been changed
+    public boolean isChanged(int sections) {
+        return (changes & sections) != 0;
+    }
+
+    public boolean isEmpty() {
+        return changes == 0;
+    }
+
+    @Override
+    public String toString() {
+        if (changes == ALL) {
+            return "all";
+        }
+        if (changes == 0) {
+            return "none";
+        }
+        StringBuilder sb = new StringBuilder();
+        String[] names = {"files", "settings", "restrictions", "push", "other"};
+        for (int n = 0; n < names.length; n++) {
+            if ((changes & (1 << n)) != 0) {
+                if (sb.length() > 0) {
+                    sb.append(",");
+                }
+                sb.append(names[n]);
+            }
+        }
+        return sb.toString();
+    }
+}
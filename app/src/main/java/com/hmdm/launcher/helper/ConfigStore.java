@@ -0,0 +1,375 @@
+package com.hmdm.launcher.helper;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.json.Application;
+import com.hmdm.launcher.json.RemoteFile;
+import com.hmdm.launcher.json.ServerConfig;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persistent storage of the server config.
+ * Each config version is written into its own file which is atomically renamed when complete.
+ * Small changes of the stored config (removed items, response validators) are appended to a side log
+ * of the current version, so they don't require rewriting the whole config.
+ * The config is parsed on first access and then kept in memory; files are written in a background thread.
+ */
+public class ConfigStore {
+    private static final String DIR_NAME = "config";
+    private static final String CONFIG_SUFFIX = ".json";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // When the side log grows above this limit, a new config version is written
+    private static final int MAX_LOG_RECORDS = 100;
+
+    private static final String RECORD_REMOVE_APP = "removeApp";
+    private static final String RECORD_REMOVE_APP_URL = "removeAppUrl";
+    private static final String RECORD_REMOVE_FILE = "removeFile";
+    private static final String RECORD_ETAG = "etag";
+    private static final String RECORD_HASH = "hash";
+
+    private static final ObjectReader CONFIG_READER = new ObjectMapper().readerFor(ServerConfig.class);
+    private static final ObjectWriter CONFIG_WRITER = new ObjectMapper().writerFor(ServerConfig.class);
+
+    private File dir;
+    private ExecutorService executor = Executors.newSingleThreadExecutor();
+    private boolean loaded;
+    private ServerConfig config;
+    private long version = -1;
+    private int logRecords;
+    private String etag;
+    private String hash;
+
+    public ConfigStore(Context context) {
+        dir = new File(context.getFilesDir(), DIR_NAME);
+    }
+
+    public synchronized ServerConfig getConfig() {
+        if (!loaded) {
+            load();
+        }
+        return config;
+    }
+
+    // Read the stored config again if it hasn't been found earlier
+    public synchronized void refresh() {
+        if (config == null) {
+            loaded = false;
+        }
+    }
+
+    // Store the new config version; the stored validators are reset because the config may differ
+    // from the server response
+    public synchronized void putConfig(ServerConfig config) throws IOException {
+        // Serialize in the caller thread, because the config object may be changed after this call
+        final byte[] data = CONFIG_WRITER.writeValueAsBytes(config);
+        if (!loaded) {
+            // Old versions will be removed when the new version is written
+            loaded = true;
+            version = getLatestVersion();
+        }
+        this.config = config;
+        version = Math.max(version + 1, System.currentTimeMillis());
+        logRecords = 0;
+        etag = null;
+        hash = null;
+        final long newVersion = version;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeConfig(newVersion, data);
+            }
+        });
+    }
+
+    // Wait until the pending writes are done; returns true if the current config version is stored
+    public boolean flush() {
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+        synchronized (this) {
+            return config != null && getConfigFile(version).exists();
+        }
+    }
+
+    public synchronized String getETag() {
+        getConfig();
+        return etag;
+    }
+
+    public synchronized String getHash() {
+        getConfig();
+        return hash;
+    }
+
+    public synchronized void setValidators(String etag, String hash) {
+        if (getConfig() == null) {
+            return;
+        }
+        if (etag != null) {
+            this.etag = etag;
+            appendRecord(RECORD_ETAG, etag);
+        }
+        if (hash != null) {
+            this.hash = hash;
+            appendRecord(RECORD_HASH, hash);
+        }
+    }
+
+    public synchronized void removeApplication(String pkg) {
+        update(RECORD_REMOVE_APP, pkg);
+    }
+
+    public synchronized void removeApplicationUrl(String pkg) {
+        update(RECORD_REMOVE_APP_URL, pkg);
+    }
+
+    public synchronized void removeRemoteFile(String path) {
+        update(RECORD_REMOVE_FILE, path);
+    }
+
+    private void update(String type, String value) {
+        ServerConfig config = getConfig();
+        if (config == null || value == null || !apply(config, type, value)) {
+            return;
+        }
+        if (logRecords >= MAX_LOG_RECORDS) {
+            try {
+                putConfig(config);
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        appendRecord(type, value);
+    }
+
+    // Applies the side log record to the config, returns true if the config has been changed
+    private boolean apply(ServerConfig config, String type, String value) {
+        switch (type) {
+            case RECORD_ETAG:
+                etag = value;
+                return false;
+            case RECORD_HASH:
+                hash = value;
+                return false;
+            case RECORD_REMOVE_APP:
+                List<Application> applications = new LinkedList<>();
+                for (Application application : config.getApplications()) {
+                    if (!value.equals(application.getPkg())) {
+                        applications.add(application);
+                    }
+                }
+                if (applications.size() == config.getApplications().size()) {
+                    return false;
+                }
+                // Replace the list rather than modifying it, because it may be iterated in another thread
+                config.setApplications(applications);
+                break;
+            case RECORD_REMOVE_APP_URL:
+                Application found = null;
+                for (Application application : config.getApplications()) {
+                    if (value.equals(application.getPkg())) {
+                        found = application;
+                        break;
+                    }
+                }
+                if (found == null) {
+                    return false;
+                }
+                found.setUrl(null);
+                break;
+            case RECORD_REMOVE_FILE:
+                List<RemoteFile> files = new LinkedList<>();
+                for (RemoteFile file : config.getFiles()) {
+                    if (!value.equals(file.getPath())) {
+                        files.add(file);
+                    }
+                }
+                if (files.size() == config.getFiles().size()) {
+                    return false;
+                }
+                config.setFiles(files);
+                break;
+            default:
+                return false;
+        }
+        // The stored config doesn't match the server response any more
+        etag = null;
+        hash = null;
+        return true;
+    }
+
+    private void load() {
+        loaded = true;
+        long latestVersion = getLatestVersion();
+        if (latestVersion == -1) {
+            return;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            ServerConfig config = CONFIG_READER.readValue(getConfigFile(latestVersion));
+            version = latestVersion;
+            logRecords = 0;
+            etag = null;
+            hash = null;
+            readLog(config, getLogFile(latestVersion));
+            this.config = config;
+            Log.d(Const.LOG_TAG, "ConfigStore: loaded config version " + version + " (" + logRecords +
+                    " changes) in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            Log.w(Const.LOG_TAG, "ConfigStore: failed to read config version " + latestVersion);
+            e.printStackTrace();
+        }
+    }
+
+    private void readLog(ServerConfig config, File logFile) {
+        if (!logFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int pos = line.indexOf('\t');
+                if (pos == -1) {
+                    // Incomplete record, the app has been terminated while writing it
+                    continue;
+                }
+                apply(config, line.substring(0, pos), line.substring(pos + 1));
+                logRecords++;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void appendRecord(String type, String value) {
+        logRecords++;
+        final long currentVersion = version;
+        final String record = type + "\t" + value.replace('\n', ' ') + "\n";
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileOutputStream out = null;
+                try {
+                    out = new FileOutputStream(getLogFile(currentVersion), true);
+                    out.write(record.getBytes("UTF-8"));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    // Runs in the background thread
+    private void writeConfig(long version, byte[] data) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(Const.LOG_TAG, "ConfigStore: failed to create " + dir.getAbsolutePath());
+            return;
+        }
+        File configFile = getConfigFile(version);
+        File tempFile = new File(dir, configFile.getName() + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            out.write(data);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(configFile)) {
+                throw new IOException("Failed to rename " + tempFile.getName());
+            }
+        } catch (Exception e) {
+            Log.w(Const.LOG_TAG, "ConfigStore: failed to write config version " + version);
+            e.printStackTrace();
+            tempFile.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        // The new version is complete, remove older versions and their side logs
+        String logName = getLogFile(version).getName();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().equals(configFile.getName()) && !file.getName().equals(logName)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private long getLatestVersion() {
+        long latestVersion = -1;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return latestVersion;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(CONFIG_SUFFIX)) {
+                continue;
+            }
+            try {
+                long fileVersion = Long.parseLong(name.substring(0, name.length() - CONFIG_SUFFIX.length()));
+                if (fileVersion > latestVersion) {
+                    latestVersion = fileVersion;
+                }
+            } catch (NumberFormatException e) {
+            }
+        }
+        return latestVersion;
+    }
+
+    private File getConfigFile(long version) {
+        return new File(dir, version + CONFIG_SUFFIX);
+    }
+
+    private File getLogFile(long version) {
+        return new File(dir, version + LOG_SUFFIX);
+    }
+}
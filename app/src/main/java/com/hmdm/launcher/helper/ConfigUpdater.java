@@ -39,6 +39,7 @@ import com.hmdm.launcher.task.ConfirmRebootTask;
 import com.hmdm.launcher.task.GetRemoteLogConfigTask;
 import com.hmdm.launcher.task.GetServerConfigTask;
 import com.hmdm.launcher.util.DeviceInfoProvider;
+import com.hmdm.launcher.util.DownloadScheduler;
 import com.hmdm.launcher.util.InstallUtils;
 import com.hmdm.launcher.util.PushNotificationMqttWrapper;
 import com.hmdm.launcher.util.RemoteLogger;
@@ -91,9 +92,19 @@ public class ConfigUpdater {
     private List< Application > applicationsForRun = new LinkedList();
     private Map<String, File> pendingInstallations = new HashMap<String,File>();
     private BroadcastReceiver appInstallReceiver;
+    private DownloadScheduler downloadScheduler;
     private boolean retry = true;
     private boolean loadOnly = false;
     private boolean userInteraction;
+    // Restrictions of the config which was active when the update started
+    private String previousRestrictions;
+    private boolean restrictionsReleased;
+    // Changed sections of the config, only the steps depending on them are executed
+    private ConfigDiff configDiff = ConfigDiff.all();
+    // Set once the full update flow (including the push service setup) has been done by this process
+    private static boolean fullUpdateDone;
+    // All files of the stored config have been installed by this process
+    private static boolean filesUpToDate;
 
     public List<Application> getApplicationsForRun() {
         return applicationsForRun;
@@ -138,11 +149,10 @@ public class ConfigUpdater {
         // Work around a strange bug with stale SettingsHelper instance: re-read its value
         settingsHelper = SettingsHelper.getInstance(context.getApplicationContext());
 
-        if (settingsHelper.getConfig() != null && settingsHelper.getConfig().getRestrictions() != null) {
-            Utils.releaseUserRestrictions(context, settingsHelper.getConfig().getRestrictions());
-            // Explicitly release restrictions of installing/uninstalling apps
-            Utils.releaseUserRestrictions(context, "no_install_apps,no_uninstall_apps");
-        }
+        // Restrictions are released after the config is loaded, so they are not released at all if the config is unchanged
+        // We need to remember current restrictions because the new config may not contain some of them
+        previousRestrictions = settingsHelper.getConfig() != null ? settingsHelper.getConfig().getRestrictions() : null;
+        configDiff = ConfigDiff.all();
 
         if (uiNotifier != null) {
             uiNotifier.onConfigUpdateStart();
@@ -156,8 +166,16 @@ public class ConfigUpdater {
 
                 switch ( result ) {
                     case Const.TASK_SUCCESS:
-                        RemoteLogger.log(context, Const.LOG_INFO, "Configuration updated");
-                        updateRemoteLogConfig();
+                        if (isConfigUnchanged() && fullUpdateDone && !loadOnly) {
+                            RemoteLogger.log(context, Const.LOG_DEBUG, "Configuration not changed");
+                            applyUnchangedConfig();
+                        } else {
+                            if (fullUpdateDone && !loadOnly && getConfigDiff() != null) {
+                                configDiff = getConfigDiff();
+                            }
+                            RemoteLogger.log(context, Const.LOG_INFO, "Configuration updated, changes: " + configDiff);
+                            updateRemoteLogConfig();
+                        }
                         break;
                     case Const.TASK_ERROR:
                         RemoteLogger.log(context, Const.LOG_WARN, "Failed to update config: server error");
@@ -202,8 +220,40 @@ public class ConfigUpdater {
         updateRemoteLogConfig();
     }
 
+    // Short flow for the unchanged config: the full flow has been already done for this config,
+    // so we skip the remote log config and server migration, and run the steps which must be repeated on a timer
+    // (push service check, reset / reboot / password requests, installation of scheduled or failed apps).
+    // Steps depending on the changed sections are skipped because configDiff is empty
+    private void applyUnchangedConfig() {
+        configDiff = ConfigDiff.none();
+        if (Utils.isDeviceOwner(context)) {
+            setSelfPermissions(settingsHelper.getConfig() != null ? settingsHelper.getConfig().getAppPermissions() : null);
+        }
+        try {
+            if (uiNotifier != null) {
+                uiNotifier.onConfigLoaded();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        setupPushService();
+    }
+
+    private void releaseRestrictions() {
+        if (previousRestrictions != null) {
+            Utils.releaseUserRestrictions(context, previousRestrictions);
+            // Explicitly release restrictions of installing/uninstalling apps
+            Utils.releaseUserRestrictions(context, "no_install_apps,no_uninstall_apps");
+        }
+        restrictionsReleased = true;
+    }
+
     private void updateRemoteLogConfig() {
         Log.i(Const.LOG_TAG, "updateRemoteLogConfig(): get logging configuration");
+        // If restrictions are not changed, they're released later only if there are apps to install
+        if (configDiff.isChanged(ConfigDiff.RESTRICTIONS | ConfigDiff.SETTINGS)) {
+            releaseRestrictions();
+        }
 
         GetRemoteLogConfigTask task = new GetRemoteLogConfigTask(context) {
             @Override
@@ -276,6 +326,12 @@ public class ConfigUpdater {
 
     private void setupPushService() {
         Log.d(Const.LOG_TAG, "setupPushService() called");
+        if (fullUpdateDone && !configDiff.isChanged(ConfigDiff.PUSH)) {
+            // Push service is already running with the same options
+            checkFactoryReset();
+            return;
+        }
+        fullUpdateDone = true;
         String pushOptions = null;
         int keepaliveTime = Const.DEFAULT_PUSH_ALARM_KEEPALIVE_TIME_SEC;
         if (settingsHelper != null && settingsHelper.getConfig() != null) {
@@ -463,6 +519,12 @@ public class ConfigUpdater {
     }
 
     private void checkAndUpdateFiles() {
+        if (filesUpToDate && !configDiff.isChanged(ConfigDiff.FILES)) {
+            Log.d(Const.LOG_TAG, "checkAndUpdateFiles(): files not changed");
+            installCertificates();
+            return;
+        }
+        filesUpToDate = false;
         new AsyncTask<Void, Void, Void>() {
             @Override
             protected Void doInBackground(Void... voids) {
@@ -648,6 +710,8 @@ public class ConfigUpdater {
             }.execute(remoteFile);
         } else {
             Log.i(Const.LOG_TAG, "loadAndInstallFiles(): Proceed to certificate installation");
+            // Files postponed due to network restrictions are retried by the next update
+            filesUpToDate = filesForInstall.size() == 0;
             installCertificates();
         }
     }
@@ -701,6 +765,7 @@ public class ConfigUpdater {
 
     private void installCertificates() {
         final String certPaths = settingsHelper.getAppPreference(context.getPackageName(), "certificates");
+        // Certificates are installed every time: the files may have changed or the previous attempt may have failed
         if (certPaths != null) {
             new AsyncTask<Void, Void, Void>() {
                 @Override
@@ -735,11 +800,63 @@ public class ConfigUpdater {
         InstallUtils.generateApplicationsForInstallList(context, config.getApplications(), applicationsForInstall, pendingInstallations);
 
         Log.i(Const.LOG_TAG, "checkAndUpdateApplications(): list size=" + applicationsForInstall.size());
+        if (!restrictionsReleased && applicationsForInstall.size() > 0) {
+            // Unchanged config: restrictions are only released if some apps are to be installed
+            releaseRestrictions();
+        }
 
         registerAppInstallReceiver(config != null ? config.getAppPermissions() : null);
+        scheduleAppDownloads();
         loadAndInstallApplications();
     }
 
+    // Start downloading apps in parallel; they're still installed one by one in loadAndInstallApplications()
+    private void scheduleAppDownloads() {
+        ServerConfig config = settingsHelper.getConfig();
+        if (downloadScheduler != null) {
+            downloadScheduler.shutdown();
+            downloadScheduler = null;
+        }
+        if (applicationsForInstall.size() == 0) {
+            return;
+        }
+        if (!userInteraction && (!checkAppUpdateTimeRestriction(config) || !checkUpdateNetworkRestriction(config, context))) {
+            return;
+        }
+        downloadScheduler = new DownloadScheduler(context,
+                getIntAppPreference("download_threads", DownloadScheduler.DEFAULT_MAX_DOWNLOADS),
+                getIntAppPreference("download_threads_per_host", DownloadScheduler.DEFAULT_MAX_DOWNLOADS_PER_HOST));
+        DatabaseHelper dbHelper = DatabaseHelper.instance(context);
+        for (Application application : applicationsForInstall) {
+            String url = application.getUrl();
+            if (application.isRemove() || url == null || !(url.startsWith("http://") || url.startsWith("https://"))) {
+                continue;
+            }
+            // Apps which failed earlier are checked by canDownload() and downloaded in turn
+            if (!userInteraction && DownloadTable.selectByPath(dbHelper.getReadableDatabase(),
+                    InstallUtils.getAppTempPath(context, url)) != null) {
+                continue;
+            }
+            if (InstallUtils.canInstallFromStream(context, url)) {
+                downloadScheduler.enqueueInstallSession(url, application.getPkg());
+            } else {
+                downloadScheduler.enqueue(url);
+            }
+        }
+    }
+
+    private int getIntAppPreference(String attr, int defaultValue) {
+        String value = settingsHelper.getAppPreference(context.getPackageName(), attr);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                Log.w(Const.LOG_TAG, "Wrong value of " + attr + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
     private class ApplicationStatus {
         public Application application;
         public boolean installed;
@@ -831,34 +948,56 @@ public class ConfigUpdater {
                         Download lastDownload = DownloadTable.selectByPath(dbHelper.getReadableDatabase(), tempPath);
                         if (!canDownload(lastDownload, application.getPkg())) {
                             // Do not make further attempts to download if there were earlier download or installation errors
+                            if (downloadScheduler != null) {
+                                downloadScheduler.cancel(application.getUrl());
+                            }
                             applicationStatus.installed = false;
                             return applicationStatus;
                         }
 
                         File file = null;
+                        int sessionId = -1;
+                        boolean installFromStream = InstallUtils.canInstallFromStream(context, application.getUrl());
                         try {
                             RemoteLogger.log(context, Const.LOG_DEBUG, "Downloading app: " + application.getPkg());
-                            file = InstallUtils.downloadFile(context, application.getUrl(),
-                                    new InstallUtils.DownloadProgress() {
+                            InstallUtils.DownloadProgress progressHandler = new InstallUtils.DownloadProgress() {
+                                @Override
+                                public void onDownloadProgress(final int progress, final long total, final long current) {
+                                    if (uiNotifier != null) {
+                                        uiNotifier.onDownloadProgress(progress, total, current);
+                                    }
+                                    /*
+                                    handler.post(new Runnable() {
                                         @Override
-                                        public void onDownloadProgress(final int progress, final long total, final long current) {
-                                            if (uiNotifier != null) {
-                                                uiNotifier.onDownloadProgress(progress, total, current);
-                                            }
-                                            /*
-                                            handler.post(new Runnable() {
-                                                @Override
-                                                public void run() {
-                                                    binding.progress.setMax(100);
-                                                    binding.progress.setProgress(progress);
+                                        public void run() {
+                                            binding.progress.setMax(100);
+                                            binding.progress.setProgress(progress);
 
-                                                    binding.setFileLength(total);
-                                                    binding.setDownloadedLength(current);
-                                                }
-                                            });
-                                             */
+                                            binding.setFileLength(total);
+                                            binding.setDownloadedLength(current);
                                         }
                                     });
+                                     */
+                                }
+                            };
+                            if (installFromStream) {
+                                // The APK is written directly to the installer session, no temporary file is created
+                                // An interrupted download is resumed into the same session at the next attempt
+                                if (downloadScheduler != null) {
+                                    sessionId = downloadScheduler.takeInstallSession(application.getUrl(), progressHandler);
+                                }
+                                if (sessionId == -1) {
+                                    sessionId = InstallUtils.downloadToInstallSession(context, application.getUrl(),
+                                            application.getPkg(), progressHandler);
+                                }
+                            } else {
+                                if (downloadScheduler != null) {
+                                    file = downloadScheduler.takeFile(application.getUrl(), progressHandler);
+                                }
+                                if (file == null) {
+                                    file = InstallUtils.downloadFile(context, application.getUrl(), progressHandler);
+                                }
+                            }
                         } catch (Exception e) {
                             RemoteLogger.log(context, Const.LOG_WARN, "Failed to download app " + application.getPkg() + ": " + e.getMessage());
                             e.printStackTrace();
@@ -866,13 +1005,17 @@ public class ConfigUpdater {
                             saveFailedAttempt(context, lastDownload, application.getUrl(), tempPath, false, false);
                         }
 
-                        if (file != null) {
+                        if (file != null || sessionId != -1) {
                             if (uiNotifier != null) {
                                 uiNotifier.onAppInstalling(application);
                             }
                             // onAppInstalling() method contents
                             //updateMessageForApplicationInstalling(application.getName());
-                            installApplication(file, application.getPkg(), application.getVersion());
+                            if (file != null) {
+                                installApplication(file, application.getPkg(), application.getVersion());
+                            } else {
+                                installApplicationSession(sessionId, tempPath, application.getPkg(), application.getVersion());
+                            }
                             applicationStatus.installed = true;
                             // Here we remove app from pending downloads
                             // If it fails to install, we'll remember it and do not download any more
@@ -920,14 +1063,20 @@ public class ConfigUpdater {
         } else {
             // App install receiver is unregistered after all apps are installed or a timeout happens
             //unregisterAppInstallReceiver();
+            if (downloadScheduler != null && applicationsForInstall.size() == 0) {
+                downloadScheduler.shutdown();
+                downloadScheduler = null;
+            }
             lockRestrictions();
         }
     }
 
     private void lockRestrictions() {
-        if (settingsHelper.getConfig() != null && settingsHelper.getConfig().getRestrictions() != null) {
+        if (restrictionsReleased && settingsHelper.getConfig() != null && settingsHelper.getConfig().getRestrictions() != null) {
             Utils.lockUserRestrictions(context, settingsHelper.getConfig().getRestrictions());
         }
+        restrictionsReleased = false;
+        // Packages are locked every time, because the apps could be installed or updated by this update
         String lockedPackages = settingsHelper.getAppPreference(context.getPackageName(), "locked_packages");
         Utils.lockPackages(context, lockedPackages, true);
         String unlockedPackages = settingsHelper.getAppPreference(context.getPackageName(), "unlocked_packages");
@@ -969,9 +1118,11 @@ public class ConfigUpdater {
                     uiNotifier.onConfigUpdateComplete();
                 }
 
-                // Send notification about the configuration update to all plugins
-                Intent intent = new Intent(Const.INTENT_PUSH_NOTIFICATION_PREFIX + PushMessage.TYPE_CONFIG_UPDATED);
-                context.sendBroadcast(intent);
+                if (!configDiff.isEmpty()) {
+                    // Send notification about the configuration update to all plugins
+                    Intent intent = new Intent(Const.INTENT_PUSH_NOTIFICATION_PREFIX + PushMessage.TYPE_CONFIG_UPDATED);
+                    context.sendBroadcast(intent);
+                }
 
                 RemoteLogger.log(context, Const.LOG_VERBOSE, "Update flow completed");
                 if (pendingInstallations.size() > 0) {
@@ -1227,6 +1378,35 @@ public class ConfigUpdater {
         }
     }
 
+    // This function is called from a background thread
+    // The APK has been already written to the install session, tempPath is only used to track failed attempts
+    private void installApplicationSession(int sessionId, final String tempPath, final String packageName, final String version) {
+        if (packageName.equals(context.getPackageName()) &&
+                context.getPackageManager().getLaunchIntentForPackage(Const.LAUNCHER_RESTARTER_PACKAGE_ID) != null) {
+            startLauncherRestarter();
+        }
+        String versionData = version == null || version.equals("0") ? "" : " " + version;
+        // There's no temporary file, but the receiver uses its path to save failed install attempts
+        final File file = new File(tempPath);
+        pendingInstallations.put(packageName, file);
+        RemoteLogger.log(context, Const.LOG_INFO, "Silently installing app " + packageName + versionData);
+        InstallUtils.commitInstallSession(context, sessionId, packageName, new InstallUtils.InstallErrorHandler() {
+            @Override
+            public void onInstallError(String msg) {
+                Log.i(Const.LOG_TAG, "installApplicationSession(): error installing app " + packageName);
+                pendingInstallations.remove(packageName);
+                if (uiNotifier != null) {
+                    uiNotifier.onAppInstallError(packageName);
+                }
+                if (msg != null) {
+                    RemoteLogger.log(context, Const.LOG_WARN, "Failed to install app " + packageName + ": " + msg);
+                }
+                // Save failed install attempt to prevent next downloads
+                saveFailedAttempt(context, null, "", file.getAbsolutePath(), true, false);
+            }
+        });
+    }
+
     private void uninstallApplication(final String packageName) {
         if (Utils.isDeviceOwner(context) || BuildConfig.SYSTEM_PRIVILEGES) {
             RemoteLogger.log(context, Const.LOG_INFO, "Silently uninstall app " + packageName);
@@ -1293,6 +1473,9 @@ public class ConfigUpdater {
         Log.d(Const.LOG_TAG, "App download skipped, continue updating applications");
         if (applicationsForInstall.size() > 0) {
             Application application = applicationsForInstall.remove(0);
+            if (downloadScheduler != null && application.getUrl() != null) {
+                downloadScheduler.cancel(application.getUrl());
+            }
             // Mark this app not to download any more until the config is refreshed
             // But we should not remove the app from a list because it may be
             // already installed!
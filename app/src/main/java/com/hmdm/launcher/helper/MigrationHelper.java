@@ -64,7 +64,7 @@ public class MigrationHelper {
                 }
 
                 try {
-                    response = newServer.getServerConfig(serverUrl.serverProject, deviceId, signature, Build.CPU_ABI).execute();
+                    response = newServer.getServerConfig(serverUrl.serverProject, deviceId, signature, Build.CPU_ABI, null).execute();
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
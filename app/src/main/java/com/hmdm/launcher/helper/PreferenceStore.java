@@ -0,0 +1,214 @@
+package com.hmdm.launcher.helper;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind layer over SharedPreferences.
+ * Changed values are kept in memory and written by a single background thread,
+ * so repeated changes within the flush window result in a single disk write.
+ * Values which must survive a crash are written with durable = true: they (and all pending values)
+ * are committed synchronously in the caller thread, in any thread including the main one.
+ * There are only a few such keys (enrollment, server URLs, device ID) and they change rarely.
+ * Values equal to the stored ones are not written at all.
+ */
+public class PreferenceStore {
+    private static final long FLUSH_DELAY_MS = 2000;
+
+    // Marks removed keys in the pending changes
+    private static final Object REMOVED = new Object();
+
+    private final SharedPreferences preferences;
+    // Changes not yet passed to the flusher
+    private final Map<String, Object> pending = new HashMap<>();
+    // Changes being committed by the flusher; they're not visible in preferences until the commit
+    private final Map<String, Object> flushing = new HashMap<>();
+    private boolean flushScheduled;
+    // All commits are done in this thread, so they're applied in order
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    // Serializes the commits of the flusher and the durable puts, so they're applied in order
+    private final Object commitLock = new Object();
+
+    private final Callable<Boolean> flushTask = new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+            synchronized (PreferenceStore.this) {
+                flushScheduled = false;
+            }
+            return commitPending();
+        }
+    };
+
+    public PreferenceStore(SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    public synchronized boolean contains(String key) {
+        Object value = getChanged(key);
+        if (value != null) {
+            return value != REMOVED;
+        }
+        return preferences.contains(key);
+    }
+
+    public synchronized String getString(String key, String defValue) {
+        Object value = getChanged(key);
+        if (value != null) {
+            return value != REMOVED ? (String) value : defValue;
+        }
+        return preferences.getString(key, defValue);
+    }
+
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        Object value = getChanged(key);
+        if (value != null) {
+            return value != REMOVED ? (Boolean) value : defValue;
+        }
+        return preferences.getBoolean(key, defValue);
+    }
+
+    public synchronized int getInt(String key, int defValue) {
+        Object value = getChanged(key);
+        if (value != null) {
+            return value != REMOVED ? (Integer) value : defValue;
+        }
+        return preferences.getInt(key, defValue);
+    }
+
+    public synchronized long getLong(String key, long defValue) {
+        Object value = getChanged(key);
+        if (value != null) {
+            return value != REMOVED ? (Long) value : defValue;
+        }
+        return preferences.getLong(key, defValue);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+        Object value = getChanged(key);
+        if (value != null) {
+            return value != REMOVED ? (Set<String>) value : defValues;
+        }
+        return preferences.getStringSet(key, defValues);
+    }
+
+    // Supported values: String, Boolean, Integer, Long, Set<String>; null removes the key
+    // Returns the commit result for durable values and true otherwise
+    public boolean put(String key, Object value, boolean durable) {
+        synchronized (this) {
+            if (value == null) {
+                value = REMOVED;
+            }
+            if (value.equals(getCurrent(key, value))) {
+                return true;
+            }
+            pending.put(key, value);
+            if (!durable) {
+                if (!flushScheduled) {
+                    flushScheduled = true;
+                    executor.schedule(flushTask, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+                }
+                return true;
+            }
+        }
+        return commitPending();
+    }
+
+    public boolean remove(String key, boolean durable) {
+        return put(key, null, durable);
+    }
+
+    // Writes all pending changes and waits for completion
+    public boolean flush() {
+        Future<Boolean> result = executor.submit(flushTask);
+        try {
+            return result.get();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Runs in the flusher thread, or in the caller thread for durable values
+    private boolean commitPending() {
+        synchronized (commitLock) {
+            SharedPreferences.Editor editor = preferences.edit();
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return true;
+                }
+                for (Map.Entry<String, Object> entry : pending.entrySet()) {
+                    putValue(editor, entry.getKey(), entry.getValue());
+                }
+                flushing.putAll(pending);
+                pending.clear();
+            }
+            boolean result = editor.commit();
+            synchronized (this) {
+                flushing.clear();
+            }
+            return result;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void putValue(SharedPreferences.Editor editor, String key, Object value) {
+        if (value == REMOVED) {
+            editor.remove(key);
+        } else if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Set) {
+            editor.putStringSet(key, (Set<String>) value);
+        }
+    }
+
+    // Returns the value changed in memory but not yet committed, or null if there's no such value
+    private Object getChanged(String key) {
+        Object value = pending.get(key);
+        if (value == null) {
+            value = flushing.get(key);
+        }
+        return value;
+    }
+
+    // Returns the current value of the key, reading the stored value with the type of the sample value
+    private Object getCurrent(String key, Object sample) {
+        Object value = getChanged(key);
+        if (value != null) {
+            return value;
+        }
+        if (!preferences.contains(key)) {
+            return REMOVED;
+        }
+        try {
+            if (sample instanceof String) {
+                return preferences.getString(key, null);
+            } else if (sample instanceof Boolean) {
+                return preferences.getBoolean(key, false);
+            } else if (sample instanceof Integer) {
+                return preferences.getInt(key, 0);
+            } else if (sample instanceof Long) {
+                return preferences.getLong(key, 0);
+            } else if (sample instanceof Set) {
+                return preferences.getStringSet(key, null);
+            }
+        } catch (ClassCastException e) {
+            // Stored with another type, so it differs
+        }
+        return null;
+    }
+}
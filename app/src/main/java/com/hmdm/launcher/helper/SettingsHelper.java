@@ -20,7 +20,6 @@
 package com.hmdm.launcher.helper;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdm.launcher.BuildConfig;
@@ -32,7 +31,6 @@ import com.hmdm.launcher.json.ServerConfig;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -48,6 +46,7 @@ public class SettingsHelper {
     private static final String PREF_KEY_GROUP = ".helpers.GROUP";
     private static final String PREF_KEY_DEVICE_ID_USE = ".helpers.DEVICE_ID_USE";
     private static final String PREF_KEY_CERT_URLS = ".helpers.CERT_URLS";
+    // Legacy storage of the config, now it is only imported into ConfigStore
     private static final String PREF_KEY_CONFIG = ".helpers.CONFIG";
     private static final String PREF_KEY_IP_ADDRESS = ".helpers.IP_ADDRESS";
     private static final String PREF_QR_PROVISIONING = ".helpers.QR_PROVISIONING";
@@ -64,7 +63,27 @@ public class SettingsHelper {
     // This prefix is for the compatibility with a legacy package name
     private static String PACKAGE_NAME;
 
-    private SharedPreferences sharedPreferences;
+    // Settings which must survive a crash (enrollment and server connection) are committed immediately,
+    // other settings are written in background
+    private static final Set<String> DURABLE_KEYS = new HashSet<>(Arrays.asList(
+            PREF_KEY_BASE_URL,
+            PREF_KEY_SECONDARY_BASE_URL,
+            PREF_KEY_SERVER_PROJECT,
+            PREF_KEY_DEVICE_ID,
+            PREF_KEY_CUSTOMER,
+            PREF_KEY_CONFIG_NAME,
+            PREF_KEY_GROUP,
+            PREF_KEY_DEVICE_ID_USE,
+            PREF_KEY_CERT_URLS,
+            PREF_KEY_CONFIG,
+            PREF_QR_PROVISIONING,
+            PREF_KEY_RESTORE_LAUNCHER,
+            PREF_KEY_INTEGRATED_PROVISIONING_FLOW
+    ));
+
+    private PreferenceStore preferenceStore;
+    private ConfigStore configStore;
+    private volatile boolean configLoaded;
     private ServerConfig config;
     private ServerConfig oldConfig;
     private Map<String,ApplicationSetting> appSettings = new HashMap<>();
@@ -82,229 +101,239 @@ public class SettingsHelper {
 
     public SettingsHelper(Context context) {
         PACKAGE_NAME = context.getPackageName();
-        sharedPreferences = context.getSharedPreferences(PACKAGE_NAME + PREFERENCES_ID, Context.MODE_PRIVATE );
-        initConfig();
+        preferenceStore = new PreferenceStore(context.getSharedPreferences(PACKAGE_NAME + PREFERENCES_ID, Context.MODE_PRIVATE ));
+        configStore = new ConfigStore(context);
+        // The config is read on first use
     }
 
     public void refreshConfig(Context context) {
-        if (config == null) {
-            sharedPreferences = context.getSharedPreferences(PACKAGE_NAME + PREFERENCES_ID, Context.MODE_PRIVATE );
+        if (getConfig() == null) {
+            // SharedPreferences are cached per process, so the preference store is kept: it already has all changes
+            configStore.refresh();
+            configLoaded = false;
+        }
+    }
+
+    private void ensureConfigLoaded() {
+        if (!configLoaded) {
             initConfig();
         }
     }
 
-    private void initConfig() {
-        try {
-            if ( sharedPreferences.contains(PACKAGE_NAME + PREF_KEY_CONFIG) ) {
-                ObjectMapper mapper = new ObjectMapper();
-                config = mapper.readValue(
-                        sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_CONFIG, "" ),
+    private synchronized void initConfig() {
+        if (configLoaded) {
+            return;
+        }
+        ServerConfig config = configStore.getConfig();
+        if (config == null && preferenceStore.contains(PACKAGE_NAME + PREF_KEY_CONFIG)) {
+            // Move the config stored by older versions into the config store
+            try {
+                config = new ObjectMapper().readValue(
+                        preferenceStore.getString(PACKAGE_NAME + PREF_KEY_CONFIG, "" ),
                         ServerConfig.class );
-                updateAppSettingsMap(config);
-                updateAllowedClassesSet(config);
+                configStore.putConfig(config);
+                // The old copy is removed only when the new one is on disk
+                if (configStore.flush()) {
+                    put(PREF_KEY_CONFIG, null);
+                }
+            } catch ( Exception e ) {
+                e.printStackTrace();
             }
-        } catch ( Exception e ) {
-            e.printStackTrace();
         }
+        if (config != null) {
+            updateAppSettingsMap(config);
+            updateAllowedClassesSet(config);
+        }
+        this.config = config;
+        configLoaded = true;
+    }
+
+    // Returns the commit result for durable settings and true for settings written in background
+    private boolean put(String key, Object value) {
+        return preferenceStore.put(PACKAGE_NAME + key, value, DURABLE_KEYS.contains(key));
     }
 
     // Warning: this may return false if the launcher has been updated from older version
     public boolean isQrProvisioning() {
-        return sharedPreferences.getBoolean(PACKAGE_NAME + PREF_QR_PROVISIONING, false);
+        return preferenceStore.getBoolean(PACKAGE_NAME + PREF_QR_PROVISIONING, false);
     }
 
     public boolean setQrProvisioning(boolean value) {
-        return sharedPreferences.edit().putBoolean(PACKAGE_NAME + PREF_QR_PROVISIONING, value).commit();
+        return put(PREF_QR_PROVISIONING, value);
     }
 
     public boolean isIntegratedProvisioningFlow() {
-        return sharedPreferences.getBoolean(PACKAGE_NAME + PREF_KEY_INTEGRATED_PROVISIONING_FLOW, false);
+        return preferenceStore.getBoolean(PACKAGE_NAME + PREF_KEY_INTEGRATED_PROVISIONING_FLOW, false);
     }
 
     public boolean setIntegratedProvisioningFlow(boolean value) {
-        return sharedPreferences.edit().putBoolean(PACKAGE_NAME + PREF_KEY_INTEGRATED_PROVISIONING_FLOW, value).commit();
+        return put(PREF_KEY_INTEGRATED_PROVISIONING_FLOW, value);
     }
 
     public boolean isBaseUrlSet() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_BASE_URL, null ) != null;
+        return preferenceStore.getString(PACKAGE_NAME + PREF_KEY_BASE_URL, null ) != null;
     }
 
     public String getBaseUrl() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_BASE_URL, BuildConfig.BASE_URL );
+        return preferenceStore.getString(PACKAGE_NAME + PREF_KEY_BASE_URL, BuildConfig.BASE_URL );
     }
 
     public boolean setBaseUrl( String baseUrl ) {
-        return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_BASE_URL, baseUrl ).commit();
+        return put(PREF_KEY_BASE_URL, baseUrl);
     }
 
     public String getSecondaryBaseUrl() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_SECONDARY_BASE_URL, BuildConfig.SECONDARY_BASE_URL );
+        return preferenceStore.getString(PACKAGE_NAME + PREF_KEY_SECONDARY_BASE_URL, BuildConfig.SECONDARY_BASE_URL );
     }
 
     public boolean setSecondaryBaseUrl( String secondaryBaseUrl ) {
-        return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_SECONDARY_BASE_URL, secondaryBaseUrl ).commit();
+        return put(PREF_KEY_SECONDARY_BASE_URL, secondaryBaseUrl);
     }
 
     public String getServerProject() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_SERVER_PROJECT, BuildConfig.SERVER_PROJECT );
+        return preferenceStore.getString(PACKAGE_NAME + PREF_KEY_SERVER_PROJECT, BuildConfig.SERVER_PROJECT );
     }
 
     public boolean setServerProject( String serverProject ) {
-        return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_SERVER_PROJECT, serverProject ).commit();
+        return put(PREF_KEY_SERVER_PROJECT, serverProject);
     }
 
     public String getCertUrls() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_CERT_URLS, null );
+        return preferenceStore.getString(PACKAGE_NAME + PREF_KEY_CERT_URLS, null );
     }
 
     public boolean setCertUrls( String certUrls ) {
-        return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_CERT_URLS, certUrls ).commit();
+        return put(PREF_KEY_CERT_URLS, certUrls);
     }
 
     public String getDeviceId() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_DEVICE_ID,"" );
+        return preferenceStore.getString(PACKAGE_NAME + PREF_KEY_DEVICE_ID,"" );
     }
 
     public boolean setDeviceId( String deviceId ) {
-        return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_DEVICE_ID, deviceId ).commit();
+        return put(PREF_KEY_DEVICE_ID, deviceId);
     }
 
     public String getExternalIp() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_IP_ADDRESS, "" );
+        return preferenceStore.getString(PACKAGE_NAME + PREF_KEY_IP_ADDRESS, "" );
     }
 
     public boolean setExternalIp( String externalIp ) {
         if (externalIp == null) {
             externalIp = "";
         }
-        return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_IP_ADDRESS, externalIp ).commit();
+        return put(PREF_KEY_IP_ADDRESS, externalIp);
     }
 
     public boolean isMainActivityRunning() {
-        return sharedPreferences.getBoolean(PACKAGE_NAME + PREF_KEY_ACTIVITY_RUNNING, false );
+        return preferenceStore.getBoolean(PACKAGE_NAME + PREF_KEY_ACTIVITY_RUNNING, false );
     }
 
     public boolean setMainActivityRunning(boolean running) {
-        return sharedPreferences.edit().putBoolean(PACKAGE_NAME + PREF_KEY_ACTIVITY_RUNNING, running ).commit();
+        return put(PREF_KEY_ACTIVITY_RUNNING, running);
     }
 
     public boolean isRestoreLauncher() {
-        return sharedPreferences.getBoolean(PACKAGE_NAME + PREF_KEY_RESTORE_LAUNCHER, false);
+        return preferenceStore.getBoolean(PACKAGE_NAME + PREF_KEY_RESTORE_LAUNCHER, false);
     }
 
     public boolean setRestoreLauncher(boolean restore) {
-        return sharedPreferences.edit().putBoolean(PACKAGE_NAME + PREF_KEY_RESTORE_LAUNCHER, restore ).commit();
+        return put(PREF_KEY_RESTORE_LAUNCHER, restore);
     }
 
     public long getConfigUpdateTimestamp() {
-        return sharedPreferences.getLong(PACKAGE_NAME + PREF_CFG_UPDATE_TIMESTAMP, 0);
+        return preferenceStore.getLong(PACKAGE_NAME + PREF_CFG_UPDATE_TIMESTAMP, 0);
     }
 
     public boolean setConfigUpdateTimestamp(long timestamp) {
-        return sharedPreferences.edit().putLong(PACKAGE_NAME + PREF_CFG_UPDATE_TIMESTAMP, timestamp).commit();
+        return put(PREF_CFG_UPDATE_TIMESTAMP, timestamp);
     }
 
     public boolean setEnrollOptionCustomer(String customer) {
-        if (customer == null) {
-            return sharedPreferences.edit().remove(PACKAGE_NAME + PREF_KEY_CUSTOMER).commit();
-        } else {
-            return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_CUSTOMER, customer ).commit();
-        }
+        return put(PREF_KEY_CUSTOMER, customer);
     }
 
     public String getEnrollOptionCustomer() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_CUSTOMER, null);
+        return preferenceStore.getString(PACKAGE_NAME + PREF_KEY_CUSTOMER, null);
     }
 
     public boolean setDeviceIdUse(String deviceIdUse) {
-        if (deviceIdUse == null) {
-            return sharedPreferences.edit().remove(PACKAGE_NAME + PREF_KEY_DEVICE_ID_USE).commit();
-        } else {
-            return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_DEVICE_ID_USE, deviceIdUse ).commit();
-        }
+        return put(PREF_KEY_DEVICE_ID_USE, deviceIdUse);
     }
 
     public String getDeviceIdUse() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_DEVICE_ID_USE, null);
+        return preferenceStore.getString(PACKAGE_NAME + PREF_KEY_DEVICE_ID_USE, null);
     }
 
     public boolean setLastAppUpdateState(boolean lastAppUpdateState) {
-        return sharedPreferences.edit().putBoolean(PACKAGE_NAME + PREF_KEY_LAST_APP_UPDATE_STATE, lastAppUpdateState).commit();
+        return put(PREF_KEY_LAST_APP_UPDATE_STATE, lastAppUpdateState);
     }
 
     public boolean getLastAppUpdateState() {
-        return sharedPreferences.getBoolean(PACKAGE_NAME + PREF_KEY_LAST_APP_UPDATE_STATE, false);
+        return preferenceStore.getBoolean(PACKAGE_NAME + PREF_KEY_LAST_APP_UPDATE_STATE, false);
     }
 
     public boolean setAppStartTime(long time) {
-        return sharedPreferences.edit().putLong(PACKAGE_NAME + PREF_KEY_APP_START_TIME, time).commit();
+        return put(PREF_KEY_APP_START_TIME, time);
     }
 
     public long getAppStartTime() {
-        return sharedPreferences.getLong(PACKAGE_NAME + PREF_KEY_APP_START_TIME, 0);
+        return preferenceStore.getLong(PACKAGE_NAME + PREF_KEY_APP_START_TIME, 0);
     }
 
 
     public boolean setSatelliteCount(int count) {
-        return sharedPreferences.edit().putInt(PACKAGE_NAME + PREF_KEY_SATELLITE_COUNT, count).commit();
+        return put(PREF_KEY_SATELLITE_COUNT, count);
     }
 
     public int getSatelliteCount() {
-        return sharedPreferences.getInt(PACKAGE_NAME + PREF_KEY_SATELLITE_COUNT, 0);
+        return preferenceStore.getInt(PACKAGE_NAME + PREF_KEY_SATELLITE_COUNT, 0);
     }
 
     public boolean setEnrollOptionConfigName(String configName) {
-        if (configName == null) {
-            return sharedPreferences.edit().remove(PACKAGE_NAME + PREF_KEY_CONFIG_NAME).commit();
-        } else {
-            return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_CONFIG_NAME, configName ).commit();
-        }
+        return put(PREF_KEY_CONFIG_NAME, configName);
     }
 
     public String getEnrollOptionConfigName() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_CONFIG_NAME, null);
+        return preferenceStore.getString(PACKAGE_NAME + PREF_KEY_CONFIG_NAME, null);
     }
 
     public boolean setEnrollOptionGroup(Set<String> group) {
-        if (group == null) {
-            return sharedPreferences.edit().remove(PACKAGE_NAME + PREF_KEY_GROUP).commit();
-        } else {
-            return sharedPreferences.edit().putStringSet(PACKAGE_NAME + PREF_KEY_GROUP, group).commit();
-        }
+        return put(PREF_KEY_GROUP, group);
     }
 
     public Set<String> getEnrollOptionGroup() {
-        return sharedPreferences.getStringSet(PACKAGE_NAME + PREF_KEY_GROUP, null);
+        return preferenceStore.getStringSet(PACKAGE_NAME + PREF_KEY_GROUP, null);
     }
 
     public boolean setUserCustom1(String userCustom) {
-        return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_USER_CUSTOM_1, userCustom).commit();
+        return put(PREF_KEY_USER_CUSTOM_1, userCustom);
     }
 
     public String getUserCustom1() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_USER_CUSTOM_1, null);
+        return preferenceStore.getString(PACKAGE_NAME + PREF_KEY_USER_CUSTOM_1, null);
     }
 
     public boolean setUserCustom2(String userCustom) {
-        return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_USER_CUSTOM_2, userCustom).commit();
+        return put(PREF_KEY_USER_CUSTOM_2, userCustom);
     }
 
     public String getUserCustom2() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_USER_CUSTOM_2, null);
+        return preferenceStore.getString(PACKAGE_NAME + PREF_KEY_USER_CUSTOM_2, null);
     }
 
     public boolean setUserCustom3(String userCustom) {
-        return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_USER_CUSTOM_3, userCustom).commit();
+        return put(PREF_KEY_USER_CUSTOM_3, userCustom);
     }
 
     public String getUserCustom3() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_USER_CUSTOM_3, null);
+        return preferenceStore.getString(PACKAGE_NAME + PREF_KEY_USER_CUSTOM_3, null);
     }
 
-    public void updateConfig( ServerConfig config ) {
+    public synchronized void updateConfig( ServerConfig config ) {
         try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_CONFIG, objectMapper.writeValueAsString( config ) ).commit();
+            // The file is written in background, the stored validators are reset
+            configStore.putConfig(config);
         } catch ( Exception e ) {
             e.printStackTrace();
             // Do not apply changes when there's an error while writing settings
@@ -314,46 +343,44 @@ public class SettingsHelper {
         updateAllowedClassesSet(config);
         this.oldConfig = this.config;
         this.config = config;
+        configLoaded = true;
     }
 
     public ServerConfig getConfig() {
+        ensureConfigLoaded();
         return config;
     }
 
+    // ETag of the server response which produced the stored config
+    public String getConfigETag() {
+        return configStore.getETag();
+    }
+
+    // Content hash (server signature of the data) of the response which produced the stored config
+    public String getConfigHash() {
+        return configStore.getHash();
+    }
+
+    // Must be called after updateConfig() when the stored config exactly matches the server response
+    public boolean setConfigValidators(String etag, String hash) {
+        configStore.setValidators(etag, hash);
+        return true;
+    }
+
+    // Item changes are stored in a side record, the config itself is not rewritten
     public void removeRemoteFile(RemoteFile remoteFile) {
-        Iterator<RemoteFile> it = config.getFiles().iterator();
-        while (it.hasNext()) {
-            RemoteFile file = it.next();
-            if ( file.getPath().equals( remoteFile.getPath() ) ) {
-                it.remove();
-                updateConfig(config);
-                return;
-            }
-        }
+        ensureConfigLoaded();
+        configStore.removeRemoteFile(remoteFile.getPath());
     }
 
     public void removeApplication(Application application) {
-        Iterator<Application> it = config.getApplications().iterator();
-        while (it.hasNext()) {
-            Application app = it.next();
-            if (app.getPkg().equals(application.getPkg())) {
-                it.remove();
-                updateConfig(config);
-                return;
-            }
-        }
+        ensureConfigLoaded();
+        configStore.removeApplication(application.getPkg());
     }
 
     public void removeApplicationUrl(Application application) {
-        Iterator<Application> it = config.getApplications().iterator();
-        while (it.hasNext()) {
-            Application app = it.next();
-            if (app.getPkg().equals(application.getPkg())) {
-                app.setUrl(null);
-                updateConfig(config);
-                return;
-            }
-        }
+        ensureConfigLoaded();
+        configStore.removeApplicationUrl(application.getPkg());
     }
 
     private void updateAppSettingsMap(ServerConfig config) {
@@ -380,6 +407,7 @@ public class SettingsHelper {
     }
 
     public String getAppPreference(String packageId, String attr) {
+        ensureConfigLoaded();
         String key = packageId + "." + attr;
         ApplicationSetting setting = appSettings.get(key);
         if (setting == null) {
@@ -389,6 +417,7 @@ public class SettingsHelper {
     }
 
     public boolean setAppPreference(String packageId, String attr, String value) {
+        ensureConfigLoaded();
         String key = packageId + "." + attr;
         ApplicationSetting setting = appSettings.get(key);
         if (setting == null) {
@@ -412,6 +441,7 @@ public class SettingsHelper {
     }
 
     public Set<String> getAllowedClasses() {
+        ensureConfigLoaded();
         return allowedClasses;
     }
 }
@@ -25,6 +25,8 @@ import org.json.JSONObject;
 
 @JsonIgnoreProperties( ignoreUnknown = true )
 public class PushMessage {
+    // Server message ID, used to skip redelivered messages
+    private Long id;
     private String messageType;
     private String payload;
 
@@ -60,6 +62,14 @@ public class PushMessage {
     public static final String TYPE_TIMER = "timer";
     // Note: screenOff is handled by lock - they are the same action
 
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
     public String getMessageType() {
         return messageType;
     }
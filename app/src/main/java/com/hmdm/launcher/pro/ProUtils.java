@@ -30,6 +30,7 @@ import android.content.Intent;
 import android.location.Location;
 import android.os.Build;
 import android.os.Process;
+import android.util.Log;
 import android.view.View;
 import android.view.accessibility.AccessibilityManager;
 
@@ -41,6 +42,7 @@ import com.hmdm.launcher.json.Application;
 import com.hmdm.launcher.json.ServerConfig;
 import com.hmdm.launcher.util.LegacyUtils;
 import com.hmdm.launcher.util.RemoteLogger;
+import com.hmdm.launcher.worker.LocationUploadWorker;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -312,16 +314,10 @@ public class ProUtils {
         lastLocationLogTime = now;
         lastLoggedLocation = location;
 
-        // Send location as a log message with parseable format
-        // Format: LOCATION|lat|lon|accuracy|provider|timestamp
-        String locationLog = String.format("LOCATION|%.6f|%.6f|%.1f|%s|%d",
-                location.getLatitude(),
-                location.getLongitude(),
-                location.getAccuracy(),
-                provider,
-                location.getTime());
-
-        RemoteLogger.log(context, Const.LOG_INFO, locationLog);
+        // Locations are stored and uploaded separately from the logs
+        // In emergency mode, they're sent without delay
+        Log.d(Const.LOG_TAG, "Location from " + provider + ", accuracy " + location.getAccuracy());
+        LocationUploadWorker.storeLocation(context, location, emergencyMode);
     }
 
     public static String getAppName(Context context) {
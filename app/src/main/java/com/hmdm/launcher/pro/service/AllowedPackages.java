@@ -0,0 +1,116 @@
+package com.hmdm.launcher.pro.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+import android.view.inputmethod.InputMethodInfo;
+import android.view.inputmethod.InputMethodManager;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.json.Application;
+import com.hmdm.launcher.json.ServerConfig;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Packages allowed to run in the foreground, shared by the foreground app checkers.
+ * The snapshot is immutable; it is rebuilt only when the config changes or packages
+ * (which may include input methods) are installed or removed, so a check is a hash lookup.
+ */
+class AllowedPackages {
+    private static final String TAG = "AllowedPackages";
+
+    private static volatile AllowedPackages snapshot;
+    private static boolean receiverRegistered = false;
+
+    // A new config or application list (after removal of an app) is a new object
+    private final ServerConfig config;
+    private final List<Application> apps;
+    private final Set<String> packages;
+
+    private static final BroadcastReceiver invalidateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            snapshot = null;
+        }
+    };
+
+    private AllowedPackages(ServerConfig config, Set<String> packages) {
+        this.config = config;
+        this.apps = config.getApplications();
+        this.packages = Collections.unmodifiableSet(packages);
+    }
+
+    public static AllowedPackages get(Context context, ServerConfig config) {
+        AllowedPackages current = snapshot;
+        if (current == null || current.config != config || current.apps != config.getApplications()) {
+            registerReceiver(context);
+            current = build(context, config);
+            snapshot = current;
+        }
+        return current;
+    }
+
+    public boolean contains(String packageName) {
+        return packages.contains(packageName);
+    }
+
+    private static synchronized void registerReceiver(Context context) {
+        if (receiverRegistered) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        appContext.registerReceiver(invalidateReceiver, packageFilter);
+        appContext.registerReceiver(invalidateReceiver, new IntentFilter(Intent.ACTION_INPUT_METHOD_CHANGED));
+        receiverRegistered = true;
+    }
+
+    private static AllowedPackages build(Context context, ServerConfig config) {
+        Set<String> allowed = new HashSet<>();
+
+        // Always allow the launcher itself
+        allowed.add(context.getPackageName());
+
+        // Always allow system UI
+        allowed.add(Const.SYSTEM_UI_PACKAGE_NAME);
+
+        // Always allow all keyboard/input method apps
+        try {
+            InputMethodManager imm = (InputMethodManager) context.getSystemService(Context.INPUT_METHOD_SERVICE);
+            if (imm != null) {
+                List<InputMethodInfo> inputMethods = imm.getInputMethodList();
+                for (InputMethodInfo imi : inputMethods) {
+                    allowed.add(imi.getPackageName());
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to get input methods", e);
+        }
+
+        // Add all apps from config
+        List<Application> apps = config.getApplications();
+        if (apps != null) {
+            for (Application app : apps) {
+                if (app.getPkg() != null && !app.getPkg().isEmpty()) {
+                    // Don't add apps that are marked for removal
+                    if (!app.isRemove()) {
+                        allowed.add(app.getPkg());
+                    }
+                }
+            }
+        }
+
+        Log.d(TAG, "Allowed packages rebuilt: " + allowed.size() + " packages");
+        return new AllowedPackages(config, allowed);
+    }
+}
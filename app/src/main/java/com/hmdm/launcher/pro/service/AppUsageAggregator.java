@@ -0,0 +1,158 @@
+package com.hmdm.launcher.pro.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.db.AppUsageTable;
+import com.hmdm.launcher.db.DatabaseHelper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates the foreground app changes into per-app, per-hour usage (foreground time and launches).
+ * The usage is accumulated in memory and added to the database periodically.
+ * Not thread safe: all methods are called in the checker thread.
+ */
+class AppUsageAggregator {
+    private static final long HOUR_MS = 3600000L;
+    private static final long FLUSH_INTERVAL_MS = 300000L;
+
+    // Receives the accumulated usage; the database by default
+    interface Store {
+        void add(List<AppUsageTable.AppUsage> items);
+    }
+
+    private final Store store;
+    // Package + hour -> usage not yet stored in the database
+    private final Map<String, AppUsageTable.AppUsage> pending = new HashMap<>();
+    // Foreground app, null if unknown or the screen is off
+    private String foregroundPackage;
+    private long foregroundStart;
+    // Last app moved to foreground, used to skip transitions between activities of the same app
+    private String lastPackage;
+    // Events are queried with overlaps, so older ones are skipped
+    private long lastEventTime;
+    private long lastFlushTime;
+
+    AppUsageAggregator(Context context) {
+        this(new Store() {
+            private final Context appContext = context.getApplicationContext();
+
+            @Override
+            public void add(List<AppUsageTable.AppUsage> items) {
+                DatabaseHelper dbHelper = DatabaseHelper.instance(appContext);
+                AppUsageTable.add(dbHelper.getWritableDatabase(), items);
+                Log.d(Const.LOG_TAG, "App usage stored: " + items.size() + " items");
+            }
+        });
+    }
+
+    AppUsageAggregator(Store store) {
+        this.store = store;
+        lastFlushTime = System.currentTimeMillis();
+    }
+
+    public void onForeground(String packageName, long time) {
+        if (packageName == null || !acceptEvent(time)) {
+            return;
+        }
+        if (packageName.equals(foregroundPackage)) {
+            return;
+        }
+        closeInterval(time);
+        if (!packageName.equals(lastPackage)) {
+            AppUsageTable.AppUsage usage = getUsage(packageName, time);
+            usage.setLaunches(usage.getLaunches() + 1);
+        }
+        foregroundPackage = packageName;
+        foregroundStart = time;
+        lastPackage = packageName;
+    }
+
+    public void onBackground(String packageName, long time) {
+        if (packageName == null || !acceptEvent(time)) {
+            return;
+        }
+        if (packageName.equals(foregroundPackage)) {
+            closeInterval(time);
+            foregroundPackage = null;
+        }
+    }
+
+    public void onScreenOff(long time) {
+        closeInterval(time);
+        foregroundPackage = null;
+        // After unlocking, the app is considered launched again
+        lastPackage = null;
+        lastEventTime = Math.max(lastEventTime, time);
+        flush();
+    }
+
+    // Stores the usage if the flush interval has passed
+    public void flushIfNeeded(long now) {
+        if (now - lastFlushTime >= FLUSH_INTERVAL_MS || now < lastFlushTime) {
+            // Account the current app usage up to now
+            if (foregroundPackage != null) {
+                closeInterval(now);
+                foregroundStart = now;
+            }
+            flush();
+        }
+    }
+
+    public void flush() {
+        lastFlushTime = System.currentTimeMillis();
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            store.add(new ArrayList<>(pending.values()));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        pending.clear();
+    }
+
+    private boolean acceptEvent(long time) {
+        if (time < lastEventTime) {
+            return false;
+        }
+        lastEventTime = time;
+        return true;
+    }
+
+    // Adds the foreground time of the current app, split by hours
+    private void closeInterval(long end) {
+        if (foregroundPackage == null || end <= foregroundStart) {
+            return;
+        }
+        long start = foregroundStart;
+        while (start < end) {
+            long hourEnd = getHour(start) + HOUR_MS;
+            long intervalEnd = Math.min(end, hourEnd);
+            AppUsageTable.AppUsage usage = getUsage(foregroundPackage, start);
+            usage.setForeground(usage.getForeground() + intervalEnd - start);
+            start = intervalEnd;
+        }
+        foregroundStart = end;
+    }
+
+    private AppUsageTable.AppUsage getUsage(String packageName, long time) {
+        long hour = getHour(time);
+        String key = packageName + "/" + hour;
+        AppUsageTable.AppUsage usage = pending.get(key);
+        if (usage == null) {
+            usage = new AppUsageTable.AppUsage(packageName, hour);
+            pending.put(key, usage);
+        }
+        return usage;
+    }
+
+    private static long getHour(long time) {
+        return time - time % HOUR_MS;
+    }
+}
@@ -25,24 +25,24 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityWindowInfo;
-import android.view.inputmethod.InputMethodInfo;
-import android.view.inputmethod.InputMethodManager;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.helper.SettingsHelper;
-import com.hmdm.launcher.json.Application;
 import com.hmdm.launcher.json.ServerConfig;
 import com.hmdm.launcher.ui.MainActivity;
 import com.hmdm.launcher.util.RemoteLogger;
 
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 /**
  * AccessibilityService for MDM functionality.
@@ -60,6 +60,40 @@ public class CheckForegroundAppAccessibilityService extends AccessibilityService
     private long lastBlockTime = 0;
     private static final long BLOCK_COOLDOWN_MS = 1000; // Avoid rapid repeated blocks
 
+    // Window events come in bursts (activity transitions, dialogs, keyboard), so the package
+    // is evaluated when no events came during this time, but not later than the max delay after the first event
+    private static final long EVENT_QUIET_MS = 150;
+    private static final long EVENT_MAX_DELAY_MS = 500;
+    // Blocked apps are counted and logged to the server once in this period
+    private static final long BLOCK_LOG_INTERVAL_MS = 60000;
+
+    // Accessed only in the main thread
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private String pendingPackage;
+    // True if the pending package is not allowed
+    private boolean pendingBlocked;
+    private long firstPendingEventTime;
+    private final Map<String, Integer> blockCounts = new HashMap<>();
+
+    private final Runnable evaluateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            String packageName = pendingPackage;
+            pendingPackage = null;
+            pendingBlocked = false;
+            if (packageName != null) {
+                checkAndBlockIfNeeded(packageName);
+            }
+        }
+    };
+
+    private final Runnable flushBlockCountsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushBlockCounts();
+        }
+    };
+
     private final BroadcastReceiver permissiveModeReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -103,41 +137,28 @@ public class CheckForegroundAppAccessibilityService extends AccessibilityService
             return;
         }
 
+        // One package of the burst is evaluated: the last one which is not allowed, or the last one
+        // if all packages are allowed. The events of allowed packages (keyboard, system UI) following
+        // a blocked app in the same burst must not hide it
         String packageName = packageNameCs.toString();
-
-        // Skip if this event is from an input method (keyboard)
-        if (isInputMethodPackage(packageName)) {
-            Log.d(TAG, "Skipping input method package: " + packageName);
-            return;
+        long now = SystemClock.uptimeMillis();
+        if (pendingPackage == null) {
+            firstPendingEventTime = now;
         }
-
-        // Skip if any input method window is visible
-        if (isInputMethodWindowVisible()) {
-            Log.d(TAG, "Skipping check - input method window visible");
-            return;
+        boolean blocked = !isAllowed(packageName);
+        if (blocked || !pendingBlocked) {
+            pendingPackage = packageName;
+            pendingBlocked = blocked;
         }
-
-        checkAndBlockIfNeeded(packageName);
+        handler.removeCallbacks(evaluateRunnable);
+        long delay = Math.min(EVENT_QUIET_MS, firstPendingEventTime + EVENT_MAX_DELAY_MS - now);
+        handler.postDelayed(evaluateRunnable, Math.max(0, delay));
     }
 
-    /**
-     * Check if the given package is an input method (keyboard)
-     */
-    private boolean isInputMethodPackage(String packageName) {
-        try {
-            InputMethodManager imm = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
-            if (imm != null) {
-                List<InputMethodInfo> inputMethods = imm.getInputMethodList();
-                for (InputMethodInfo imi : inputMethods) {
-                    if (imi.getPackageName().equals(packageName)) {
-                        return true;
-                    }
-                }
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to check input method package", e);
-        }
-        return false;
+    private boolean isAllowed(String packageName) {
+        ServerConfig config = SettingsHelper.getInstance(this).getConfig();
+        return config == null || config.getApplications() == null ||
+                AllowedPackages.get(this, config).contains(packageName);
     }
 
     /**
@@ -183,11 +204,15 @@ public class CheckForegroundAppAccessibilityService extends AccessibilityService
             return;
         }
 
-        // Build whitelist from config
-        Set<String> allowedPackages = buildAllowedPackages(config);
+        // Check if the package is allowed (input methods are allowed as well)
+        if (!AllowedPackages.get(this, config).contains(packageName)) {
+            // Skip if any input method window is visible
+            // This requires IPC, so it's checked only for packages which are not allowed
+            if (isInputMethodWindowVisible()) {
+                Log.d(TAG, "Skipping check - input method window visible");
+                return;
+            }
 
-        // Check if the package is allowed
-        if (!allowedPackages.contains(packageName)) {
             // Avoid rapid repeated blocks of the same package
             long now = System.currentTimeMillis();
             if (packageName.equals(lastBlockedPackage) && (now - lastBlockTime) < BLOCK_COOLDOWN_MS) {
@@ -195,7 +220,7 @@ public class CheckForegroundAppAccessibilityService extends AccessibilityService
             }
 
             Log.i(TAG, "Blocking non-whitelisted app: " + packageName);
-            RemoteLogger.log(this, Const.LOG_INFO, "Blocked app: " + packageName);
+            countBlock(packageName);
 
             lastBlockedPackage = packageName;
             lastBlockTime = now;
@@ -204,42 +229,25 @@ public class CheckForegroundAppAccessibilityService extends AccessibilityService
         }
     }
 
-    private Set<String> buildAllowedPackages(ServerConfig config) {
-        Set<String> allowed = new HashSet<>();
-
-        // Always allow the launcher itself
-        allowed.add(getPackageName());
-
-        // Always allow system UI
-        allowed.add(Const.SYSTEM_UI_PACKAGE_NAME);
-
-        // Always allow all keyboard/input method apps
-        try {
-            InputMethodManager imm = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
-            if (imm != null) {
-                List<InputMethodInfo> inputMethods = imm.getInputMethodList();
-                for (InputMethodInfo imi : inputMethods) {
-                    allowed.add(imi.getPackageName());
-                }
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to get input methods", e);
+    private void countBlock(String packageName) {
+        if (blockCounts.isEmpty()) {
+            handler.postDelayed(flushBlockCountsRunnable, BLOCK_LOG_INTERVAL_MS);
         }
+        Integer count = blockCounts.get(packageName);
+        blockCounts.put(packageName, count != null ? count + 1 : 1);
+    }
 
-        // Add all apps from config
-        List<Application> apps = config.getApplications();
-        if (apps != null) {
-            for (Application app : apps) {
-                if (app.getPkg() != null && !app.getPkg().isEmpty()) {
-                    // Don't add apps that are marked for removal
-                    if (!app.isRemove()) {
-                        allowed.add(app.getPkg());
-                    }
-                }
-            }
+    private void flushBlockCounts() {
+        handler.removeCallbacks(flushBlockCountsRunnable);
+        if (blockCounts.isEmpty()) {
+            return;
         }
-
-        return allowed;
+        StringBuilder message = new StringBuilder("Blocked apps:");
+        for (Map.Entry<String, Integer> entry : blockCounts.entrySet()) {
+            message.append(" ").append(entry.getKey()).append(" (").append(entry.getValue()).append(")");
+        }
+        blockCounts.clear();
+        RemoteLogger.log(this, Const.LOG_INFO, message.toString());
     }
 
     private void bringLauncherToForeground() {
@@ -257,6 +265,8 @@ public class CheckForegroundAppAccessibilityService extends AccessibilityService
     public void onDestroy() {
         super.onDestroy();
         instance = null;
+        handler.removeCallbacks(evaluateRunnable);
+        flushBlockCounts();
         try {
             LocalBroadcastManager.getInstance(this).unregisterReceiver(permissiveModeReceiver);
         } catch (Exception e) {
@@ -24,7 +24,7 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
-import android.app.usage.UsageStats;
+import android.app.usage.UsageEvents;
 import android.app.usage.UsageStatsManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -32,11 +32,10 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.ServiceInfo;
 import android.os.Build;
-import android.view.inputmethod.InputMethodInfo;
-import android.view.inputmethod.InputMethodManager;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
+import android.os.PowerManager;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
@@ -45,21 +44,21 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.R;
 import com.hmdm.launcher.helper.SettingsHelper;
-import com.hmdm.launcher.json.Application;
 import com.hmdm.launcher.json.ServerConfig;
 import com.hmdm.launcher.pro.ProUtils;
 import com.hmdm.launcher.ui.MainActivity;
 import com.hmdm.launcher.util.RemoteLogger;
+import com.hmdm.launcher.worker.AppUsageUploadWorker;
 
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 /**
  * Service that monitors the foreground app and blocks non-whitelisted apps
  * by bringing the launcher back to the foreground.
+ * The check runs in a background thread and reads only the usage events since the previous check;
+ * it is paused while the screen is off.
+ * The same events are aggregated into the per-app usage which is uploaded daily.
  */
 public class CheckForegroundApplicationService extends Service {
 
@@ -67,10 +66,23 @@ public class CheckForegroundApplicationService extends Service {
     private static final int NOTIFICATION_ID = 113;
     private static final String CHANNEL_ID = "ForegroundAppChecker";
     private static final long CHECK_INTERVAL_MS = 500;
+    // At start, look back for the last foreground event
+    private static final long INITIAL_LOOKBACK_MS = 10000;
+    // Events may be stored with a delay, so the query overlaps the previous one
+    private static final long QUERY_OVERLAP_MS = 2000;
 
+    private HandlerThread handlerThread;
     private Handler handler;
-    private boolean permissiveModeEnabled = false;
-    private long permissiveModeEndTime = 0;
+    private volatile boolean permissiveModeEnabled = false;
+    private volatile long permissiveModeEndTime = 0;
+
+    // Accessed only in the checker thread
+    private long lastEventQueryTime = 0;
+    // Time of the last processed event, and the events processed at this time (to skip them in the overlap)
+    private long lastEventTime = 0;
+    private final Set<String> lastEventKeys = new HashSet<>();
+    private String foregroundPackage;
+    private AppUsageAggregator usageAggregator;
 
     private final Runnable checkRunnable = new Runnable() {
         @Override
@@ -95,15 +107,39 @@ public class CheckForegroundApplicationService extends Service {
         }
     };
 
+    private final BroadcastReceiver screenStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            handler.removeCallbacks(checkRunnable);
+            if (Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
+                Log.d(TAG, "Screen on, resuming checks");
+                handler.post(checkRunnable);
+            } else {
+                // Nothing can be launched by the user while the screen is off
+                Log.d(TAG, "Screen off, pausing checks");
+                usageAggregator.onScreenOff(System.currentTimeMillis());
+            }
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
-        handler = new Handler(Looper.getMainLooper());
+        handlerThread = new HandlerThread(TAG);
+        handlerThread.start();
+        handler = new Handler(handlerThread.getLooper());
+        usageAggregator = new AppUsageAggregator(this);
+        AppUsageUploadWorker.schedule(this);
 
         // Register for temporary permissive mode broadcasts (from admin panel or push)
         IntentFilter filter = new IntentFilter();
         filter.addAction(Const.ACTION_PERMISSIVE_MODE);
         LocalBroadcastManager.getInstance(this).registerReceiver(permissiveModeReceiver, filter);
+
+        IntentFilter screenFilter = new IntentFilter();
+        screenFilter.addAction(Intent.ACTION_SCREEN_ON);
+        screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(screenStateReceiver, screenFilter, null, handler);
     }
 
     @Override
@@ -119,7 +155,10 @@ public class CheckForegroundApplicationService extends Service {
 
         // Start checking
         handler.removeCallbacks(checkRunnable);
-        handler.post(checkRunnable);
+        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        if (pm == null || pm.isInteractive()) {
+            handler.post(checkRunnable);
+        }
 
         return START_STICKY;
     }
@@ -128,7 +167,15 @@ public class CheckForegroundApplicationService extends Service {
     public void onDestroy() {
         super.onDestroy();
         handler.removeCallbacks(checkRunnable);
+        // Executed before the thread quits
+        handler.post(() -> usageAggregator.flush());
         LocalBroadcastManager.getInstance(this).unregisterReceiver(permissiveModeReceiver);
+        try {
+            unregisterReceiver(screenStateReceiver);
+        } catch (Exception e) {
+            // Ignore if not registered
+        }
+        handlerThread.quitSafely();
     }
 
     @Override
@@ -172,6 +219,10 @@ public class CheckForegroundApplicationService extends Service {
     }
 
     private void checkForegroundApp() {
+        // Get foreground app package
+        // Usage events are read even if apps are not blocked, because they are aggregated into the app usage
+        String foregroundPkg = getForegroundPackage();
+
         // Check if permissive mode has expired
         if (permissiveModeEnabled && permissiveModeEndTime != Long.MAX_VALUE) {
             if (System.currentTimeMillis() > permissiveModeEndTime) {
@@ -197,61 +248,19 @@ public class CheckForegroundApplicationService extends Service {
             return;
         }
 
-        // Get foreground app package
-        String foregroundPkg = getForegroundPackage();
         if (foregroundPkg == null || foregroundPkg.isEmpty()) {
             return;
         }
 
-        // Build whitelist from config
-        Set<String> allowedPackages = buildAllowedPackages(config);
-
         // Check if foreground app is allowed
-        if (!allowedPackages.contains(foregroundPkg)) {
+        if (!AllowedPackages.get(this, config).contains(foregroundPkg)) {
             Log.i(TAG, "Blocking non-whitelisted app: " + foregroundPkg);
             RemoteLogger.log(this, Const.LOG_INFO, "Blocked app: " + foregroundPkg);
             bringLauncherToForeground();
         }
     }
 
-    private Set<String> buildAllowedPackages(ServerConfig config) {
-        Set<String> allowed = new HashSet<>();
-
-        // Always allow the launcher itself
-        allowed.add(getPackageName());
-
-        // Always allow system UI
-        allowed.add(Const.SYSTEM_UI_PACKAGE_NAME);
-
-        // Always allow all keyboard/input method apps
-        try {
-            InputMethodManager imm = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
-            if (imm != null) {
-                List<InputMethodInfo> inputMethods = imm.getInputMethodList();
-                for (InputMethodInfo imi : inputMethods) {
-                    allowed.add(imi.getPackageName());
-                }
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to get input methods", e);
-        }
-
-        // Add all apps from config
-        List<Application> apps = config.getApplications();
-        if (apps != null) {
-            for (Application app : apps) {
-                if (app.getPkg() != null && !app.getPkg().isEmpty()) {
-                    // Don't add apps that are marked for removal
-                    if (!app.isRemove()) {
-                        allowed.add(app.getPkg());
-                    }
-                }
-            }
-        }
-
-        return allowed;
-    }
-
+    // The foreground app is tracked by the usage events since the previous check
     private String getForegroundPackage() {
         UsageStatsManager usm = (UsageStatsManager) getSystemService(Context.USAGE_STATS_SERVICE);
         if (usm == null) {
@@ -259,28 +268,50 @@ public class CheckForegroundApplicationService extends Service {
         }
 
         long now = System.currentTimeMillis();
-        // Query for last 10 seconds to get recent usage
-        List<UsageStats> stats = usm.queryUsageStats(
-                UsageStatsManager.INTERVAL_DAILY,
-                now - 10000,
-                now
-        );
-
-        if (stats == null || stats.isEmpty()) {
-            return null;
+        long from = lastEventQueryTime - QUERY_OVERLAP_MS;
+        if (lastEventQueryTime == 0 || lastEventQueryTime > now || now - lastEventQueryTime > INITIAL_LOOKBACK_MS) {
+            // First check, after a pause or after the clock change
+            from = now - INITIAL_LOOKBACK_MS;
+            if (lastEventTime > now) {
+                lastEventTime = 0;
+                lastEventKeys.clear();
+            }
         }
-
-        // Find the app with the most recent lastTimeUsed
-        SortedMap<Long, UsageStats> sortedStats = new TreeMap<>();
-        for (UsageStats usageStats : stats) {
-            sortedStats.put(usageStats.getLastTimeUsed(), usageStats);
+        UsageEvents events = usm.queryEvents(from, now);
+        lastEventQueryTime = now;
+        if (events == null) {
+            return foregroundPackage;
         }
 
-        if (sortedStats.isEmpty()) {
-            return null;
+        UsageEvents.Event event = new UsageEvents.Event();
+        while (events.hasNextEvent()) {
+            events.getNextEvent(event);
+            if (!isNewEvent(event)) {
+                continue;
+            }
+            // MOVE_TO_FOREGROUND has the same value as ACTIVITY_RESUMED in Android 10+
+            if (event.getEventType() == UsageEvents.Event.MOVE_TO_FOREGROUND) {
+                foregroundPackage = event.getPackageName();
+                usageAggregator.onForeground(foregroundPackage, event.getTimeStamp());
+            } else if (event.getEventType() == UsageEvents.Event.MOVE_TO_BACKGROUND) {
+                usageAggregator.onBackground(event.getPackageName(), event.getTimeStamp());
+            }
         }
+        usageAggregator.flushIfNeeded(now);
+        return foregroundPackage;
+    }
 
-        return sortedStats.get(sortedStats.lastKey()).getPackageName();
+    private boolean isNewEvent(UsageEvents.Event event) {
+        long time = event.getTimeStamp();
+        if (time < lastEventTime) {
+            return false;
+        }
+        String key = event.getEventType() + "/" + event.getPackageName() + "/" + event.getClassName();
+        if (time > lastEventTime) {
+            lastEventTime = time;
+            lastEventKeys.clear();
+        }
+        return lastEventKeys.add(key);
     }
 
     private void bringLauncherToForeground() {
@@ -20,6 +20,7 @@
 package com.hmdm.launcher.server;
 
 
+import com.hmdm.launcher.db.AppUsageTable;
 import com.hmdm.launcher.db.LocationTable;
 import com.hmdm.launcher.json.DetailedInfo;
 import com.hmdm.launcher.json.DetailedInfoConfigResponse;
@@ -32,6 +33,7 @@ import com.hmdm.launcher.json.ServerConfigResponse;
 
 import java.util.List;
 
+import okhttp3.RequestBody;
 import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.Body;
@@ -46,6 +48,8 @@ public interface ServerService {
 
     static final String REQUEST_SIGNATURE_HEADER = "X-Request-Signature";
     static final String CPU_ARCH_HEADER = "X-CPU-Arch";
+    static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+    static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
 
     @POST("{project}/rest/public/sync/configuration/{number}")
     Call<ResponseBody> enrollAndGetServerConfigRaw(@Path("project") String project,
@@ -58,7 +62,8 @@ public interface ServerService {
     Call<ResponseBody> getServerConfigRaw(@Path("project") String project,
                                           @Path("number") String number,
                                           @Header(REQUEST_SIGNATURE_HEADER) String signature,
-                                          @Header(CPU_ARCH_HEADER) String cpuArch);
+                                          @Header(CPU_ARCH_HEADER) String cpuArch,
+                                          @Header(IF_NONE_MATCH_HEADER) String etag);
 
     @POST("{project}/rest/public/sync/configuration/{number}")
     Call<ServerConfigResponse> enrollAndGetServerConfig(@Path("project") String project,
@@ -71,7 +76,8 @@ public interface ServerService {
     Call<ServerConfigResponse> getServerConfig(@Path("project") String project,
                                                @Path("number") String number,
                                                @Header(REQUEST_SIGNATURE_HEADER) String signature,
-                                               @Header(CPU_ARCH_HEADER) String cpuArch);
+                                               @Header(CPU_ARCH_HEADER) String cpuArch,
+                                               @Header(IF_NONE_MATCH_HEADER) String etag);
 
     @POST("{project}/rest/public/sync/info")
     @Headers("Content-Type: application/json")
@@ -94,10 +100,20 @@ public interface ServerService {
     @Headers("Content-Type: application/json")
     Call<ResponseBody> sendLogs(@Path("project") String project, @Path("number") String number, @Body List<RemoteLogItem> logItems);
 
+    // Same as sendLogs() with a pre-serialized (and possibly compressed) body
+    @POST("{project}/rest/plugins/devicelog/log/list/{number}")
+    Call<ResponseBody> sendLogsEncoded(@Path("project") String project, @Path("number") String number,
+                                       @Header(CONTENT_ENCODING_HEADER) String contentEncoding,
+                                       @Body RequestBody body);
+
     @PUT("{project}/rest/plugins/deviceinfo/deviceinfo/public/{number}")
     @Headers("Content-Type: application/json")
     Call<ResponseBody> sendDetailedInfo(@Path("project") String project, @Path("number") String number, @Body List<DetailedInfo> infoItems);
 
+    @PUT("{project}/rest/plugins/deviceinfo/appusage/public/{number}")
+    @Headers("Content-Type: application/json")
+    Call<ResponseBody> sendAppUsage(@Path("project") String project, @Path("number") String number, @Body List<AppUsageTable.AppUsage> usageItems);
+
     @PUT("{project}/rest/plugins/devicelocations/public/update/{number}")
     @Headers("Content-Type: application/json")
     Call<ResponseBody> sendLocations(@Path("project") String project, @Path("number") String number, @Body List<LocationTable.Location> locationItems);
@@ -25,14 +25,21 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
 import android.location.GnssStatus;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -49,6 +56,13 @@ import com.hmdm.launcher.helper.SettingsHelper;
 import com.hmdm.launcher.pro.ProUtils;
 import com.hmdm.launcher.util.RemoteLogger;
 
+/**
+ * Requests location updates with the mode depending on the device state:
+ * a moving device is tracked by GPS (if enabled by the server) and network,
+ * a device lying still only receives passive locations (or none on low battery),
+ * and a low battery limits the tracking to the network provider.
+ * Stillness is detected by the significant motion sensor and the distance between fixes.
+ */
 public class LocationService extends Service {
     private LocationManager locationManager;
 
@@ -61,18 +75,57 @@ public class LocationService extends Service {
 
     boolean updateViaGps = false;
     boolean started = false;
+    boolean foreground = false;
 
     private static final int LOCATION_UPDATE_INTERVAL = 60000;
 
+    public static final int MODE_HIGH_ACCURACY = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_PASSIVE = 2;
+    public static final int MODE_SUSPENDED = 3;
+
+    // The device is considered still if it hasn't moved during this time
+    private static final long STILL_TIMEOUT_MS = 5 * 60 * 1000;
+    // Fixes closer than this distance to the anchor fix are considered the same place
+    private static final float STILL_DISTANCE_M = 50;
+    private static final int LOW_BATTERY_PERCENT = 15;
+    private static final long MODE_CHECK_INTERVAL_MS = 60000;
+
+    private int mode = -1;
+    private long lastMovementTime;
+    private Location anchorLocation;
+    private boolean batteryLow;
+    private SensorManager sensorManager;
+    private Sensor significantMotionSensor;
+    private TriggerEventListener motionListener;
+
+    private final Runnable modeCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateMode();
+            handler.postDelayed(this, MODE_CHECK_INTERVAL_MS);
+        }
+    };
+
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            boolean wasLow = batteryLow;
+            batteryLow = isBatteryLow(intent);
+            if (wasLow != batteryLow) {
+                updateMode();
+            }
+        }
+    };
+
     // Use different location listeners for GPS and Network
     // Not sure what happens if we share the same listener for both providers
     private LocationListener gpsLocationListener = new LocationListener() {
         @Override
         public void onLocationChanged(Location location) {
-            // Do nothing here: we use getLastKnownLocation() to determine the location!
             //Toast.makeText(LocationService.this, "Location updated from GPS", Toast.LENGTH_SHORT).show();
-            RemoteLogger.log(LocationService.this, Const.LOG_VERBOSE, "GPS location update: lat="
-                    + location.getLatitude() + ", lon=" + location.getLongitude());
+            Log.d(Const.LOG_TAG, "GPS location update, accuracy: " + location.getAccuracy());
+            onLocation(location);
             ProUtils.processLocation(LocationService.this, location, LocationManager.GPS_PROVIDER);
         }
 
@@ -91,10 +144,9 @@ public class LocationService extends Service {
     private LocationListener networkLocationListener = new LocationListener() {
         @Override
         public void onLocationChanged(Location location) {
-            // Do nothing here: we use getLastKnownLocation() to determine the location!
             //Toast.makeText(LocationService.this, "Location updated from Network", Toast.LENGTH_SHORT).show();
-            RemoteLogger.log(LocationService.this, Const.LOG_VERBOSE, "Network location update: lat="
-                    + location.getLatitude() + ", lon=" + location.getLongitude());
+            Log.d(Const.LOG_TAG, "Network location update, accuracy: " + location.getAccuracy());
+            onLocation(location);
             ProUtils.processLocation(LocationService.this, location, LocationManager.NETWORK_PROVIDER);
         }
 
@@ -111,6 +163,28 @@ public class LocationService extends Service {
         }
     };
 
+    // Locations requested by other apps, used while the device is still
+    private LocationListener passiveLocationListener = new LocationListener() {
+        @Override
+        public void onLocationChanged(Location location) {
+            Log.d(Const.LOG_TAG, "Passive location update, accuracy: " + location.getAccuracy());
+            onLocation(location);
+            ProUtils.processLocation(LocationService.this, location, LocationManager.PASSIVE_PROVIDER);
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+        }
+
+        @Override
+        public void onProviderEnabled(String provider) {
+        }
+
+        @Override
+        public void onProviderDisabled(String provider) {
+        }
+    };
+
     private Handler handler = new Handler();
     private GnssStatus.Callback gnssStatusCallback = null;
 
@@ -133,6 +207,110 @@ public class LocationService extends Service {
                 }
             };
         }
+
+        sensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
+        if (sensorManager != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            significantMotionSensor = sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+            if (significantMotionSensor != null) {
+                motionListener = new TriggerEventListener() {
+                    @Override
+                    public void onTrigger(TriggerEvent event) {
+                        // The sensor is disabled after triggering
+                        Log.d(Const.LOG_TAG, "Significant motion detected");
+                        lastMovementTime = System.currentTimeMillis();
+                        updateMode();
+                        requestMotionTrigger();
+                    }
+                };
+            }
+        }
+        lastMovementTime = System.currentTimeMillis();
+        Intent batteryStatus = registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        batteryLow = isBatteryLow(batteryStatus);
+    }
+
+    private static boolean isBatteryLow(Intent batteryStatus) {
+        if (batteryStatus == null) {
+            return false;
+        }
+        int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        int plugged = batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+        return plugged == 0 && level >= 0 && scale > 0 && level * 100 / scale < LOW_BATTERY_PERCENT;
+    }
+
+    private void requestMotionTrigger() {
+        if (motionListener != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            sensorManager.requestTriggerSensor(motionListener, significantMotionSensor);
+        }
+    }
+
+    private void onLocation(Location location) {
+        if (anchorLocation == null || location.distanceTo(anchorLocation) > STILL_DISTANCE_M) {
+            anchorLocation = location;
+            lastMovementTime = System.currentTimeMillis();
+            updateMode();
+        }
+    }
+
+    private int selectMode() {
+        // The server setting (GPS or network) is the upper bound
+        int activeMode = updateViaGps && !batteryLow ? MODE_HIGH_ACCURACY : MODE_BALANCED;
+        if (ProUtils.isEmergencyMode()) {
+            return activeMode;
+        }
+        boolean still = System.currentTimeMillis() - lastMovementTime > STILL_TIMEOUT_MS;
+        if (!still || motionListener == null) {
+            // Without the motion sensor, movement can only be detected by active location updates
+            return activeMode;
+        }
+        return batteryLow ? MODE_SUSPENDED : MODE_PASSIVE;
+    }
+
+    private void updateMode() {
+        if (!started) {
+            return;
+        }
+        int newMode = selectMode();
+        if (newMode != mode) {
+            applyMode(newMode);
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private boolean applyMode(int newMode) {
+        Log.d(Const.LOG_TAG, "Location mode changed from " + mode + " to " + newMode);
+        mode = newMode;
+        locationManager.removeUpdates(networkLocationListener);
+        locationManager.removeUpdates(gpsLocationListener);
+        locationManager.removeUpdates(passiveLocationListener);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            locationManager.unregisterGnssStatusCallback(gnssStatusCallback);
+        }
+        try {
+            switch (newMode) {
+                case MODE_HIGH_ACCURACY:
+                    locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, LOCATION_UPDATE_INTERVAL, 0, networkLocationListener);
+                    locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, LOCATION_UPDATE_INTERVAL, 0, gpsLocationListener);
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                        locationManager.registerGnssStatusCallback(gnssStatusCallback, handler);
+                    }
+                    break;
+                case MODE_BALANCED:
+                    locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, LOCATION_UPDATE_INTERVAL, 0, networkLocationListener);
+                    break;
+                case MODE_PASSIVE:
+                    locationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, LOCATION_UPDATE_INTERVAL, 0, passiveLocationListener);
+                    break;
+                case MODE_SUSPENDED:
+                    break;
+            }
+        } catch (Exception e) {
+            // Provider may not exist, so process it friendly
+            e.printStackTrace();
+            return false;
+        }
+        return true;
     }
 
     @SuppressLint("WrongConstant")
@@ -177,23 +355,8 @@ public class LocationService extends Service {
         RemoteLogger.log(this, Const.LOG_VERBOSE,
                 "Request location updates. gps=" + gpsEnabled + ", network=" + networkEnabled + ", passive=" + passiveEnabled);
 
-        locationManager.removeUpdates(networkLocationListener);
-        locationManager.removeUpdates(gpsLocationListener);
-        try {
-            locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, LOCATION_UPDATE_INTERVAL, 0, networkLocationListener);
-            if (updateViaGps) {
-                locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, LOCATION_UPDATE_INTERVAL, 0, gpsLocationListener);
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                    locationManager.registerGnssStatusCallback(gnssStatusCallback, handler);
-                }
-            }
-        } catch (Exception e) {
-            // Provider may not exist, so process it friendly
-            e.printStackTrace();
-            return false;
-        }
-
-        return true;
+        mode = -1;
+        return applyMode(selectMode());
     }
 
 
@@ -201,9 +364,19 @@ public class LocationService extends Service {
     public void onDestroy() {
         locationManager.removeUpdates(networkLocationListener);
         locationManager.removeUpdates(gpsLocationListener);
+        locationManager.removeUpdates(passiveLocationListener);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
             locationManager.unregisterGnssStatusCallback(gnssStatusCallback);
         }
+        handler.removeCallbacks(modeCheckRunnable);
+        if (motionListener != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            sensorManager.cancelTriggerSensor(motionListener, significantMotionSensor);
+        }
+        try {
+            unregisterReceiver(batteryReceiver);
+        } catch (Exception e) {
+            // Ignore if not registered
+        }
         started = false;
 
         super.onDestroy();
@@ -222,6 +395,7 @@ public class LocationService extends Service {
             if (inputIntent.getAction().equals(ACTION_STOP)) {
                 // Stop service
                 started = false;
+                foreground = false;
                 stopForeground(true);
                 stopSelf();
                 return Service.START_NOT_STICKY;
@@ -234,6 +408,8 @@ public class LocationService extends Service {
             updateViaGps = false;
         }
         if (!started || legacyGpsFlag != updateViaGps) {
+            // Mode is updated only when the service is started
+            started = true;
             if (!requestLocationUpdates()) {
                 // No permissions!
                 started = false;
@@ -242,9 +418,12 @@ public class LocationService extends Service {
                 return Service.START_NOT_STICKY;
             }
         }
-        if (!started) {
+        if (!foreground) {
             startAsForeground();
-            started = true;
+            foreground = true;
+            requestMotionTrigger();
+            handler.removeCallbacks(modeCheckRunnable);
+            handler.postDelayed(modeCheckRunnable, MODE_CHECK_INTERVAL_MS);
         }
         return START_STICKY;
     }
@@ -21,21 +21,18 @@ import com.hmdm.launcher.Const;
 import com.hmdm.launcher.R;
 import com.hmdm.launcher.helper.CryptoHelper;
 import com.hmdm.launcher.helper.SettingsHelper;
-import com.hmdm.launcher.json.PushMessage;
 import com.hmdm.launcher.json.PushResponse;
 import com.hmdm.launcher.pro.ProUtils;
 import com.hmdm.launcher.server.ServerService;
 import com.hmdm.launcher.server.ServerServiceKeeper;
 import com.hmdm.launcher.util.RemoteLogger;
 import com.hmdm.launcher.util.Utils;
-import com.hmdm.launcher.worker.PushNotificationProcessor;
+import com.hmdm.launcher.worker.PushMessageQueue;
 
 import org.eclipse.paho.android.service.MqttService;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.util.HashMap;
-import java.util.Map;
 
 import retrofit2.Response;
 
@@ -144,17 +141,8 @@ public class PushLongPollingService extends Service {
 
                 if ( response.isSuccessful() ) {
                     if ( Const.STATUS_OK.equals( response.body().getStatus() ) && response.body().getData() != null ) {
-                        Map<String, PushMessage> filteredMessages = new HashMap<String, PushMessage>();
-                        for (PushMessage message : response.body().getData()) {
-                            // Filter out multiple configuration update requests
-                            if (!message.getMessageType().equals(PushMessage.TYPE_CONFIG_UPDATED) ||
-                                    !filteredMessages.containsKey(PushMessage.TYPE_CONFIG_UPDATED)) {
-                                filteredMessages.put(message.getMessageType(), message);
-                            }
-                        }
-                        for (Map.Entry<String, PushMessage> entry : filteredMessages.entrySet()) {
-                            PushNotificationProcessor.process(entry.getValue(), context);
-                        }
+                        // Duplicate and repeated configuration update requests are filtered out by the queue
+                        PushMessageQueue.add(context, response.body().getData());
                     }
                 } else if (response.code() >= 400 && response.code() < 500) {
                     // Response code 500 is fine (Timeout), so here we log only 4xx requests (403 Forbidden in particular)
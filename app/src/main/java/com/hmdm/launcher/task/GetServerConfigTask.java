@@ -25,9 +25,14 @@ import android.os.Build;
 import android.provider.Settings;
 import android.util.Log;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.hmdm.launcher.BuildConfig;
 import com.hmdm.launcher.Const;
+import com.hmdm.launcher.helper.ConfigDiff;
 import com.hmdm.launcher.helper.CryptoHelper;
 import com.hmdm.launcher.helper.SettingsHelper;
 import com.hmdm.launcher.json.DeviceEnrollOptions;
@@ -41,11 +46,22 @@ import com.hmdm.launcher.util.PushNotificationMqttWrapper;
 import com.hmdm.launcher.util.RemoteLogger;
 import com.hmdm.launcher.util.Utils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+
 import okhttp3.ResponseBody;
 import retrofit2.Response;
 
 public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
 
+    private static final int HTTP_NOT_MODIFIED = 304;
+    // Reused by all requests: creating a reader is much more expensive than reading a config
+    private static final ObjectReader SERVER_CONFIG_READER = new ObjectMapper().readerFor(ServerConfig.class);
+
     private Context context;
     private SettingsHelper settingsHelper;
 
@@ -61,6 +77,11 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
     private boolean isDeviceNotFound;
     // This is the only application error which requires reporting in the background
     private String notFoundError = "error.notfound.device";
+    // Set if the server reports that the config has not been changed since the last request
+    private boolean configUnchanged;
+    private String configETag;
+    private String configHash;
+    private ConfigDiff configDiff;
 
     public GetServerConfigTask( Context context ) {
         this.context = context;
@@ -71,6 +92,15 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
         return errorText;
     }
 
+    public boolean isConfigUnchanged() {
+        return configUnchanged;
+    }
+
+    // Changes of the new config against the stored one (null if the config hasn't been loaded)
+    public ConfigDiff getConfigDiff() {
+        return configDiff;
+    }
+
     @Override
     protected Integer doInBackground( Void... voids ) {
         DeviceEnrollOptions enrollOptions = null;
@@ -99,6 +129,7 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
         }
 
         isDeviceNotFound = false;
+        configUnchanged = false;
         try {
             ServerConfig serverConfig = null;
             if (enrollOptions == null) {
@@ -111,6 +142,12 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
                         enrollPlain(deviceId, enrollOptions, signature);
             }
 
+            if (configUnchanged) {
+                // The stored config is up to date, nothing to parse and save
+                Log.d(Const.LOG_TAG, "Configuration not modified");
+                return Const.TASK_SUCCESS;
+            }
+
             if (serverConfig != null) {
                 if (serverConfig.getNewNumber() != null) {
                     RemoteLogger.log(context, Const.LOG_INFO, "Device number changed from " + settingsHelper.getDeviceId() + " to " + serverConfig.getNewNumber());
@@ -122,7 +159,10 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
                     }
                 }
 
+                // Compare in the background thread: this serializes both configs
+                configDiff = ConfigDiff.compare(settingsHelper.getConfig(), serverConfig);
                 settingsHelper.updateConfig(serverConfig);
+                settingsHelper.setConfigValidators(configETag, configHash);
                 if (Utils.isDeviceOwner(context)) {
                     AppRestrictionUpdater.updateAppRestrictions(context, serverConfig.getApplicationSettings());
                 }
@@ -165,10 +205,11 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
 
     private ServerConfig getServerConfigPlain(String deviceId, String signature) throws Exception {
         Response<ServerConfigResponse> response = null;
+        String etag = getStoredConfigETag();
         try {
             serverHost = settingsHelper.getBaseUrl();
             response = serverService.getServerConfig(settingsHelper.getServerProject(),
-                    deviceId, signature, Build.CPU_ABI).execute();
+                    deviceId, signature, Build.CPU_ABI, etag).execute();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -176,11 +217,17 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
         if (response == null) {
             serverHost = settingsHelper.getSecondaryBaseUrl();
             response = secondaryServerService.getServerConfig(settingsHelper.getServerProject(),
-                    deviceId, signature, Build.CPU_ABI).execute();
+                    deviceId, signature, Build.CPU_ABI, etag).execute();
+        }
+
+        if (response.code() == HTTP_NOT_MODIFIED) {
+            configUnchanged = true;
+            return null;
         }
 
         if (response.isSuccessful() && Const.STATUS_OK.equals(response.body().getStatus()) && response.body().getData() != null) {
             SettingsHelper.getInstance(context).setExternalIp(response.headers().get(Const.HEADER_IP_ADDRESS));
+            configETag = response.headers().get(Const.HEADER_ETAG);
             return response.body().getData();
         } else {
             isDeviceNotFound = response.body() != null && notFoundError.equals(response.body().getMessage());
@@ -193,11 +240,12 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
     // This is an additional protection against Man-In-The-Middle attacks
     private ServerConfig getServerConfigSecure(String deviceId, String signature) throws Exception {
         Response<ResponseBody> response = null;
+        String etag = getStoredConfigETag();
 
         try {
             serverHost = settingsHelper.getBaseUrl();
             response = serverService.getServerConfigRaw(settingsHelper.getServerProject(),
-                    deviceId, signature, Build.CPU_ABI).execute();
+                    deviceId, signature, Build.CPU_ABI, etag).execute();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -205,64 +253,27 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
         if (response == null) {
             serverHost = settingsHelper.getSecondaryBaseUrl();
             response = secondaryServerService.getServerConfigRaw(settingsHelper.getServerProject(),
-                    deviceId, signature, Build.CPU_ABI).execute();
+                    deviceId, signature, Build.CPU_ABI, etag).execute();
         }
 
-        if (response.isSuccessful()) {
-            String serverResponse = response.body().string();
-
-            ServerConfigResponse serverConfigResponse;
-            try {
-                serverConfigResponse = new ObjectMapper().readValue(serverResponse, ServerConfigResponse.class);
-            } catch (Exception e) {
-                errorText = "Failed to parse JSON";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
-
-            // Check for application errors before checking the signature
-            // Because the errors are not signed
-            if (!Const.STATUS_OK.equals(serverConfigResponse.getStatus())) {
-                isDeviceNotFound = notFoundError.equals(serverConfigResponse.getMessage());
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
-
-            // Check response signature
-            String serverSignature = response.headers().get(Const.HEADER_RESPONSE_SIGNATURE);
-            if (serverSignature == null) {
-                errorText = "Missing " + Const.HEADER_RESPONSE_SIGNATURE + " flag, dropping response";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
+        if (response.code() == HTTP_NOT_MODIFIED) {
+            configUnchanged = true;
+            return null;
+        }
 
-            // We need to extract data from the response body
-            // Here we assume the specific form of response body: {"status":"OK","message":null,"data":{...}}
-            final String dataMarker = "\"data\":";
-            int pos = serverResponse.indexOf(dataMarker);
-            if (pos == -1) {
-                errorText = "Wrong server response, missing data";
-                Log.e(Const.LOG_TAG, errorText + ": " + serverResponse);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
-            String serverData = serverResponse.substring(pos + dataMarker.length(), serverResponse.length() - 1);
-            String calculatedSignature = CryptoHelper.getSHA1String(BuildConfig.REQUEST_SIGNATURE + serverData.replaceAll("\\s", ""));
-            if (!calculatedSignature.equalsIgnoreCase(serverSignature)) {
-                errorText = "Server signature " + serverSignature + " doesn't match calculated signature " + calculatedSignature + ", dropping response";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
-            return new ObjectMapper().readValue(serverData, ServerConfig.class);
+        if (response.isSuccessful()) {
+            return parseSignedServerConfig(response);
         } else {
             buildTaskErrorTextSecure(response, null);
         }
         return null;
     }
 
+    // Validators are only sent if the stored config is valid
+    private String getStoredConfigETag() {
+        return settingsHelper.getConfig() != null ? settingsHelper.getConfigETag() : null;
+    }
+
     // Apply extra device creation options (need to be used only at first start when config=null!)
     private ServerConfig enrollPlain(String deviceId, DeviceEnrollOptions createOptions,
                                      String signature) throws Exception {
@@ -316,57 +327,201 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
         }
 
         if (response.isSuccessful()) {
-            String serverResponse = response.body().string();
+            return parseSignedServerConfig(response);
+        } else {
+            buildTaskErrorTextSecure(response, null);
+        }
+        return null;
+    }
 
-            ServerConfigResponse serverConfigResponse;
+    // Check the signature and parse the server response in one pass over the response stream:
+    // the parser reads the stream and the bytes it reads are passed to the digest
+    // The signature is SHA-1 of the shared secret and the "data" payload with whitespaces removed
+    // Here we assume the specific form of response body: {"status":"OK","message":null,"data":{...}}
+    private ServerConfig parseSignedServerConfig(Response<ResponseBody> response) throws Exception {
+        SignedBodyInputStream body = new SignedBodyInputStream(response.body().byteStream());
+        String serverSignature = response.headers().get(Const.HEADER_RESPONSE_SIGNATURE);
+
+        String status = null;
+        String message = null;
+        ServerConfig serverConfig = null;
+        try {
+            JsonParser parser = SERVER_CONFIG_READER.getFactory().createParser(body);
             try {
-                serverConfigResponse = new ObjectMapper().readValue(serverResponse, ServerConfigResponse.class);
-            } catch (Exception e) {
-                errorText = "Failed to parse JSON";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new JsonParseException(parser, "Response is not an object");
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String fieldName = parser.getCurrentName();
+                    JsonToken token = parser.nextToken();
+                    if ("status".equals(fieldName)) {
+                        status = parser.getValueAsString();
+                    } else if ("message".equals(fieldName)) {
+                        message = parser.getValueAsString();
+                    } else if ("data".equals(fieldName) && token == JsonToken.START_OBJECT) {
+                        body.startDigest((int) parser.getTokenLocation().getByteOffset());
+                        serverConfig = SERVER_CONFIG_READER.readValue(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                body.readToEnd();
+            } finally {
+                parser.close();
+            }
+        } catch (Exception e) {
+            errorText = "Failed to parse JSON";
+            Log.e(Const.LOG_TAG, errorText);
+            buildTaskErrorTextSecure(response, body.getText());
+            return null;
+        }
+
+        // Check for application errors before checking the signature
+        // Because the errors are not signed
+        if (!Const.STATUS_OK.equals(status)) {
+            isDeviceNotFound = notFoundError.equals(message);
+            buildTaskErrorTextSecure(response, body.getText());
+            return null;
+        }
+
+        // Check response signature
+        if (serverSignature == null) {
+            errorText = "Missing " + Const.HEADER_RESPONSE_SIGNATURE + " flag, dropping response";
+            Log.e(Const.LOG_TAG, errorText);
+            buildTaskErrorTextSecure(response, body.getText());
+            return null;
+        }
+
+        if (serverConfig == null) {
+            errorText = "Wrong server response, missing data";
+            Log.e(Const.LOG_TAG, errorText);
+            buildTaskErrorTextSecure(response, body.getText());
+            return null;
+        }
+
+        String calculatedSignature = CryptoHelper.toHexString(body.digest());
+        if (!calculatedSignature.equalsIgnoreCase(serverSignature)) {
+            errorText = "Server signature " + serverSignature + " doesn't match calculated signature " + calculatedSignature + ", dropping response";
+            Log.e(Const.LOG_TAG, errorText);
+            buildTaskErrorTextSecure(response, body.getText());
+            return null;
+        }
+
+        // The signature is a hash of the config data, so the same verified signature means the same config
+        // The config has been already parsed in the same pass; here we only skip applying it
+        if (settingsHelper.getConfig() != null && calculatedSignature.equalsIgnoreCase(settingsHelper.getConfigHash())) {
+            configUnchanged = true;
+            return null;
+        }
+
+        configETag = response.headers().get(Const.HEADER_ETAG);
+        configHash = serverSignature;
+        return serverConfig;
+    }
+
+    // Same characters as \s in regular expressions
+    // Multi-byte UTF-8 characters never contain these bytes, so the check can be done on raw bytes
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    // Response stream which keeps the bytes read by the parser (they're required for error messages)
+    // and passes the "data" payload to the digest as soon as the bytes are read.
+    // The payload is everything between "data": and the last byte of the response (closing bracket),
+    // so the last byte read is held back until the next read or the end of the stream
+    private static class SignedBodyInputStream extends FilterInputStream {
+        private final ResponseBuffer buffer = new ResponseBuffer();
+        private final MessageDigest md;
+        private int digestStart = -1;
+        private int digestEnd;
+
+        SignedBodyInputStream(InputStream in) throws Exception {
+            super(in);
+            md = MessageDigest.getInstance("SHA-1");
+            md.update(BuildConfig.REQUEST_SIGNATURE.getBytes("UTF-8"));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                buffer.write(b);
+                update();
             }
+            return b;
+        }
 
-            // Check for application errors before checking the signature
-            // Because the errors are not signed
-            if (!Const.STATUS_OK.equals(serverConfigResponse.getStatus())) {
-                isDeviceNotFound = notFoundError.equals(serverConfigResponse.getMessage());
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                buffer.write(b, off, count);
+                update();
             }
+            return count;
+        }
 
-            // Check response signature
-            String serverSignature = response.headers().get(Const.HEADER_RESPONSE_SIGNATURE);
-            if (serverSignature == null) {
-                errorText = "Missing " + Const.HEADER_RESPONSE_SIGNATURE + " flag, dropping response";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes must get to the digest too
+            byte[] b = new byte[(int) Math.min(n, 8192)];
+            int count = read(b, 0, b.length);
+            return count > 0 ? count : 0;
+        }
+
+        // Called when the parser finds the payload start;
+        // the parser may have already read some bytes of the payload
+        void startDigest(int offset) {
+            digestStart = offset;
+            digestEnd = offset;
+            update();
+        }
+
+        void readToEnd() throws IOException {
+            byte[] b = new byte[1024];
+            while (read(b, 0, b.length) != -1) {
             }
+        }
 
-            // We need to extract data from the response body
-            // Here we assume the specific form of response body: {"status":"OK","message":null,"data":{...}}
-            final String dataMarker = "\"data\":";
-            int pos = serverResponse.indexOf(dataMarker);
-            if (pos == -1) {
-                errorText = "Wrong server response, missing data";
-                Log.e(Const.LOG_TAG, errorText + ": " + serverResponse);
-                buildTaskErrorTextSecure(response, serverResponse);
+        byte[] digest() {
+            return md.digest();
+        }
+
+        String getText() {
+            try {
+                return buffer.toString("UTF-8");
+            } catch (UnsupportedEncodingException e) {
                 return null;
             }
-            String serverData = serverResponse.substring(pos + dataMarker.length(), serverResponse.length() - 1);
-            String calculatedSignature = CryptoHelper.getSHA1String(BuildConfig.REQUEST_SIGNATURE + serverData.replaceAll("\\s", ""));
-            if (!calculatedSignature.equalsIgnoreCase(serverSignature)) {
-                errorText = "Server signature " + serverSignature + " doesn't match calculated signature " + calculatedSignature + ", dropping response";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
+        }
+
+        private void update() {
+            if (digestStart == -1) {
+                return;
             }
-            return new ObjectMapper().readValue(serverData, ServerConfig.class);
-        } else {
-            buildTaskErrorTextSecure(response, null);
+            byte[] data = buffer.getArray();
+            int end = buffer.size() - 1;
+            int runStart = digestEnd;
+            for (int n = digestEnd; n < end; n++) {
+                if (isWhitespace(data[n])) {
+                    if (n > runStart) {
+                        md.update(data, runStart, n - runStart);
+                    }
+                    runStart = n + 1;
+                }
+            }
+            if (end > runStart) {
+                md.update(data, runStart, end - runStart);
+            }
+            digestEnd = Math.max(end, digestEnd);
+        }
+    }
+
+    // Gives access to the bytes without copying them
+    private static class ResponseBuffer extends ByteArrayOutputStream {
+        byte[] getArray() {
+            return buf;
         }
-        return null;
     }
 
     private void buildTaskErrorText(Response<ServerConfigResponse> response) {
@@ -389,6 +389,8 @@ public class MainActivity
             @Override
             public void uncaughtException(Thread t, Throwable e) {
                 e.printStackTrace();
+                // Write the buffered logs before the process is killed
+                RemoteLogger.flushNow();
 
                 ProUtils.sendExceptionToCrashlytics(e);
 
@@ -31,6 +31,7 @@ public class CrashLoopProtection {
         SharedPreferences preferences = getStorageContext(context).getSharedPreferences(FAULT_PREFERENCE_NAME, Context.MODE_PRIVATE);
         long faultTime = System.currentTimeMillis();
         long lastFaultTime = preferences.getLong(LAST_FAULT_TIME_PREFERENCE, 0);
+        // The process is going to die, so the counter is committed synchronously
         if (faultTime - lastFaultTime > LOOP_TIME_SPAN) {
             Log.i(Const.LOG_TAG, "Crash registered once");
             preferences.edit()
@@ -57,10 +58,11 @@ public class CrashLoopProtection {
         }
         if (faultTime - lastFaultTime > LOOP_TIME_SPAN) {
             Log.i(Const.LOG_TAG, "No recent crashes registered");
+            // Called at startup from the main thread, so the reset is written in background
             preferences.edit()
                     .putInt(FAULT_COUNTER_PREFERENCE, 0)
                     .putLong(LAST_FAULT_TIME_PREFERENCE, 0)
-                    .commit();
+                    .apply();
             return false;
         }
         int crashCounter = preferences.getInt(FAULT_COUNTER_PREFERENCE, 0);
@@ -51,8 +51,10 @@ public class CryptoUtils {
 
         // to calculate message digest of the input string
         // returned as array of byte
-        byte[] digest = md.digest();
+        return digestToHex(md.digest());
+    }
 
+    public static String digestToHex(byte[] digest) {
         // Convert byte array into signum representation
         BigInteger no = new BigInteger(1, digest);
 
@@ -0,0 +1,265 @@
+package com.hmdm.launcher.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+
+import java.io.File;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Downloads several application files (or install sessions) in parallel while the installer consumes them
+ * in the original order.
+ * The number of simultaneous downloads is limited globally and per host, and downloads can't run
+ * too far ahead of the installer to avoid filling the storage with pending APKs.
+ */
+public class DownloadScheduler {
+    public static final int DEFAULT_MAX_DOWNLOADS = 3;
+    public static final int DEFAULT_MAX_DOWNLOADS_PER_HOST = 2;
+    // How many files (downloading or downloaded) may wait for the installer, relative to maxDownloads
+    private static final int LOOKAHEAD_FACTOR = 2;
+
+    private static class Job {
+        String url;
+        String host;
+        String tempPath;
+        // If set, the APK is written directly to a PackageInstaller session
+        String packageName;
+        int sessionId = -1;
+        boolean started;
+        boolean done;
+        File file;
+        Exception error;
+    }
+
+    private Context context;
+    private int maxDownloads;
+    private int maxDownloadsPerHost;
+    private ExecutorService executor;
+    private LinkedList<Job> queue = new LinkedList<>();
+    private Map<String, Job> jobs = new HashMap<>();
+    private Map<String, Integer> hostDownloads = new HashMap<>();
+    private int runningDownloads;
+    private int startedJobs;
+    private String foregroundUrl;
+    private InstallUtils.DownloadProgress foregroundProgress;
+    private boolean shutdown;
+
+    public DownloadScheduler(Context context, int maxDownloads, int maxDownloadsPerHost) {
+        this.context = context.getApplicationContext();
+        this.maxDownloads = maxDownloads > 0 ? maxDownloads : DEFAULT_MAX_DOWNLOADS;
+        this.maxDownloadsPerHost = maxDownloadsPerHost > 0 ? maxDownloadsPerHost : DEFAULT_MAX_DOWNLOADS_PER_HOST;
+        executor = Executors.newFixedThreadPool(this.maxDownloads);
+    }
+
+    // Schedule the download; the file is then obtained by takeFile() in the installation order
+    public synchronized void enqueue(String url) {
+        if (shutdown || jobs.containsKey(url)) {
+            return;
+        }
+        String tempPath = InstallUtils.getAppTempPath(context, url);
+        for (Job job : jobs.values()) {
+            if (job.packageName == null && job.tempPath.equals(tempPath)) {
+                // Different URLs with the same file name would overwrite each other, download it later
+                return;
+            }
+        }
+        Job job = new Job();
+        job.url = url;
+        job.tempPath = tempPath;
+        addJob(job);
+    }
+
+    // Schedule the download into an install session, obtained then by takeInstallSession()
+    public synchronized void enqueueInstallSession(String url, String packageName) {
+        if (shutdown || jobs.containsKey(url)) {
+            return;
+        }
+        Job job = new Job();
+        job.url = url;
+        job.packageName = packageName;
+        addJob(job);
+    }
+
+    private void addJob(Job job) {
+        try {
+            job.host = new URL(job.url).getHost();
+        } catch (Exception e) {
+            job.host = "";
+        }
+        jobs.put(job.url, job);
+        queue.add(job);
+        dispatch();
+    }
+
+    // Waits until the scheduled download is complete and returns the file
+    // Returns null if the download hasn't been started, so the caller should download it by itself
+    // This method must be called in a background thread
+    public File takeFile(String url, InstallUtils.DownloadProgress progressHandler) throws Exception {
+        Job job = takeJob(url, progressHandler);
+        return job != null ? job.file : null;
+    }
+
+    // Same as takeFile() for the downloads into an install session
+    // Returns -1 if the download hasn't been started
+    public int takeInstallSession(String url, InstallUtils.DownloadProgress progressHandler) throws Exception {
+        Job job = takeJob(url, progressHandler);
+        return job != null ? job.sessionId : -1;
+    }
+
+    private Job takeJob(String url, InstallUtils.DownloadProgress progressHandler) throws Exception {
+        Job job;
+        synchronized (this) {
+            job = jobs.get(url);
+            if (job == null) {
+                return null;
+            }
+            if (!job.started) {
+                queue.remove(job);
+                jobs.remove(url);
+                return null;
+            }
+            foregroundUrl = url;
+            foregroundProgress = progressHandler;
+            while (!job.done) {
+                wait();
+            }
+            foregroundUrl = null;
+            foregroundProgress = null;
+            jobs.remove(url);
+            startedJobs--;
+            dispatch();
+        }
+        if (job.error != null) {
+            throw job.error;
+        }
+        return job;
+    }
+
+    // Drop the download which is not required any more (for example, the app has been skipped)
+    public synchronized void cancel(String url) {
+        Job job = jobs.get(url);
+        if (job == null) {
+            return;
+        }
+        jobs.remove(url);
+        if (!job.started) {
+            queue.remove(job);
+        } else if (job.done) {
+            startedJobs--;
+            discardResult(job);
+            dispatch();
+        }
+        // A running download is discarded when complete
+    }
+
+    // Stop scheduling new downloads and remove the files which haven't been taken by the installer
+    public synchronized void shutdown() {
+        shutdown = true;
+        queue.clear();
+        Iterator<Job> it = jobs.values().iterator();
+        while (it.hasNext()) {
+            Job job = it.next();
+            if (job.done) {
+                discardResult(job);
+            }
+            it.remove();
+        }
+        executor.shutdown();
+    }
+
+    private synchronized void dispatch() {
+        if (shutdown) {
+            return;
+        }
+        Iterator<Job> it = queue.iterator();
+        while (it.hasNext() && runningDownloads < maxDownloads && startedJobs < maxDownloads * LOOKAHEAD_FACTOR) {
+            final Job job = it.next();
+            Integer hostCount = hostDownloads.get(job.host);
+            if (hostCount != null && hostCount >= maxDownloadsPerHost) {
+                continue;
+            }
+            it.remove();
+            job.started = true;
+            runningDownloads++;
+            startedJobs++;
+            hostDownloads.put(job.host, hostCount != null ? hostCount + 1 : 1);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    download(job);
+                }
+            });
+        }
+    }
+
+    private void discardResult(Job job) {
+        if (job.file != null) {
+            InstallUtils.deleteTempApk(job.file);
+        }
+        if (job.sessionId != -1) {
+            InstallUtils.abandonInstallSession(context, job.sessionId);
+        }
+    }
+
+    private void download(final Job job) {
+        Log.d(Const.LOG_TAG, "DownloadScheduler: downloading " + job.url);
+        File file = null;
+        int sessionId = -1;
+        Exception error = null;
+        try {
+            InstallUtils.DownloadProgress jobProgress = new InstallUtils.DownloadProgress() {
+                @Override
+                public void onDownloadProgress(int progress, long total, long current) {
+                    InstallUtils.DownloadProgress progressHandler = null;
+                    synchronized (DownloadScheduler.this) {
+                        if (job.url.equals(foregroundUrl)) {
+                            progressHandler = foregroundProgress;
+                        }
+                    }
+                    // Only the file awaited by the installer reports its progress to UI
+                    if (progressHandler != null) {
+                        progressHandler.onDownloadProgress(progress, total, current);
+                    }
+                }
+            };
+            if (job.packageName != null) {
+                sessionId = InstallUtils.downloadToInstallSession(context, job.url, job.packageName, jobProgress);
+            } else {
+                file = InstallUtils.downloadFile(context, job.url, jobProgress);
+            }
+        } catch (Exception e) {
+            error = e;
+        }
+
+        synchronized (this) {
+            job.file = file;
+            job.sessionId = sessionId;
+            job.error = error;
+            job.done = true;
+            runningDownloads--;
+            int hostCount = hostDownloads.get(job.host) - 1;
+            if (hostCount > 0) {
+                hostDownloads.put(job.host, hostCount);
+            } else {
+                hostDownloads.remove(job.host);
+            }
+            if (shutdown || jobs.get(job.url) != job) {
+                // Nobody will take this file
+                discardResult(job);
+                if (!shutdown) {
+                    startedJobs--;
+                }
+            }
+            notifyAll();
+            dispatch();
+        }
+    }
+}
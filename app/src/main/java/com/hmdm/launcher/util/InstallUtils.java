@@ -52,9 +52,12 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -296,7 +299,18 @@ public class InstallUtils {
     }
 
 
-        public interface DownloadProgress {
+    // Partially downloaded files are kept with these validators to resume the download
+    private static final String RESUME_SUFFIX = ".resume";
+    private static final String RESUME_URL = "url";
+    private static final String RESUME_ETAG = "etag";
+    private static final String RESUME_LAST_MODIFIED = "lastModified";
+    private static final long RESUME_MAX_AGE = 24 * 3600 * 1000L;
+    // Partial downloads into an install session keep the session ID and the number of written bytes instead of a file
+    private static final String SESSION_RESUME_SUFFIX = ".session";
+    private static final String RESUME_SESSION = "session";
+    private static final String RESUME_OFFSET = "offset";
+
+    public interface DownloadProgress {
         void onDownloadProgress(final int progress, final long total, final long current);
     }
 
@@ -307,74 +321,406 @@ public class InstallUtils {
 
     public static File downloadFile(Context context, String strUrl, DownloadProgress progressHandler ) throws Exception {
         File tempFile = new File(context.getExternalFilesDir(null), getFileName(strUrl));
-        if (tempFile.exists()) {
-            tempFile.delete();
+        File resumeFile = new File(tempFile.getAbsolutePath() + RESUME_SUFFIX);
+        Properties resumeData = readResumeData(resumeFile, strUrl);
+        if (resumeData == null || !tempFile.exists()) {
+            resumeData = null;
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+            resumeFile.delete();
         }
+        boolean resumable = false;
 
         try {
             try {
-                tempFile.createNewFile();
+                if (resumeData == null) {
+                    tempFile.createNewFile();
+                }
             } catch (Exception e) {
                 e.printStackTrace();
 
                 tempFile = File.createTempFile(getFileName(strUrl), "temp");
+                resumeFile = null;
             }
 
-            URL url = new URL(strUrl);
+            long offset = resumeData != null ? tempFile.length() : 0;
 
-            HttpURLConnection connection;
-            if (BuildConfig.TRUST_ANY_CERTIFICATE && url.getProtocol().toLowerCase().equals("https")) {
-                connection = (HttpsURLConnection) url.openConnection();
-                ((HttpsURLConnection) connection).setHostnameVerifier(DO_NOT_VERIFY);
-            } else {
-                connection = (HttpURLConnection) url.openConnection();
-            }
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Accept-Encoding", "identity");
-            connection.setConnectTimeout((int) Const.CONNECTION_TIMEOUT);
-            connection.setReadTimeout((int) Const.CONNECTION_TIMEOUT);
-            String signature = getRequestSignature(strUrl);
-            if (signature != null) {
-                connection.setRequestProperty("X-Request-Signature", signature);
+            HttpURLConnection connection = openDownloadConnection(strUrl);
+            if (offset > 0) {
+                // If-Range makes the server send the whole file if it has been changed since the partial download
+                String validator = resumeData.getProperty(RESUME_ETAG) != null ?
+                        resumeData.getProperty(RESUME_ETAG) : resumeData.getProperty(RESUME_LAST_MODIFIED);
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                connection.setRequestProperty("If-Range", validator);
+                Log.d(Const.LOG_TAG, "Resuming download of " + strUrl + " from " + offset + " bytes");
             }
             connection.connect();
 
-            if (connection.getResponseCode() != 200) {
-                throw new Exception("Bad server response for " + strUrl + ": " + connection.getResponseCode());
+            int responseCode = connection.getResponseCode();
+            if (offset > 0 && responseCode == 416) {
+                // Range not satisfiable: the partial file doesn't match the server file, download it again
+                connection.disconnect();
+                tempFile.delete();
+                resumeFile.delete();
+                return downloadFile(context, strUrl, progressHandler);
+            }
+            if (responseCode == 206) {
+                if (offset == 0 || getContentRangeStart(connection) != offset) {
+                    throw new Exception("Unexpected partial content for " + strUrl);
+                }
+            } else if (responseCode == 200) {
+                if (offset > 0) {
+                    // Server ignored the range or the file has been changed: download the whole file
+                    Log.d(Const.LOG_TAG, "Range request ignored, downloading the whole file " + strUrl);
+                    offset = 0;
+                }
+            } else {
+                throw new Exception("Bad server response for " + strUrl + ": " + responseCode);
             }
 
-            int lengthOfFile = connection.getContentLength();
+            String etag = connection.getHeaderField("ETag");
+            String lastModified = connection.getHeaderField("Last-Modified");
+            if (resumeFile != null && (etag != null || lastModified != null)) {
+                // Remember the validators so we could resume the download if it's interrupted
+                writeResumeData(resumeFile, createResumeData(strUrl, etag, lastModified));
+                resumable = true;
+            } else if (offset > 0) {
+                // Partial content of the same file, earlier validators are still valid
+                resumable = true;
+            } else if (resumeFile != null) {
+                resumeFile.delete();
+            }
 
-            progressHandler.onDownloadProgress(0, lengthOfFile, 0);
+            long lengthOfFile = connection.getContentLength();
+            if (lengthOfFile >= 0) {
+                lengthOfFile += offset;
+            }
+
+            progressHandler.onDownloadProgress(0, lengthOfFile, offset);
 
             InputStream is = connection.getInputStream();
             DataInputStream dis = new DataInputStream(is);
 
             byte[] buffer = new byte[1024];
             int length;
-            long total = 0;
+            long total = offset;
 
-            FileOutputStream fos = new FileOutputStream(tempFile);
-            while ((length = dis.read(buffer)) > 0) {
-                total += length;
-                progressHandler.onDownloadProgress(
-                        (int) ((total * 100.0f) / lengthOfFile),
-                        lengthOfFile,
-                        total);
-                fos.write(buffer, 0, length);
+            FileOutputStream fos = new FileOutputStream(tempFile, offset > 0);
+            try {
+                while ((length = dis.read(buffer)) > 0) {
+                    total += length;
+                    progressHandler.onDownloadProgress(
+                            (int) ((total * 100.0f) / lengthOfFile),
+                            lengthOfFile,
+                            total);
+                    fos.write(buffer, 0, length);
+                }
+                fos.flush();
+            } finally {
+                fos.close();
+                dis.close();
+            }
+            if (lengthOfFile >= 0 && total < lengthOfFile) {
+                throw new Exception("Connection closed after " + total + " of " + lengthOfFile + " bytes of " + strUrl);
             }
-            fos.flush();
-            fos.close();
-
-            dis.close();
         } catch (Exception e) {
-            tempFile.delete();
+            // Keep the partial file if it could be resumed at the next attempt
+            if (!resumable || tempFile.length() == 0) {
+                tempFile.delete();
+                if (resumeFile != null) {
+                    resumeFile.delete();
+                }
+            }
             throw e;
         }
 
+        if (resumeFile != null) {
+            resumeFile.delete();
+        }
         return tempFile;
     }
 
+    private static HttpURLConnection openDownloadConnection(String strUrl) throws Exception {
+        URL url = new URL(strUrl);
+
+        HttpURLConnection connection;
+        if (BuildConfig.TRUST_ANY_CERTIFICATE && url.getProtocol().toLowerCase().equals("https")) {
+            connection = (HttpsURLConnection) url.openConnection();
+            ((HttpsURLConnection) connection).setHostnameVerifier(DO_NOT_VERIFY);
+        } else {
+            connection = (HttpURLConnection) url.openConnection();
+        }
+        connection.setRequestMethod("GET");
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        connection.setConnectTimeout((int) Const.CONNECTION_TIMEOUT);
+        connection.setReadTimeout((int) Const.CONNECTION_TIMEOUT);
+        String signature = getRequestSignature(strUrl);
+        if (signature != null) {
+            connection.setRequestProperty("X-Request-Signature", signature);
+        }
+        return connection;
+    }
+
+    // Device owner can write the downloaded APK directly to the installer session, avoiding a temporary copy
+    // XAPK files need to be extracted first, so they are still downloaded to a file
+    public static boolean canInstallFromStream(Context context, String strUrl) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
+                (Utils.isDeviceOwner(context) || BuildConfig.SYSTEM_PRIVILEGES) &&
+                !getFileName(strUrl).endsWith(".xapk");
+    }
+
+    // Download the APK into a PackageInstaller session
+    // Returns the session ID; the session must be then committed by commitInstallSession() or abandoned
+    // The APK is not verified here: the config carries no hash of it, and the installer checks the APK signature
+    // If the download is interrupted, the session is kept with the resume data (validators, session ID and the number
+    // of written bytes), so the next attempt continues writing to the same session, like downloadFile() does
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public static int downloadToInstallSession(Context context, String strUrl, String packageName,
+                                               DownloadProgress progressHandler) throws Exception {
+        PackageInstaller packageInstaller = context.getPackageManager().getPackageInstaller();
+        File resumeFile = new File(getAppTempPath(context, strUrl) + SESSION_RESUME_SUFFIX);
+        Properties resumeData = readResumeData(resumeFile, strUrl);
+        int sessionId = -1;
+        long offset = 0;
+        if (resumeData != null) {
+            try {
+                sessionId = Integer.parseInt(resumeData.getProperty(RESUME_SESSION));
+                offset = Long.parseLong(resumeData.getProperty(RESUME_OFFSET));
+            } catch (Exception e) {
+                sessionId = -1;
+            }
+            if (sessionId == -1 || packageInstaller.getSessionInfo(sessionId) == null) {
+                // The session has been removed (for example, by the system after the reboot)
+                resumeData = null;
+                sessionId = -1;
+                offset = 0;
+            }
+        }
+        if (resumeData == null) {
+            resumeFile.delete();
+        }
+
+        HttpURLConnection connection = openDownloadConnection(strUrl);
+        try {
+            if (offset > 0) {
+                // If-Range makes the server send the whole file if it has been changed since the partial download
+                String validator = resumeData.getProperty(RESUME_ETAG) != null ?
+                        resumeData.getProperty(RESUME_ETAG) : resumeData.getProperty(RESUME_LAST_MODIFIED);
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                connection.setRequestProperty("If-Range", validator);
+                Log.d(Const.LOG_TAG, "Resuming download of " + strUrl + " to install session " + sessionId +
+                        " from " + offset + " bytes");
+            }
+            connection.connect();
+
+            int responseCode = connection.getResponseCode();
+            if (offset > 0 && responseCode == 416) {
+                // Range not satisfiable: the partial session doesn't match the server file, download it again
+                connection.disconnect();
+                abandonInstallSession(context, sessionId);
+                resumeFile.delete();
+                return downloadToInstallSession(context, strUrl, packageName, progressHandler);
+            }
+            if (responseCode == 206) {
+                if (offset == 0 || getContentRangeStart(connection) != offset) {
+                    abandonInstallSession(context, sessionId);
+                    resumeFile.delete();
+                    throw new Exception("Unexpected partial content for " + strUrl);
+                }
+            } else if (responseCode == 200) {
+                if (offset > 0) {
+                    // Server ignored the range or the file has been changed: download the whole file to a new session
+                    Log.d(Const.LOG_TAG, "Range request ignored, downloading the whole file " + strUrl);
+                    abandonInstallSession(context, sessionId);
+                    resumeFile.delete();
+                    resumeData = null;
+                    sessionId = -1;
+                    offset = 0;
+                }
+            } else {
+                throw new Exception("Bad server response for " + strUrl + ": " + responseCode);
+            }
+
+            if (offset == 0) {
+                // Remember the validators so we could resume the download if it's interrupted
+                String etag = connection.getHeaderField("ETag");
+                String lastModified = connection.getHeaderField("Last-Modified");
+                resumeData = etag != null || lastModified != null ? createResumeData(strUrl, etag, lastModified) : null;
+            }
+
+            long lengthOfFile = connection.getContentLength();
+            if (lengthOfFile >= 0) {
+                lengthOfFile += offset;
+            }
+
+            if (sessionId == -1) {
+                PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
+                        PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+                params.setAppPackageName(packageName);
+                if (lengthOfFile > 0) {
+                    params.setSize(lengthOfFile);
+                }
+                sessionId = packageInstaller.createSession(params);
+            }
+
+            long total = offset;
+            boolean synced = false;
+            PackageInstaller.Session session = null;
+            try {
+                session = packageInstaller.openSession(sessionId);
+                progressHandler.onDownloadProgress(0, lengthOfFile, offset);
+
+                InputStream in = connection.getInputStream();
+                OutputStream out = session.openWrite("COSU", offset, lengthOfFile > 0 ? lengthOfFile - offset : -1);
+                try {
+                    byte[] buffer = new byte[65536];
+                    int c;
+                    while ((c = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, c);
+                        total += c;
+                        progressHandler.onDownloadProgress(
+                                (int) ((total * 100.0f) / lengthOfFile),
+                                lengthOfFile,
+                                total);
+                    }
+                } finally {
+                    // The written part must be on the storage before it's recorded as resumable
+                    try {
+                        session.fsync(out);
+                        synced = true;
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    out.close();
+                    in.close();
+                }
+                if (!synced) {
+                    throw new Exception("Failed to sync install session " + sessionId);
+                }
+                if (lengthOfFile >= 0 && total < lengthOfFile) {
+                    throw new Exception("Connection closed after " + total + " of " + lengthOfFile + " bytes of " + strUrl);
+                }
+                session.close();
+            } catch (Exception e) {
+                if (resumeData != null && synced && total > 0) {
+                    // Keep the partial session to resume the download at the next attempt
+                    resumeData.setProperty(RESUME_SESSION, Integer.toString(sessionId));
+                    resumeData.setProperty(RESUME_OFFSET, Long.toString(total));
+                    writeResumeData(resumeFile, resumeData);
+                    session.close();
+                } else {
+                    resumeFile.delete();
+                    if (session != null) {
+                        session.abandon();
+                    } else {
+                        abandonInstallSession(context, sessionId);
+                    }
+                }
+                throw e;
+            }
+            resumeFile.delete();
+
+            Log.d(Const.LOG_TAG, "Downloaded " + packageName + " to install session " + sessionId +
+                    ", size: " + total);
+            return sessionId;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public static void commitInstallSession(Context context, int sessionId, String packageName, InstallErrorHandler errorHandler) {
+        try {
+            Log.i(Const.LOG_TAG, "Installing " + packageName);
+            PackageInstaller packageInstaller = context.getPackageManager().getPackageInstaller();
+            PackageInstaller.Session session = packageInstaller.openSession(sessionId);
+            session.commit(createIntentSender(context, sessionId, packageName));
+            session.close();
+            Log.i(Const.LOG_TAG, "Installation session committed");
+        } catch (Exception e) {
+            Log.w(Const.LOG_TAG, "PackageInstaller error: " + e.getMessage());
+            e.printStackTrace();
+            abandonInstallSession(context, sessionId);
+            errorHandler.onInstallError(e.getMessage());
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public static void abandonInstallSession(Context context, int sessionId) {
+        try {
+            context.getPackageManager().getPackageInstaller().openSession(sessionId).abandon();
+        } catch (Exception e) {
+            // Session already committed or abandoned
+        }
+    }
+
+    private static long getContentRangeStart(HttpURLConnection connection) {
+        // Content-Range: bytes 1000-9999/10000
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int dashIndex = contentRange.indexOf('-');
+        if (dashIndex == -1) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(6, dashIndex).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Returns the saved validators of a partially downloaded file, or null if the download can't be resumed
+    private static Properties readResumeData(File resumeFile, String strUrl) {
+        if (!resumeFile.exists()) {
+            return null;
+        }
+        Properties resumeData = new Properties();
+        try {
+            FileInputStream fis = new FileInputStream(resumeFile);
+            try {
+                resumeData.load(fis);
+            } finally {
+                fis.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (!strUrl.equals(resumeData.getProperty(RESUME_URL)) ||
+                (resumeData.getProperty(RESUME_ETAG) == null && resumeData.getProperty(RESUME_LAST_MODIFIED) == null)) {
+            return null;
+        }
+        return resumeData;
+    }
+
+    private static Properties createResumeData(String strUrl, String etag, String lastModified) {
+        Properties resumeData = new Properties();
+        resumeData.setProperty(RESUME_URL, strUrl);
+        if (etag != null) {
+            resumeData.setProperty(RESUME_ETAG, etag);
+        }
+        if (lastModified != null) {
+            resumeData.setProperty(RESUME_LAST_MODIFIED, lastModified);
+        }
+        return resumeData;
+    }
+
+    private static void writeResumeData(File resumeFile, Properties resumeData) {
+        try {
+            FileOutputStream fos = new FileOutputStream(resumeFile);
+            try {
+                resumeData.store(fos, null);
+            } finally {
+                fos.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     public static String getRequestSignature(String strUrl) {
         int index = strUrl.indexOf("/files/", 0);
         if (index == -1) {
@@ -588,6 +934,48 @@ public class InstallUtils {
         }
     }
 
+    private static boolean isResumableDownload(File file) {
+        File resumeFile = file.getName().endsWith(RESUME_SUFFIX) ? file :
+                new File(file.getAbsolutePath() + RESUME_SUFFIX);
+        if (!resumeFile.exists() || System.currentTimeMillis() - resumeFile.lastModified() > RESUME_MAX_AGE) {
+            return false;
+        }
+        String resumeFilePath = resumeFile.getAbsolutePath();
+        File partialFile = new File(resumeFilePath.substring(0, resumeFilePath.length() - RESUME_SUFFIX.length()));
+        return partialFile.exists();
+    }
+
+    private static boolean isResumableSession(File file) {
+        return file.getName().endsWith(SESSION_RESUME_SUFFIX) &&
+                System.currentTimeMillis() - file.lastModified() <= RESUME_MAX_AGE;
+    }
+
+    // IDs of install sessions with recent partial downloads
+    private static Set<Integer> getResumableSessions(Context context) {
+        Set<Integer> sessions = new HashSet<>();
+        try {
+            for (File child : context.getExternalFilesDir(null).listFiles()) {
+                if (!isResumableSession(child)) {
+                    continue;
+                }
+                Properties resumeData = new Properties();
+                FileInputStream fis = new FileInputStream(child);
+                try {
+                    resumeData.load(fis);
+                } finally {
+                    fis.close();
+                }
+                String sessionId = resumeData.getProperty(RESUME_SESSION);
+                if (sessionId != null) {
+                    sessions.add(Integer.parseInt(sessionId));
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return sessions;
+    }
+
     private static void deleteRecursive(File fileOrDirectory) {
         if (fileOrDirectory.isDirectory())
             for (File child : fileOrDirectory.listFiles())
@@ -597,6 +985,19 @@ public class InstallUtils {
     }
 
     public static void clearTempFiles(Context context) {
+        Set<Integer> resumableSessions = getResumableSessions(context);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // Sessions left by downloads interrupted by the launcher restart, except the recent ones to be resumed
+            try {
+                for (PackageInstaller.SessionInfo sessionInfo : context.getPackageManager().getPackageInstaller().getMySessions()) {
+                    if (!sessionInfo.isActive() && !resumableSessions.contains(sessionInfo.getSessionId())) {
+                        abandonInstallSession(context, sessionInfo.getSessionId());
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
         try {
             File filesDir = context.getExternalFilesDir(null);
             for (File child : filesDir.listFiles()) {
@@ -605,6 +1006,10 @@ public class InstallUtils {
                     // These are names which should be kept here
                     continue;
                 }
+                if (isResumableDownload(child) || isResumableSession(child)) {
+                    // Recent partial downloads are kept to be resumed
+                    continue;
+                }
                 if (child.isDirectory()) {
                     deleteRecursive(child);
                 } else {
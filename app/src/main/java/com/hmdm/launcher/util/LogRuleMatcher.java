@@ -0,0 +1,186 @@
+package com.hmdm.launcher.util;
+
+import com.hmdm.launcher.json.RemoteLogConfig;
+import com.hmdm.launcher.json.RemoteLogItem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable in-memory form of the remote log rules.
+ * A log item matches if there's a rule for its package with the same or higher level,
+ * and the rule filter is empty or contained in the message (same as SQL LIKE '%filter%':
+ * case-insensitive for ASCII letters, '%' and '_' are wildcards).
+ * Filters of each package are compiled into an Aho-Corasick automaton, so the message is scanned once.
+ */
+public class LogRuleMatcher {
+
+    private static final int NO_LEVEL = Integer.MIN_VALUE;
+
+    private static class PackageRules {
+        // Highest level of the rules without a filter
+        int unfilteredLevel = NO_LEVEL;
+        // Highest level of the rules with a filter
+        int filteredLevel = NO_LEVEL;
+        Automaton automaton;
+        List<Pattern> wildcardPatterns = new ArrayList<>();
+        List<Integer> wildcardLevels = new ArrayList<>();
+    }
+
+    private static class Node {
+        Map<Character, Node> next = new HashMap<>();
+        Node fail;
+        // Highest level of the filters ending at this node (or at its suffixes)
+        int level = NO_LEVEL;
+    }
+
+    private static class Automaton {
+        Node root = new Node();
+
+        void add(String filter, int level) {
+            Node node = root;
+            for (int n = 0; n < filter.length(); n++) {
+                char c = toLower(filter.charAt(n));
+                Node child = node.next.get(c);
+                if (child == null) {
+                    child = new Node();
+                    node.next.put(c, child);
+                }
+                node = child;
+            }
+            node.level = Math.max(node.level, level);
+        }
+
+        // Build failure links in breadth-first order
+        void build() {
+            LinkedList<Node> queue = new LinkedList<>();
+            for (Node child : root.next.values()) {
+                child.fail = root;
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                Node node = queue.removeFirst();
+                for (Map.Entry<Character, Node> entry : node.next.entrySet()) {
+                    Node child = entry.getValue();
+                    Node fail = node.fail;
+                    while (fail != null && !fail.next.containsKey(entry.getKey())) {
+                        fail = fail.fail;
+                    }
+                    child.fail = fail != null ? fail.next.get(entry.getKey()) : root;
+                    child.level = Math.max(child.level, child.fail.level);
+                    queue.add(child);
+                }
+            }
+        }
+
+        // Returns true if the text contains a filter with the level not lower than the given one
+        boolean find(String text, int level) {
+            Node node = root;
+            for (int n = 0; n < text.length(); n++) {
+                char c = toLower(text.charAt(n));
+                while (node != root && !node.next.containsKey(c)) {
+                    node = node.fail;
+                }
+                Node child = node.next.get(c);
+                node = child != null ? child : root;
+                if (node.level >= level) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final Map<String, PackageRules> rules = new HashMap<>();
+
+    public LogRuleMatcher(List<RemoteLogConfig> ruleList) {
+        if (ruleList != null) {
+            for (RemoteLogConfig rule : ruleList) {
+                if (rule.getPackageId() == null) {
+                    continue;
+                }
+                PackageRules packageRules = rules.get(rule.getPackageId());
+                if (packageRules == null) {
+                    packageRules = new PackageRules();
+                    rules.put(rule.getPackageId(), packageRules);
+                }
+                String filter = rule.getFilter();
+                if (filter == null || filter.equals("")) {
+                    packageRules.unfilteredLevel = Math.max(packageRules.unfilteredLevel, rule.getLogLevel());
+                } else if (filter.indexOf('%') != -1 || filter.indexOf('_') != -1) {
+                    packageRules.wildcardPatterns.add(compileLikePattern(filter));
+                    packageRules.wildcardLevels.add(rule.getLogLevel());
+                } else {
+                    if (packageRules.automaton == null) {
+                        packageRules.automaton = new Automaton();
+                    }
+                    packageRules.automaton.add(filter, rule.getLogLevel());
+                    packageRules.filteredLevel = Math.max(packageRules.filteredLevel, rule.getLogLevel());
+                }
+            }
+        }
+        for (PackageRules packageRules : rules.values()) {
+            if (packageRules.automaton != null) {
+                packageRules.automaton.build();
+            }
+        }
+    }
+
+    public boolean match(RemoteLogItem item) {
+        if (item.getPackageId() == null) {
+            return false;
+        }
+        PackageRules packageRules = rules.get(item.getPackageId());
+        if (packageRules == null) {
+            return false;
+        }
+        int level = item.getLogLevel();
+        if (packageRules.unfilteredLevel >= level) {
+            return true;
+        }
+        String message = item.getMessage();
+        if (message == null) {
+            return false;
+        }
+        if (packageRules.filteredLevel >= level && packageRules.automaton.find(message, level)) {
+            return true;
+        }
+        for (int n = 0; n < packageRules.wildcardPatterns.size(); n++) {
+            if (packageRules.wildcardLevels.get(n) >= level &&
+                    packageRules.wildcardPatterns.get(n).matcher(message).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // SQLite LIKE is case-insensitive only for ASCII letters
+    private static char toLower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c;
+    }
+
+    private static Pattern compileLikePattern(String filter) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int n = 0; n < filter.length(); n++) {
+            char c = filter.charAt(n);
+            if (c == '%' || c == '_') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '%' ? "(?s:.*)" : "(?s:.)");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+    }
+}
@@ -0,0 +1,268 @@
+package com.hmdm.launcher.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+
+import java.util.Map;
+
+/**
+ * Learns the longest MQTT keepalive interval which survives the NAT of the current network.
+ * Each ping wakes the device up, so a longer interval saves battery; but if the interval exceeds
+ * the NAT timeout, the connection is silently dropped and push messages are lost until the client notices.
+ * The controller starts with a short interval and probes longer ones; an interval is confirmed
+ * after several successful pings, a missed ping during the probe brings it back. If the confirmed interval fails
+ * several times in a row (the NAT timeout has become shorter), it is halved. Learned intervals are stored per network
+ * (Wi-Fi SSID or mobile operator) and never exceed the keepalive time set on the server.
+ * The keepalive interval is negotiated on connection, so a new interval requires reconnection.
+ */
+public class MqttKeepaliveController {
+    private static MqttKeepaliveController instance;
+
+    private static final String PREFERENCES_NAME = "com.hmdm.launcher.mqtt_keepalive";
+
+    private static final int MIN_KEEPALIVE_SEC = 30;
+    private static final int INITIAL_KEEPALIVE_SEC = 120;
+    // Granularity of probed intervals
+    private static final int STEP_SEC = 30;
+    // Successful pings required to consider an interval safe
+    private static final int CONFIRM_PINGS = 3;
+    // Failed pings in a row at the confirmed interval after which it is lowered
+    private static final int SAFE_FAILURES = 3;
+    // A failed interval is not probed again during this time (NAT settings may change)
+    private static final long PROBE_RETRY_MS = 24 * 3600000L;
+    private static final int MAX_NETWORKS = 20;
+
+    // Interval learned for a network
+    private static class NetworkState {
+        // Longest confirmed interval
+        int safe;
+        // Shortest failed interval, 0 if none
+        int ceiling;
+        long ceilingTime;
+        long lastUsed;
+        // Failed pings in a row at the confirmed interval
+        int safeFailures;
+
+        static NetworkState parse(String value) {
+            NetworkState state = new NetworkState();
+            if (value != null) {
+                try {
+                    String[] parts = value.split(";");
+                    state.safe = Integer.parseInt(parts[0]);
+                    state.ceiling = Integer.parseInt(parts[1]);
+                    state.ceilingTime = Long.parseLong(parts[2]);
+                    state.lastUsed = Long.parseLong(parts[3]);
+                    if (parts.length > 4) {
+                        state.safeFailures = Integer.parseInt(parts[4]);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    state = new NetworkState();
+                }
+            }
+            return state;
+        }
+
+        @Override
+        public String toString() {
+            return safe + ";" + ceiling + ";" + ceilingTime + ";" + lastUsed + ";" + safeFailures;
+        }
+    }
+
+    private String networkKey;
+    private NetworkState networkState;
+    private int serverKeepalive;
+    // Keepalive interval of the current connection
+    private int keepalive;
+    private int successfulPings;
+    private Runnable changeListener;
+
+    private MqttKeepaliveController() {
+    }
+
+    public static synchronized MqttKeepaliveController getInstance() {
+        if (instance == null) {
+            instance = new MqttKeepaliveController();
+        }
+        return instance;
+    }
+
+    // Called when the keepalive interval should be changed (a longer one is to be probed)
+    public synchronized void setChangeListener(Runnable changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Get the keepalive interval for a new connection in the current network
+     *
+     * @param serverKeepalive keepalive time set on the server, the interval never exceeds it
+     */
+    public synchronized int getKeepalive(Context context, int serverKeepalive) {
+        this.serverKeepalive = serverKeepalive;
+        networkKey = getNetworkKey(context);
+        networkState = NetworkState.parse(getPreferences(context).getString(networkKey, null));
+        if (networkState.safe == 0) {
+            networkState.safe = Math.min(INITIAL_KEEPALIVE_SEC, serverKeepalive);
+        }
+        networkState.lastUsed = System.currentTimeMillis();
+        save(context);
+
+        keepalive = getProbeInterval();
+        if (keepalive == 0) {
+            keepalive = Math.max(Math.min(networkState.safe, serverKeepalive), Math.min(MIN_KEEPALIVE_SEC, serverKeepalive));
+        }
+        successfulPings = 0;
+        Log.d(Const.LOG_TAG, "MQTT keepalive for " + networkKey + ": " + keepalive + " sec, safe " +
+                networkState.safe + " sec, server " + serverKeepalive + " sec");
+        return keepalive;
+    }
+
+    // Called by the ping sender when the server responded to a ping
+    public synchronized void onPingSuccess(Context context) {
+        if (networkState == null) {
+            return;
+        }
+        successfulPings++;
+        if (networkState.safeFailures > 0 && keepalive <= networkState.safe) {
+            networkState.safeFailures = 0;
+            save(context);
+        }
+        if (successfulPings != CONFIRM_PINGS) {
+            return;
+        }
+        if (keepalive > networkState.safe) {
+            networkState.safe = keepalive;
+            if (networkState.ceiling != 0 && networkState.ceiling <= keepalive) {
+                networkState.ceiling = 0;
+            }
+            save(context);
+            RemoteLogger.log(context, Const.LOG_DEBUG, "MQTT keepalive " + keepalive + " sec confirmed for " + networkKey);
+        }
+        if (getProbeInterval() > keepalive) {
+            notifyChange();
+        }
+    }
+
+    // Called by the ping sender when the ping failed (no response from the server).
+    // The result is only recorded: the broken connection is restored by the reconnect controller,
+    // and the new connection gets the interval from getKeepalive()
+    public synchronized void onPingFailure(Context context) {
+        if (networkState == null) {
+            return;
+        }
+        if (!getNetworkKey(context).equals(networkKey)) {
+            // The network has changed, this tells nothing about the NAT timeout
+            return;
+        }
+        if (keepalive <= networkState.safe) {
+            // The confirmed interval failed: a single failure is most likely transient,
+            // but repeated failures mean that the NAT timeout has become shorter
+            networkState.safeFailures++;
+            if (networkState.safeFailures < SAFE_FAILURES || networkState.safe <= MIN_KEEPALIVE_SEC) {
+                save(context);
+                Log.d(Const.LOG_TAG, "MQTT keepalive " + keepalive + " sec failed for " + networkKey + " (" +
+                        networkState.safeFailures + " in a row), interval kept");
+                return;
+            }
+            int failed = networkState.safe;
+            networkState.safe = Math.max(MIN_KEEPALIVE_SEC, roundDown(failed / 2));
+            networkState.ceiling = failed;
+            networkState.ceilingTime = System.currentTimeMillis();
+            networkState.safeFailures = 0;
+            save(context);
+            RemoteLogger.log(context, Const.LOG_INFO, "MQTT keepalive " + failed + " sec failed " + SAFE_FAILURES +
+                    " times in a row for " + networkKey + ", lowered to " + networkState.safe + " sec");
+            return;
+        }
+        // The probed interval failed
+        networkState.ceiling = keepalive;
+        networkState.ceilingTime = System.currentTimeMillis();
+        save(context);
+        RemoteLogger.log(context, Const.LOG_INFO, "MQTT keepalive " + keepalive + " sec failed for " + networkKey +
+                ", falling back to " + networkState.safe + " sec");
+    }
+
+    // Interval to probe, or 0 if there's nothing to probe
+    private int getProbeInterval() {
+        int limit = serverKeepalive;
+        if (networkState.ceiling != 0 && System.currentTimeMillis() - networkState.ceilingTime < PROBE_RETRY_MS) {
+            limit = Math.min(limit, networkState.ceiling - STEP_SEC);
+        }
+        int next = Math.min(roundDown(networkState.safe * 3 / 2), limit);
+        if (networkState.ceiling != 0 && next == limit && limit < serverKeepalive) {
+            // Binary search between the safe and the failed interval
+            next = roundDown((networkState.safe + networkState.ceiling) / 2);
+        }
+        return next > networkState.safe ? next : 0;
+    }
+
+    private void notifyChange() {
+        if (changeListener != null) {
+            changeListener.run();
+        }
+    }
+
+    private static int roundDown(int value) {
+        return Math.max(STEP_SEC, value / STEP_SEC * STEP_SEC);
+    }
+
+    private SharedPreferences getPreferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    private void save(Context context) {
+        SharedPreferences preferences = getPreferences(context);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putString(networkKey, networkState.toString());
+        Map<String, ?> all = preferences.getAll();
+        if (all.size() > MAX_NETWORKS) {
+            // Forget the network which wasn't used for the longest time
+            String eldestKey = null;
+            long eldestTime = Long.MAX_VALUE;
+            for (Map.Entry<String, ?> entry : all.entrySet()) {
+                long lastUsed = NetworkState.parse(String.valueOf(entry.getValue())).lastUsed;
+                if (!entry.getKey().equals(networkKey) && lastUsed < eldestTime) {
+                    eldestKey = entry.getKey();
+                    eldestTime = lastUsed;
+                }
+            }
+            if (eldestKey != null) {
+                editor.remove(eldestKey);
+            }
+        }
+        editor.apply();
+    }
+
+    private static String getNetworkKey(Context context) {
+        try {
+            ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo info = cm != null ? cm.getActiveNetworkInfo() : null;
+            if (info == null) {
+                return "none";
+            }
+            if (info.getType() == ConnectivityManager.TYPE_WIFI) {
+                WifiManager wifiManager = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+                WifiInfo wifiInfo = wifiManager != null ? wifiManager.getConnectionInfo() : null;
+                // SSID is unknown if there's no location permission
+                String ssid = wifiInfo != null ? wifiInfo.getSSID() : null;
+                return "wifi:" + (ssid != null && !ssid.equals("<unknown ssid>") ? ssid : "");
+            }
+            if (info.getType() == ConnectivityManager.TYPE_MOBILE) {
+                TelephonyManager tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+                return "mobile:" + (tm != null ? tm.getNetworkOperator() : "");
+            }
+            return info.getTypeName();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return "none";
+        }
+    }
+}
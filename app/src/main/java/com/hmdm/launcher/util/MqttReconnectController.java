@@ -0,0 +1,217 @@
+package com.hmdm.launcher.util;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+
+import java.util.Random;
+
+/**
+ * Decides when the MQTT client should reconnect after a failure.
+ * Reconnection is done immediately (with a small spread) when a validated network appears;
+ * otherwise the delay grows exponentially with full jitter (a random delay between 0 and the limit),
+ * so devices which lost the connection at the same time don't reconnect in lockstep.
+ * Paho's automatic reconnect is disabled: this controller handles both failed connection attempts and lost connections.
+ */
+public class MqttReconnectController {
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_WAITING_NETWORK = 3;
+    public static final int STATE_BACKOFF = 4;
+
+    private static final String[] STATE_NAMES = {"idle", "connecting", "connected", "waiting for network", "backoff"};
+
+    private static final long BASE_DELAY_MS = 5000;
+    private static final long MAX_DELAY_MS = 900000;
+    // Spread of reconnections when a network appears (devices behind the same access point get it at once)
+    private static final long NETWORK_JITTER_MS = 3000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Random random = new Random();
+    private final Context context;
+    private final Runnable reconnectAction;
+    private ConnectivityManager.NetworkCallback networkCallback;
+
+    private int state = STATE_IDLE;
+    private int attempt;
+    private long nextAttemptTime;
+    private boolean networkValidated = true;
+
+    private final Runnable reconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            setState(STATE_CONNECTING);
+            reconnectAction.run();
+        }
+    };
+
+    public MqttReconnectController(Context context, Runnable reconnectAction) {
+        this.context = context.getApplicationContext();
+        this.reconnectAction = reconnectAction;
+    }
+
+    // All methods must be called from the main thread
+
+    public void onConnecting() {
+        registerNetworkCallback();
+        handler.removeCallbacks(reconnectRunnable);
+        setState(STATE_CONNECTING);
+    }
+
+    public void onConnected() {
+        handler.removeCallbacks(reconnectRunnable);
+        attempt = 0;
+        setState(STATE_CONNECTED);
+    }
+
+    public void onFailure() {
+        if (state == STATE_IDLE) {
+            return;
+        }
+        handler.removeCallbacks(reconnectRunnable);
+        if (!networkValidated) {
+            // Reconnect when the network appears
+            setState(STATE_WAITING_NETWORK);
+            return;
+        }
+        long limit = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(attempt, 20));
+        attempt++;
+        schedule((long) (random.nextDouble() * limit));
+    }
+
+    public void stop() {
+        handler.removeCallbacks(reconnectRunnable);
+        unregisterNetworkCallback();
+        attempt = 0;
+        setState(STATE_IDLE);
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    private void schedule(long delay) {
+        nextAttemptTime = System.currentTimeMillis() + delay;
+        setState(STATE_BACKOFF);
+        handler.postDelayed(reconnectRunnable, delay);
+    }
+
+    private void onNetworkChanged(boolean validated) {
+        boolean appeared = validated && !networkValidated;
+        networkValidated = validated;
+        if (appeared && (state == STATE_WAITING_NETWORK || state == STATE_BACKOFF)) {
+            handler.removeCallbacks(reconnectRunnable);
+            attempt = 0;
+            schedule((long) (random.nextDouble() * NETWORK_JITTER_MS));
+        }
+    }
+
+    private void setState(int newState) {
+        if (state != newState) {
+            state = newState;
+            Log.d(Const.LOG_TAG, "MQTT reconnect: " + this);
+        }
+    }
+
+    private void registerNetworkCallback() {
+        if (networkCallback != null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null) {
+            return;
+        }
+        networkValidated = isNetworkValidated(cm);
+        networkCallback = createNetworkCallback(cm);
+        try {
+            NetworkRequest request = new NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build();
+            cm.registerNetworkCallback(request, networkCallback);
+        } catch (Exception e) {
+            e.printStackTrace();
+            networkCallback = null;
+            networkValidated = true;
+        }
+    }
+
+    private void unregisterNetworkCallback() {
+        if (networkCallback == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        try {
+            cm.unregisterNetworkCallback(networkCallback);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        networkCallback = null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ConnectivityManager.NetworkCallback createNetworkCallback(final ConnectivityManager cm) {
+        // Callbacks are called in a system thread
+        return new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                    // No validation info on older versions
+                    notifyNetworkChanged(true);
+                }
+            }
+
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M &&
+                        capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)) {
+                    notifyNetworkChanged(true);
+                }
+            }
+
+            @Override
+            public void onLost(Network network) {
+                notifyNetworkChanged(isNetworkValidated(cm));
+            }
+        };
+    }
+
+    private void notifyNetworkChanged(final boolean validated) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                onNetworkChanged(validated);
+            }
+        });
+    }
+
+    private static boolean isNetworkValidated(ConnectivityManager cm) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Network network = cm.getActiveNetwork();
+            NetworkCapabilities capabilities = network != null ? cm.getNetworkCapabilities(network) : null;
+            return capabilities != null && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+        }
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    @Override
+    public String toString() {
+        String result = "state=" + STATE_NAMES[state] + ", attempt=" + attempt +
+                ", network=" + (networkValidated ? "validated" : "none");
+        if (state == STATE_BACKOFF) {
+            result += ", next in " + Math.max(0, nextAttemptTime - System.currentTimeMillis()) + " ms";
+        }
+        return result;
+    }
+}
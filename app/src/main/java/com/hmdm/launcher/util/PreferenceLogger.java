@@ -42,7 +42,8 @@ public class PreferenceLogger {
             String logString = preferences.getString(Const.PREFERENCES_LOG_STRING, "");
             logString += sdf.format(new Date()) + " " + message;
             logString += "\n";
-            preferences.edit().putString(Const.PREFERENCES_LOG_STRING, logString).commit();
+            // Written in background: subsequent log lines are coalesced into a single write
+            preferences.edit().putString(Const.PREFERENCES_LOG_STRING, logString).apply();
         }
     }
 
@@ -59,7 +60,7 @@ public class PreferenceLogger {
 
     public synchronized static void clearLogString(SharedPreferences preferences) {
         if (DEBUG) {
-            preferences.edit().putString(Const.PREFERENCES_LOG_STRING, "").commit();
+            preferences.edit().putString(Const.PREFERENCES_LOG_STRING, "").apply();
         }
     }
 
@@ -25,6 +25,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -36,12 +37,15 @@ import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.hmdm.launcher.BuildConfig;
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.helper.CryptoHelper;
-import com.hmdm.launcher.json.PushMessageJson;
+import com.hmdm.launcher.json.PushMessage;
 import com.hmdm.launcher.json.ServerConfig;
-import com.hmdm.launcher.worker.PushNotificationProcessor;
+import com.hmdm.launcher.worker.PushMessageQueue;
 
 import org.eclipse.paho.android.service.MqttAndroidClient;
 import org.eclipse.paho.android.service.MqttAndroidConnectOptions;
@@ -53,10 +57,11 @@ import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.json.JSONObject;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class PushNotificationMqttWrapper {
@@ -67,11 +72,26 @@ public class PushNotificationMqttWrapper {
     private Handler connectHangupMonitorHandler = new Handler(Looper.getMainLooper());
     private BroadcastReceiver debugReceiver;
     private Context context;
-    private boolean needProcessConnectExtended;
+    private MqttReconnectController reconnectController;
+    // Parameters of the last connection, used for reconnection
+    private String host;
+    private int port;
+    private String pushType;
+    private int keepaliveTime;
+    private String deviceId;
 
     private static final String WORKER_TAG_MQTT_RECONNECT = "com.hmdm.launcher.WORK_TAG_MQTT_RECONNECT";
     private static final int MQTT_RECONNECT_INTERVAL_SEC = 900;
 
+    // Incoming messages are parsed and processed in a dedicated thread, so bursts don't block the main thread
+    // The queue is unbounded: messages are already acknowledged to the server so they can't be dropped,
+    // and processing them in the delivering thread (which may be the main thread) would break the order.
+    // A deep queue is only reported
+    private static final int INBOUND_QUEUE_WARNING = 100;
+    private final ThreadPoolExecutor inboundExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    private static final ObjectReader MESSAGE_READER = new ObjectMapper().reader();
+
     // If more than 20 connections per minute, we are stopping:
     // this is a sign that two devices with the same ID are registered
     private List<Long> connectionLoopProtectionArray = new LinkedList<>();
@@ -92,14 +112,27 @@ public class PushNotificationMqttWrapper {
                         final String deviceId, final Runnable onSuccess, final Runnable onFailure) {
         this.context = context;
         cancelReconnectionAfterFailure(context);
+        this.host = host;
+        this.port = port;
+        this.pushType = pushType;
+        this.keepaliveTime = keepaliveTime;
+        this.deviceId = deviceId;
+        if (reconnectController == null) {
+            reconnectController = new MqttReconnectController(context, () -> connect(this.context, this.host,
+                    this.port, this.pushType, this.keepaliveTime, this.deviceId, null, null));
+            MqttKeepaliveController.getInstance().setChangeListener(() -> handler.post(() -> restartConnection()));
+        }
         if (client != null && client.isConnected()) {
+            handler.post(() -> reconnectController.onConnected());
             if (onSuccess != null) {
                 handler.post(onSuccess);
             }
             return;
         }
+        handler.post(() -> reconnectController.onConnecting());
         MqttAndroidConnectOptions connectOptions = new MqttAndroidConnectOptions();
-        connectOptions.setAutomaticReconnect(true);
+        // Reconnection after a lost connection is done by the reconnect controller, so there's a single retry path
+        connectOptions.setAutomaticReconnect(false);
         connectOptions.setKeepAliveInterval(keepaliveTime);
         connectOptions.setCleanSession(false);
         if (pushType.equals(ServerConfig.PUSH_OPTIONS_MQTT_WORKER)) {
@@ -108,7 +141,7 @@ public class PushNotificationMqttWrapper {
             connectOptions.setKeepAliveInterval(Const.DEFAULT_PUSH_WORKER_KEEPALIVE_TIME_SEC);
         } else {
             connectOptions.setPingType(MqttAndroidConnectOptions.PING_ALARM);
-            connectOptions.setKeepAliveInterval(keepaliveTime);
+            connectOptions.setKeepAliveInterval(MqttKeepaliveController.getInstance().getKeepalive(context, keepaliveTime));
         }
         connectOptions.setUserName("hmdm");
         connectOptions.setPassword(CryptoHelper.getSHA1String("hmdm" + BuildConfig.REQUEST_SIGNATURE).toCharArray());
@@ -126,12 +159,14 @@ public class PushNotificationMqttWrapper {
         client.setDefaultMessageListener(mqttMessageListener);
         setupDebugging(context);
 
-        // We need to re-subscribe after reconnection. This is required because server may be not persistent
-        // so after the server restart all subscription info is lost
+        // A lost connection is restored by connect() called by the reconnect controller, which subscribes again.
+        // This is required because server may be not persistent so after the server restart all subscription info is lost
         client.setCallback(new MqttCallbackExtended() {
 
             @Override
             public void connectionLost(Throwable cause) {
+                RemoteLogger.log(context, Const.LOG_DEBUG, "MQTT connection lost" + (cause != null ? ": " + cause.getMessage() : ""));
+                handler.post(() -> reconnectController.onFailure());
             }
 
             @Override
@@ -144,21 +179,10 @@ public class PushNotificationMqttWrapper {
 
             @Override
             public void connectComplete(boolean reconnect, String serverURI) {
-                if (reconnect || needProcessConnectExtended) {
-                    RemoteLogger.log(context, Const.LOG_VERBOSE, "Reconnect complete");
-                    if (checkConnectionLoop()) {
-                        subscribe(context, deviceId, null, null);
-                    } else {
-                        RemoteLogger.log(context, Const.LOG_ERROR, "Reconnection loop detected! You have multiple devices with ID=" + deviceId + "! MQTT service stopped.");
-                        disconnect(context);
-                    }
-                }
             }
         });
 
         try {
-            needProcessConnectExtended = false;
-
             // If connection hangs up, consider it as failure and continue the flow
             connectHangupMonitorHandler.postDelayed(() -> {
                 RemoteLogger.log(context, Const.LOG_WARN, "MQTT connection timeout, disconnecting");
@@ -168,6 +192,7 @@ public class PushNotificationMqttWrapper {
                     e.printStackTrace();
                 }
                 scheduleReconnectionAfterFailure(context, host, port, pushType, keepaliveTime, deviceId);
+                reconnectController.onFailure();
                 if (onFailure != null) {
                     handler.post(onFailure);
                 }
@@ -178,6 +203,11 @@ public class PushNotificationMqttWrapper {
                 public void onSuccess(IMqttToken asyncActionToken) {
                     // We believe that if connect is successful, subscribe() won't hang up
                     connectHangupMonitorHandler.removeCallbacksAndMessages(null);
+                    if (!checkConnectionLoop()) {
+                        RemoteLogger.log(context, Const.LOG_ERROR, "Reconnection loop detected! You have multiple devices with ID=" + deviceId + "! MQTT service stopped.");
+                        handler.post(() -> disconnect(context));
+                        return;
+                    }
                     subscribe(context, deviceId, onSuccess, onFailure);
                 }
 
@@ -187,11 +217,8 @@ public class PushNotificationMqttWrapper {
                     connectHangupMonitorHandler.removeCallbacksAndMessages(null);
                     RemoteLogger.log(context, Const.LOG_WARN, "MQTT connection failure");
                     scheduleReconnectionAfterFailure(context, host, port, pushType, keepaliveTime, deviceId);
-                    // We fail here but Mqtt client tries to reconnect and we need to subscribe
-                    // after connection succeeds. This is done in the extended callback client.
-                    // The flag needProcessConnectExtended prevents duplicate subscribe after
-                    // successful connection
-                    needProcessConnectExtended = true;
+                    // The reconnect controller makes the next attempt
+                    handler.post(() -> reconnectController.onFailure());
                     if (onFailure != null) {
                         handler.post(onFailure);
                     }
@@ -223,37 +250,52 @@ public class PushNotificationMqttWrapper {
     private IMqttMessageListener mqttMessageListener = new IMqttMessageListener() {
         @Override
         public void messageArrived(String topic, final MqttMessage message) throws Exception {
-            handler.post(new Runnable() {
+            final long receiveTime = SystemClock.elapsedRealtime();
+            final byte[] payload = message.getPayload();
+            inboundExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        JSONObject obj = new JSONObject(new String(message.getPayload()));
-                        String messageType = obj.getString("messageType");
-                        PushMessageJson msg = new PushMessageJson(messageType, obj.optJSONObject("payload"));
-                        // Also set the string payload for commands that use getPayload() (like setVolume, setBrightness)
-                        if (obj.has("payload") && !obj.isNull("payload")) {
-                            Object payloadObj = obj.get("payload");
-                            if (payloadObj instanceof String) {
-                                msg.setPayload((String) payloadObj);
-                            } else if (!(payloadObj instanceof JSONObject)) {
-                                // For numbers or other primitives, convert to string
-                                msg.setPayload(String.valueOf(payloadObj));
-                            }
-                        }
-                        PushNotificationProcessor.process(msg, context);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+                    processMessage(payload, receiveTime);
                 }
             });
-
+            int queueDepth = inboundExecutor.getQueue().size();
+            if (queueDepth >= INBOUND_QUEUE_WARNING && queueDepth % INBOUND_QUEUE_WARNING == 0) {
+                Log.w(Const.LOG_TAG, "MQTT inbound queue depth " + queueDepth + ", messages are processed too slowly");
+            }
         }
     };
 
+    // Runs in the inbound thread
+    private void processMessage(byte[] payload, long receiveTime) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            JsonNode obj = MESSAGE_READER.readTree(payload);
+            PushMessage msg = new PushMessage();
+            msg.setMessageType(obj.path("messageType").asText(null));
+            JsonNode id = obj.get("id");
+            if (id != null && id.canConvertToLong()) {
+                msg.setId(id.asLong());
+            }
+            // String payload is used by commands like setVolume, setBrightness; numbers and other primitives
+            // are converted to string; JSON object is parsed when requested by getPayloadJSON()
+            JsonNode payloadNode = obj.get("payload");
+            if (payloadNode != null && !payloadNode.isNull()) {
+                msg.setPayload(payloadNode.isValueNode() ? payloadNode.asText() : payloadNode.toString());
+            }
+            Log.d(Const.LOG_TAG, "MQTT message " + msg.getMessageType() + ": waited " + (start - receiveTime) +
+                    " ms, parsed in " + (SystemClock.elapsedRealtime() - start) + " ms, queue depth " +
+                    inboundExecutor.getQueue().size());
+            PushMessageQueue.add(context, msg);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     private void subscribe(final Context context, final String deviceId, final Runnable onSuccess, final Runnable onFailure) {
         try {
             // Topic is deviceId
             client.subscribe(deviceId, 2, mqttMessageListener);
+            handler.post(() -> reconnectController.onConnected());
             if (onSuccess != null) {
                 RemoteLogger.log(context, Const.LOG_DEBUG, "MQTT connection established");
                 handler.post(onSuccess);
@@ -261,6 +303,8 @@ public class PushNotificationMqttWrapper {
         } catch (Exception e) {
             e.printStackTrace();
             RemoteLogger.log(context, Const.LOG_DEBUG, "Exception while subscribing: " + e.getMessage());
+            // Connected but not subscribed: no messages are received, so retry with the backoff as a failed connection
+            handler.post(() -> reconnectController.onFailure());
             if (onFailure != null) {
                 handler.post(onFailure);
             }
@@ -291,10 +335,70 @@ public class PushNotificationMqttWrapper {
             e.printStackTrace();
         }
         client = null;
+        if (reconnectController != null) {
+            handler.post(() -> reconnectController.stop());
+        }
         LocalBroadcastManager.getInstance(context).unregisterReceiver(debugReceiver);
         debugReceiver = null;
     }
 
+    // Reconnect after a delay with jitter (used when the connection is broken but the client doesn't detect it)
+    public void reconnect(Context context) {
+        if (client == null || reconnectController == null) {
+            return;
+        }
+        // The reconnection is scheduled when the client is disconnected, so it doesn't race with the disconnection
+        IMqttActionListener disconnectListener = new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                handler.post(() -> reconnectController.onFailure());
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                // Already disconnected
+                handler.post(() -> reconnectController.onFailure());
+            }
+        };
+        try {
+            client.disconnect(null, disconnectListener);
+        } catch (Exception e) {
+            e.printStackTrace();
+            disconnectListener.onFailure(null, e);
+        }
+    }
+
+    // Reconnect with a new keepalive interval (it can't be changed in an active connection)
+    private void restartConnection() {
+        if (client == null || pushType.equals(ServerConfig.PUSH_OPTIONS_MQTT_WORKER)) {
+            return;
+        }
+        Log.d(Const.LOG_TAG, "Reconnecting MQTT to change the keepalive interval");
+        IMqttActionListener reconnectListener = new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                handler.post(() -> connect(context, host, port, pushType, keepaliveTime, deviceId, null, null));
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                // Already disconnected
+                handler.post(() -> connect(context, host, port, pushType, keepaliveTime, deviceId, null, null));
+            }
+        };
+        try {
+            client.disconnect(null, reconnectListener);
+        } catch (Exception e) {
+            e.printStackTrace();
+            reconnectListener.onFailure(null, e);
+        }
+    }
+
+    // State of the reconnection for diagnostics
+    public String getReconnectState() {
+        return reconnectController != null ? reconnectController.toString() : "not started";
+    }
+
     private void cancelReconnectionAfterFailure(Context context) {
         WorkManager.getInstance(context.getApplicationContext()).cancelUniqueWork(WORKER_TAG_MQTT_RECONNECT);
     }
@@ -31,17 +31,71 @@ import com.hmdm.launcher.json.RemoteLogConfig;
 import com.hmdm.launcher.json.RemoteLogItem;
 import com.hmdm.launcher.worker.RemoteLogWorker;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Remote logging engine which uses SQLite for configuration
  * and storing unsent logs
+ * Log items are collected in a bounded in-memory buffer and written to the database
+ * by a background thread in batches, so logging never blocks the caller.
+ * Errors are written without the batching delay; the uncaught exception handler waits until
+ * the buffer is written by flushNow()
  */
 public class RemoteLogger {
     public static long lastLogRemoval = 0;
 
-    public static void updateConfig(Context context, List<RemoteLogConfig> rules) {
+    // Capacity of the in-memory buffer; when it is full, the oldest items are dropped
+    private static final int BUFFER_SIZE = 500;
+    // Items are written to the database at most once per this period
+    private static final long FLUSH_WINDOW_MS = 1000;
+    // Limits of the unsent logs stored on the device
+    private static final long MAX_STORED_ROWS = 50000;
+    private static final long MAX_STORED_BYTES = 10 * 1024 * 1024;
+    // Max time to wait for a synchronous flush
+    private static final long FLUSH_TIMEOUT_MS = 2000;
+
+    private static final RemoteLogItem[] buffer = new RemoteLogItem[BUFFER_SIZE];
+    private static int bufferStart;
+    private static int bufferCount;
+    private static int droppedCount;
+    private static ScheduledFuture<?> scheduledFlush;
+    private static Context appContext;
+    private static ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+    private static volatile Thread writerThread;
+    private static final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush(true);
+        }
+    };
+    // Used when the app is crashing: old logs are not removed, so the flush is as fast as possible
+    private static final Runnable urgentFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush(false);
+        }
+    };
+    // Compiled log rules, loaded from the database on first use and replaced when the rules change
+    private static volatile LogRuleMatcher ruleMatcher;
+
+    public static synchronized void updateConfig(Context context, List<RemoteLogConfig> rules) {
         LogConfigTable.replaceAll(DatabaseHelper.instance(context).getWritableDatabase(), rules);
+        ruleMatcher = new LogRuleMatcher(rules);
+    }
+
+    private static synchronized LogRuleMatcher getRuleMatcher(Context context) {
+        LogRuleMatcher matcher = ruleMatcher;
+        if (matcher == null) {
+            matcher = new LogRuleMatcher(LogConfigTable.selectAll(DatabaseHelper.instance(context).getReadableDatabase()));
+            ruleMatcher = matcher;
+        }
+        return matcher;
     }
 
     public static void log(Context context, int level, String message) {
@@ -71,21 +125,118 @@ public class RemoteLogger {
         postLog(context, item);
     }
 
+    // Non-blocking: the item is stored in the buffer and written by the background thread
     public static void postLog(Context context, RemoteLogItem item) {
-        DatabaseHelper dbHelper = DatabaseHelper.instance(context);
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
-        if (LogConfigTable.match(db, item)) {
-            db = dbHelper.getWritableDatabase();
-            LogTable.insert(db, item);
-            sendLogsToServer(context);
+        synchronized (buffer) {
+            if (appContext == null) {
+                appContext = context.getApplicationContext();
+            }
+            if (bufferCount == BUFFER_SIZE) {
+                // Overflow: drop the oldest item, the number of dropped items is logged at the next flush
+                buffer[bufferStart] = item;
+                bufferStart = (bufferStart + 1) % BUFFER_SIZE;
+                droppedCount++;
+            } else {
+                buffer[(bufferStart + bufferCount) % BUFFER_SIZE] = item;
+                bufferCount++;
+            }
+            if (item.getLogLevel() == Const.LOG_ERROR) {
+                // Errors are written without delay because the app may be crashing
+                if (scheduledFlush != null) {
+                    scheduledFlush.cancel(false);
+                }
+                scheduledFlush = writer.schedule(flushTask, 0, TimeUnit.MILLISECONDS);
+            } else if (scheduledFlush == null) {
+                scheduledFlush = writer.schedule(flushTask, FLUSH_WINDOW_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // Writes the buffered items and waits for completion (with a timeout)
+    // Only for the uncaught exception handler, before the process dies
+    public static void flushNow() {
+        if (Thread.currentThread() == writerThread) {
+            // Waiting for itself would just hang until the timeout
+            return;
+        }
+        synchronized (buffer) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+        }
+        try {
+            // Items are written in the writer thread, so they stay in order with the earlier flushes
+            Future<?> result = writer.submit(urgentFlushTask);
+            result.get(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            e.printStackTrace();
         }
+    }
+
+    // Runs in the writer thread
+    private static void flush(boolean maintenance) {
+        writerThread = Thread.currentThread();
+        List<RemoteLogItem> items = new ArrayList<>();
+        int dropped;
+        Context context;
+        synchronized (buffer) {
+            for (int n = 0; n < bufferCount; n++) {
+                int pos = (bufferStart + n) % BUFFER_SIZE;
+                items.add(buffer[pos]);
+                buffer[pos] = null;
+            }
+            bufferStart = 0;
+            bufferCount = 0;
+            dropped = droppedCount;
+            droppedCount = 0;
+            scheduledFlush = null;
+            context = appContext;
+        }
+        if (context == null) {
+            return;
+        }
+
+        try {
+            if (dropped > 0) {
+                Log.w(Const.LOG_TAG, "RemoteLogger: buffer overflow, " + dropped + " messages dropped");
+                RemoteLogItem item = new RemoteLogItem();
+                item.setTimestamp(System.currentTimeMillis());
+                item.setLogLevel(Const.LOG_WARN);
+                item.setPackageId(context.getPackageName());
+                item.setMessage("Log buffer overflow, " + dropped + " messages dropped");
+                items.add(0, item);
+            }
+
+            DatabaseHelper dbHelper = DatabaseHelper.instance(context);
+            SQLiteDatabase db;
+            LogRuleMatcher matcher = getRuleMatcher(context);
+            List<RemoteLogItem> matchingItems = new ArrayList<>();
+            for (RemoteLogItem item : items) {
+                if (matcher.match(item)) {
+                    matchingItems.add(item);
+                }
+            }
+            if (matchingItems.size() > 0) {
+                db = dbHelper.getWritableDatabase();
+                LogTable.insert(db, matchingItems);
+                // Once per flush window
+                sendLogsToServer(context);
+            }
 
-        // Remove old logs once per hour
-        long now = System.currentTimeMillis();
-        if (now > lastLogRemoval + 3600000L) {
-            db = dbHelper.getWritableDatabase();
-            LogTable.deleteOldItems(db);
-            lastLogRemoval = now;
+            // Remove old logs and apply size limits once per hour
+            long now = System.currentTimeMillis();
+            if (maintenance && now > lastLogRemoval + 3600000L) {
+                db = dbHelper.getWritableDatabase();
+                LogTable.deleteOldItems(db);
+                int evicted = LogTable.enforceLimits(db, MAX_STORED_ROWS, MAX_STORED_BYTES);
+                if (evicted > 0) {
+                    Log.w(Const.LOG_TAG, "RemoteLogger: log storage limit exceeded, " + evicted + " items removed");
+                }
+                lastLogRemoval = now;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
@@ -0,0 +1,138 @@
+package com.hmdm.launcher.worker;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.db.AppUsageTable;
+import com.hmdm.launcher.db.DatabaseHelper;
+import com.hmdm.launcher.helper.SettingsHelper;
+import com.hmdm.launcher.server.ServerService;
+import com.hmdm.launcher.server.ServerServiceKeeper;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ResponseBody;
+import retrofit2.Response;
+
+/**
+ * Uploads the per-app, per-hour usage once a day.
+ * Only completed hours are sent. Each item holds the total usage of an app in an hour and replaces
+ * the value stored on the server for the same app and hour, so a repeated upload (e.g. a retry after
+ * a lost response) doesn't count the usage twice. Items are deleted only after a successful upload;
+ * an item updated during the upload is kept and its new total is sent next time.
+ */
+public class AppUsageUploadWorker extends Worker {
+
+    private static final int UPLOAD_PERIOD_HOURS = 24;
+
+    // Amount of items sent to server at once
+    private static final int MAX_UPLOADED_ITEMS = 1000;
+    // Limits the work if the uploaded items can't be deleted
+    private static final int MAX_BATCHES = 10;
+
+    // The checker stores the usage every 5 minutes, so an hour is complete in the database some time after its end
+    private static final long HOUR_SETTLE_MS = 600000L;
+
+    // Usage which can't be uploaded is kept during this time
+    private static final long MAX_STORE_TIME_MS = 7 * 24 * 3600000L;
+
+    private static final String WORK_TAG_APP_USAGE = "com.hmdm.launcher.WORK_TAG_APP_USAGE";
+
+    private Context context;
+    private SettingsHelper settingsHelper;
+
+    public static void schedule(Context context) {
+        PeriodicWorkRequest request =
+                new PeriodicWorkRequest.Builder(AppUsageUploadWorker.class, UPLOAD_PERIOD_HOURS, TimeUnit.HOURS)
+                        .addTag(Const.WORK_TAG_COMMON)
+                        .setConstraints(new Constraints.Builder()
+                                .setRequiredNetworkType(NetworkType.CONNECTED)
+                                .build())
+                        .setInitialDelay(UPLOAD_PERIOD_HOURS, TimeUnit.HOURS)
+                        .build();
+        // Keep the schedule if the work is already enqueued, otherwise a frequently restarted service
+        // would postpone the upload forever
+        WorkManager.getInstance(context.getApplicationContext()).enqueueUniquePeriodicWork(WORK_TAG_APP_USAGE,
+                ExistingPeriodicWorkPolicy.KEEP, request);
+    }
+
+    public AppUsageUploadWorker(
+            @NonNull Context context,
+            @NonNull WorkerParameters params) {
+        super(context, params);
+        this.context = context;
+        settingsHelper = SettingsHelper.getInstance(context);
+    }
+
+    @Override
+    // This is running in a background thread by WorkManager
+    public Result doWork() {
+        if (settingsHelper == null || settingsHelper.getConfig() == null) {
+            return Result.failure();
+        }
+        long now = System.currentTimeMillis();
+        long settledTime = now - HOUR_SETTLE_MS;
+        long currentHour = settledTime - settledTime % 3600000L;
+        try {
+            DatabaseHelper dbHelper = DatabaseHelper.instance(context);
+            AppUsageTable.deleteBefore(dbHelper.getWritableDatabase(), now - MAX_STORE_TIME_MS);
+            for (int batch = 0; batch < MAX_BATCHES; batch++) {
+                List<AppUsageTable.AppUsage> items = AppUsageTable.selectBefore(dbHelper.getReadableDatabase(),
+                        currentHour, MAX_UPLOADED_ITEMS);
+                if (items.size() == 0) {
+                    return Result.success();
+                }
+                if (!upload(items)) {
+                    Log.i(Const.LOG_TAG, "Failed to upload app usage");
+                    return Result.retry();
+                }
+                Log.i(Const.LOG_TAG, items.size() + " app usage items uploaded");
+                AppUsageTable.delete(dbHelper.getWritableDatabase(), items);
+                if (items.size() < MAX_UPLOADED_ITEMS) {
+                    // Items updated during the upload are sent next time
+                    return Result.success();
+                }
+            }
+            return Result.success();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Result.retry();
+        }
+    }
+
+    // Returns true on success and false on failure
+    private boolean upload(List<AppUsageTable.AppUsage> items) {
+        ServerService serverService = ServerServiceKeeper.getServerServiceInstance(context);
+        ServerService secondaryServerService = ServerServiceKeeper.getSecondaryServerServiceInstance(context);
+        Response<ResponseBody> response = null;
+
+        try {
+            response = serverService.sendAppUsage(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), items).execute();
+            return response.isSuccessful();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        try {
+            if (response == null) {
+                response = secondaryServerService.
+                        sendAppUsage(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), items).execute();
+                return response.isSuccessful();
+            }
+        } catch ( Exception e ) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,167 @@
+package com.hmdm.launcher.worker;
+
+import android.content.Context;
+import android.location.Location;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.db.DatabaseHelper;
+import com.hmdm.launcher.db.LocationTable;
+import com.hmdm.launcher.helper.SettingsHelper;
+import com.hmdm.launcher.server.ServerService;
+import com.hmdm.launcher.server.ServerServiceKeeper;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ResponseBody;
+import retrofit2.Response;
+
+/**
+ * Stores location fixes in the database and uploads them to the device locations plugin.
+ * Locations are not sent through the remote logs.
+ */
+public class LocationUploadWorker extends Worker {
+
+    // Amount of locations sent to server at once
+    public static final int MAX_UPLOADED_LOCATIONS = 500;
+
+    // Locations stored while the device is offline; older ones are removed
+    private static final int MAX_STORED_LOCATIONS = 5000;
+
+    // Locations are collected for a minute before sending to reduce the server load
+    public static final int FIRE_PERIOD_MINS = 1;
+
+    // If there's no Internet, retry in 15 minutes
+    public static final int FIRE_PERIOD_RETRY_MINS = 15;
+
+    private static final String WORK_TAG_LOCATION_UPLOAD = "com.hmdm.launcher.WORK_TAG_LOCATION_UPLOAD";
+
+    private static boolean uploadScheduled = false;
+    private static int scheduledDelayMins = 0;
+    private static long lastRetention = 0;
+    // Database writes are done out of the location listener thread (usually the main thread)
+    private static ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private Context context;
+    private SettingsHelper settingsHelper;
+
+    public static void storeLocation(Context context, Location location, final boolean urgent) {
+        final Context appContext = context.getApplicationContext();
+        final LocationTable.Location item = new LocationTable.Location(location);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DatabaseHelper dbHelper = DatabaseHelper.instance(appContext);
+                    LocationTable.insert(dbHelper.getWritableDatabase(), item);
+
+                    // Apply retention once per hour
+                    long now = System.currentTimeMillis();
+                    if (now > lastRetention + 3600000L) {
+                        LocationTable.deleteOldItems(dbHelper.getWritableDatabase());
+                        LocationTable.deleteExceedingItems(dbHelper.getWritableDatabase(), MAX_STORED_LOCATIONS);
+                        lastRetention = now;
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                scheduleUpload(appContext, urgent ? 0 : FIRE_PERIOD_MINS);
+            }
+        });
+    }
+
+    public static synchronized void scheduleUpload(Context context, int delayMins) {
+        // A scheduled upload is replaced only by an earlier one (e.g. an urgent location while an upload is delayed)
+        if (uploadScheduled && scheduledDelayMins <= delayMins) {
+            return;
+        }
+        Log.i(Const.LOG_TAG, "LocationUploadWorker scheduled");
+        OneTimeWorkRequest.Builder builder = new OneTimeWorkRequest.Builder(LocationUploadWorker.class);
+        builder.addTag(Const.WORK_TAG_COMMON);
+        builder.setConstraints(new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build());
+        if (delayMins > 0) {
+            builder.setInitialDelay(delayMins, TimeUnit.MINUTES);
+        }
+        uploadScheduled = true;
+        scheduledDelayMins = delayMins;
+        WorkManager.getInstance(context).enqueueUniqueWork(WORK_TAG_LOCATION_UPLOAD, ExistingWorkPolicy.REPLACE, builder.build());
+    }
+
+    private static synchronized void resetScheduled() {
+        uploadScheduled = false;
+    }
+
+    public LocationUploadWorker(
+            @NonNull Context context,
+            @NonNull WorkerParameters params) {
+        super(context, params);
+        this.context = context;
+        settingsHelper = SettingsHelper.getInstance(context);
+    }
+
+    @Override
+    // This is running in a background thread by WorkManager
+    public Result doWork() {
+        // New locations stored during the upload schedule a new upload
+        resetScheduled();
+        try {
+            DatabaseHelper dbHelper = DatabaseHelper.instance(context);
+            while (true) {
+                List<LocationTable.Location> locations = LocationTable.select(dbHelper.getReadableDatabase(), MAX_UPLOADED_LOCATIONS);
+                if (locations.size() == 0) {
+                    return Result.success();
+                }
+                if (!upload(locations)) {
+                    Log.i(Const.LOG_TAG, "Failed to upload locations: retry in " + FIRE_PERIOD_RETRY_MINS + " mins");
+                    scheduleUpload(context, FIRE_PERIOD_RETRY_MINS);
+                    return Result.failure();
+                }
+                Log.i(Const.LOG_TAG, locations.size() + " locations uploaded");
+                LocationTable.deleteUpTo(dbHelper.getWritableDatabase(), locations.get(locations.size() - 1).getId());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            scheduleUpload(context, FIRE_PERIOD_RETRY_MINS);
+            return Result.failure();
+        }
+    }
+
+    // Returns true on success and false on failure
+    private boolean upload(List<LocationTable.Location> locations) {
+        ServerService serverService = ServerServiceKeeper.getServerServiceInstance(context);
+        ServerService secondaryServerService = ServerServiceKeeper.getSecondaryServerServiceInstance(context);
+        Response<ResponseBody> response = null;
+
+        try {
+            response = serverService.sendLocations(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), locations).execute();
+            return response.isSuccessful();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        try {
+            if (response == null) {
+                response = secondaryServerService.
+                        sendLocations(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), locations).execute();
+                return response.isSuccessful();
+            }
+        } catch ( Exception e ) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,117 @@
+package com.hmdm.launcher.worker;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.util.RemoteLogger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes push message actions in separate lanes, so a long operation (like file removal
+ * or a shell script) doesn't delay device control commands. Each lane has its own thread
+ * and a time limit of a running action; the actions exceeding the limit are interrupted.
+ * Queued actions are never dropped or cancelled.
+ * Push actions don't use the shared AsyncTask pool which is also used by config downloads.
+ */
+public class PushExecutor {
+    // The action is executed in the caller thread (it only starts an activity or sends a broadcast)
+    public static final int LANE_INLINE = -1;
+    // The action is executed in the main thread
+    public static final int LANE_MAIN = -2;
+    // Device control: lock, unlock, reboot, volume, location
+    public static final int LANE_URGENT = 0;
+    // Configuration and app state: permissions, app data, intents, downloads
+    public static final int LANE_CONFIG = 1;
+    // Long file and package operations, shell commands
+    public static final int LANE_BULK = 2;
+
+    private static final String[] LANE_NAMES = {"urgent", "config", "bulk"};
+    // Each lane has a single thread, so the actions of a lane are executed in the arrival order
+    // (e.g. lock and unlock can't be swapped)
+    private static final int[] LANE_THREADS = {1, 1, 1};
+    // Queue depth causing a warning in the logs
+    private static final int[] LANE_QUEUE_WARNING = {16, 32, 64};
+    private static final long[] LANE_TIMEOUTS_MS = {30000, 120000, 600000};
+
+    private static final ThreadPoolExecutor[] lanes = new ThreadPoolExecutor[LANE_NAMES.length];
+    // Interrupts the actions exceeding the time limit
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    static {
+        for (int n = 0; n < lanes.length; n++) {
+            lanes[n] = new ThreadPoolExecutor(LANE_THREADS[n], LANE_THREADS[n],
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            lanes[n].allowCoreThreadTimeOut(true);
+        }
+    }
+
+    public static void execute(final Context context, int lane, final String name, final Runnable action) {
+        if (lane == LANE_INLINE) {
+            action.run();
+            return;
+        }
+        if (lane == LANE_MAIN) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                action.run();
+            } else {
+                mainHandler.post(action);
+            }
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        final long timeout = LANE_TIMEOUTS_MS[lane];
+        final String laneName = LANE_NAMES[lane];
+        final ThreadPoolExecutor executor = lanes[lane];
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                long waitTime = System.currentTimeMillis() - start;
+                // The time limit starts when the action starts, the time in the queue doesn't count
+                final Thread thread = Thread.currentThread();
+                final boolean[] finished = {false};
+                ScheduledFuture<?> timer = watchdog.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (finished) {
+                            if (!finished[0]) {
+                                RemoteLogger.log(context, Const.LOG_WARN, "Push action " + name + " timed out after " + timeout + " ms");
+                                thread.interrupt();
+                            }
+                        }
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+                try {
+                    action.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                synchronized (finished) {
+                    finished[0] = true;
+                }
+                timer.cancel(false);
+                // Clear the interrupt flag (if any), so it doesn't affect the next action of the lane
+                Thread.interrupted();
+                Log.d(Const.LOG_TAG, "Push action " + name + " (" + laneName + "): waited " + waitTime +
+                        " ms, executed " + (System.currentTimeMillis() - start - waitTime) + " ms, queue depth " +
+                        executor.getQueue().size());
+            }
+        };
+
+        // Queues are not bounded: server commands are never dropped
+        executor.execute(task);
+        int depth = executor.getQueue().size();
+        if (depth >= LANE_QUEUE_WARNING[lane] && depth % LANE_QUEUE_WARNING[lane] == 0) {
+            RemoteLogger.log(context, Const.LOG_WARN, "Push " + laneName + " queue depth: " + depth);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.hmdm.launcher.worker;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.json.PushMessage;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Intake of push messages from all transports (MQTT, long polling, polling).
+ * Messages are processed in the arrival order. Messages already processed or waiting in the queue are
+ * recognized by the server message ID and skipped (the server redelivers messages after reconnection).
+ * A message counts as processed only when it has been dispatched, so a redelivery of a failed message is processed.
+ * Multiple queued messages of idempotent types are merged into one.
+ */
+public class PushMessageQueue {
+    // Processed message IDs are remembered during this time
+    private static final long DEDUP_WINDOW_MS = 3600000L;
+    private static final int MAX_PROCESSED_IDS = 1000;
+
+    // Processing one of these messages has the same effect as processing several ones
+    private static final Set<String> COALESCED_TYPES = new HashSet<>(Arrays.asList(
+            PushMessage.TYPE_CONFIG_UPDATED,
+            PushMessage.TYPE_CONFIG_UPDATING,
+            PushMessage.TYPE_PING_LOCATION,
+            PushMessage.TYPE_CLEAR_DOWNLOADS
+    ));
+
+    private static final LinkedList<PushMessage> queue = new LinkedList<>();
+    // IDs of the queued messages and the message being dispatched
+    private static final Set<Long> pendingIds = new HashSet<>();
+    // Message ID -> time when the message has been dispatched
+    private static final Map<Long, Long> processedIds = new LinkedHashMap<Long, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_PROCESSED_IDS;
+        }
+    };
+    private static boolean draining = false;
+
+    public static void add(Context context, List<PushMessage> messages) {
+        synchronized (queue) {
+            for (PushMessage message : messages) {
+                enqueue(message);
+            }
+        }
+        drain(context);
+    }
+
+    public static void add(Context context, PushMessage message) {
+        synchronized (queue) {
+            enqueue(message);
+        }
+        drain(context);
+    }
+
+    private static void enqueue(PushMessage message) {
+        if (message == null || message.getMessageType() == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Long id = message.getId();
+        if (id != null) {
+            Long processTime = processedIds.get(id);
+            if ((processTime != null && now - processTime < DEDUP_WINDOW_MS) || pendingIds.contains(id)) {
+                Log.d(Const.LOG_TAG, "Duplicate push message skipped, id=" + id);
+                return;
+            }
+        }
+        if (COALESCED_TYPES.contains(message.getMessageType())) {
+            for (PushMessage queued : queue) {
+                if (queued.getMessageType().equals(message.getMessageType())) {
+                    Log.d(Const.LOG_TAG, "Push message " + message.getMessageType() + " merged with the queued one");
+                    return;
+                }
+            }
+        }
+        queue.add(message);
+        if (id != null) {
+            pendingIds.add(id);
+        }
+    }
+
+    // Messages are processed by the thread which added them; if another thread is already processing
+    // the queue, it will process the added messages as well
+    private static void drain(Context context) {
+        synchronized (queue) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        while (true) {
+            PushMessage message;
+            synchronized (queue) {
+                message = queue.poll();
+                if (message == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            boolean processed = false;
+            try {
+                PushNotificationProcessor.process(message, context);
+                processed = true;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            Long id = message.getId();
+            if (id != null) {
+                synchronized (queue) {
+                    pendingIds.remove(id);
+                    if (processed) {
+                        processedIds.put(id, System.currentTimeMillis());
+                    }
+                }
+            }
+        }
+    }
+}
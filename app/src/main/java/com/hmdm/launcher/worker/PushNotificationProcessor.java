@@ -28,7 +28,6 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
@@ -56,226 +55,118 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 
 public class PushNotificationProcessor {
-    public static void process(PushMessage message, Context context) {
-        RemoteLogger.log(context, Const.LOG_INFO, "Got Push Message, type " + message.getMessageType());
-        if (message.getMessageType().equals(PushMessage.TYPE_CONFIG_UPDATED)) {
-            // Update local configuration
-            ConfigUpdater.notifyConfigUpdate(context);
-            // The configUpdated should be broadcasted after the configuration update is completed
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_RUN_APP)) {
-            // Run application
-            runApplication(context, message.getPayloadJSON());
-            // Do not broadcast this message to other apps
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_BROADCAST)) {
-            // Send broadcast
-            sendBroadcast(context, message.getPayloadJSON());
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_UNINSTALL_APP)) {
-            // Uninstall application
-            AsyncTask.execute(() -> uninstallApplication(context, message.getPayloadJSON()));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_DELETE_FILE)) {
-            // Delete file
-            AsyncTask.execute(() -> deleteFile(context, message.getPayloadJSON()));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_DELETE_DIR)) {
-            // Delete directory recursively
-            AsyncTask.execute(() -> deleteDir(context, message.getPayloadJSON()));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_PURGE_DIR)) {
-            // Purge directory (delete all files recursively)
-            AsyncTask.execute(() -> purgeDir(context, message.getPayloadJSON()));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_PERMISSIVE_MODE)) {
-            // Turn on permissive mode
-            LocalBroadcastManager.getInstance(context).
-                    sendBroadcast(new Intent(Const.ACTION_PERMISSIVE_MODE));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_RUN_COMMAND)) {
-            // Run a command-line script
-            AsyncTask.execute(() -> runCommand(context, message.getPayloadJSON()));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_REBOOT)) {
-            // Reboot a device
-            AsyncTask.execute(() -> reboot(context));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_EXIT_KIOSK)) {
-            // Temporarily exit kiosk mode
-            LocalBroadcastManager.getInstance(context).
-                sendBroadcast(new Intent(Const.ACTION_EXIT_KIOSK));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_ENTER_KIOSK)) {
-            // Re-enter kiosk mode
-            LocalBroadcastManager.getInstance(context).
-                sendBroadcast(new Intent(Const.ACTION_ENTER_KIOSK));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_ADMIN_PANEL)) {
-            LocalBroadcastManager.getInstance(context).
-                    sendBroadcast(new Intent(Const.ACTION_ADMIN_PANEL));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_CLEAR_DOWNLOADS)) {
-            // Clear download history
-            AsyncTask.execute(() -> clearDownloads(context));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_INTENT)) {
-            // Run a system intent (like settings or ACTION_VIEW)
-            AsyncTask.execute(() -> callIntent(context, message.getPayloadJSON()));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_GRANT_PERMISSIONS)) {
-            // Grant permissions to apps
-            AsyncTask.execute(() -> grantPermissions(context, message.getPayloadJSON()));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_CLEAR_APP_DATA)) {
-            // Clear application data
-            AsyncTask.execute(() -> clearAppData(context, message.getPayloadJSON()));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_OPEN_URL)) {
-            // Payload is just the URL string
-            String url = message.getPayload();
-            if (url != null && !url.isEmpty()) {
-                openUrlInBrowser(context, url);
-            }
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_SET_VOLUME)) {
-            // Payload is volume level 0-15, convert to 0-100%
-            try {
-                int volumeLevel = Integer.parseInt(message.getPayload());
-                // Clamp to valid range
-                volumeLevel = Math.max(0, Math.min(15, volumeLevel));
-                int volumePercent = (volumeLevel * 100) / 15;
-
-                // Temporarily unlock volume if locked (device owner required)
-                ServerConfig config = SettingsHelper.getInstance(context).getConfig();
-                boolean wasLocked = config != null && Boolean.TRUE.equals(config.getLockVolume());
-                if (wasLocked) {
-                    Utils.lockVolume(false, context);
-                }
+    private interface Action {
+        void run(Context context, PushMessage message);
+    }
 
-                boolean success = Utils.setVolume(volumePercent, context);
+    private static class Route {
+        final int lane;
+        final Action action;
 
-                // Re-lock volume if it was locked
-                if (wasLocked) {
-                    Utils.lockVolume(true, context);
-                }
+        Route(int lane, Action action) {
+            this.lane = lane;
+            this.action = action;
+        }
+    }
 
-                if (!success) {
-                    // AudioManager method failed, try shell command for media volume
-                    String command = "media volume --stream 3 --set " + volumeLevel;
-                    String result = SystemUtils.executeShellCommand(command, true);
-                    RemoteLogger.log(context, Const.LOG_DEBUG, "Set volume via shell: " + volumeLevel + " Result: " + result);
-                } else {
-                    RemoteLogger.log(context, Const.LOG_DEBUG, "Set volume to " + volumePercent + "%");
-                }
-            } catch (NumberFormatException e) {
-                RemoteLogger.log(context, Const.LOG_WARN, "Invalid volume value: " + message.getPayload());
-            }
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_SET_BRIGHTNESS)) {
-            // Payload is brightness level 0-255
-            try {
-                int brightness = Integer.parseInt(message.getPayload());
-                // Clamp brightness to valid range
-                brightness = Math.max(0, Math.min(255, brightness));
-
-                // Try device owner method first (sets auto=false for manual brightness)
-                boolean success = Utils.setBrightnessPolicy(false, brightness, context);
-
-                if (!success) {
-                    // Device owner method failed, try shell command
-                    // First disable auto-brightness, then set manual brightness
-                    SystemUtils.executeShellCommand("settings put system screen_brightness_mode 0", true);
-                    String command = "settings put system screen_brightness " + brightness;
-                    String result = SystemUtils.executeShellCommand(command, true);
-                    RemoteLogger.log(context, Const.LOG_DEBUG, "Set brightness via shell: " + brightness + " Result: " + result);
-                } else {
-                    RemoteLogger.log(context, Const.LOG_DEBUG, "Set brightness to " + brightness);
-                }
-            } catch (NumberFormatException e) {
-                RemoteLogger.log(context, Const.LOG_WARN, "Invalid brightness value: " + message.getPayload());
-            }
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_PING_LOCATION)) {
-            // Request immediate location ping
-            AsyncTask.execute(() -> EmergencyService.sendSingleLocationPing(context));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_EMERGENCY_MODE)) {
-            // Payload: "on" or "off", optionally with interval like "on:30000"
-            String payload = message.getPayload();
-            if (payload != null) {
-                Intent serviceIntent = new Intent(context, EmergencyService.class);
-                if (payload.startsWith("on")) {
-                    serviceIntent.setAction(EmergencyService.ACTION_START);
-                    // Parse optional interval (e.g., "on:30000" for 30 second intervals)
-                    if (payload.contains(":")) {
-                        try {
-                            int interval = Integer.parseInt(payload.split(":")[1]);
-                            serviceIntent.putExtra(EmergencyService.EXTRA_INTERVAL, interval);
-                        } catch (Exception e) {
-                            // Use default interval
-                        }
-                    }
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                        context.startForegroundService(serviceIntent);
-                    } else {
-                        context.startService(serviceIntent);
-                    }
-                } else if (payload.equals("off")) {
-                    serviceIntent.setAction(EmergencyService.ACTION_STOP);
-                    context.startService(serviceIntent);
-                }
-            }
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_LOCK)) {
-            // Lock device screen
-            AsyncTask.execute(() -> lockDevice(context));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_UNLOCK)) {
-            // Unlock and wake device screen
-            AsyncTask.execute(() -> unlockDevice(context));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_ATTENTION)) {
-            // Flash screen to get attention
-            showAttention(context);
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_MESSAGE)) {
-            // Show message overlay
+    // Message type -> execution lane and action
+    // Messages of other types are broadcasted to plugins
+    private static final Map<String, Route> ROUTES = new HashMap<>();
+
+    private static void route(String messageType, int lane, Action action) {
+        ROUTES.put(messageType, new Route(lane, action));
+    }
+
+    static {
+        // Update local configuration
+        // The configUpdated should be broadcasted after the configuration update is completed
+        // ConfigUpdater starts its tasks from the main thread
+        route(PushMessage.TYPE_CONFIG_UPDATED, PushExecutor.LANE_MAIN,
+                (context, message) -> ConfigUpdater.notifyConfigUpdate(context));
+        // Run application. Do not broadcast this message to other apps
+        route(PushMessage.TYPE_RUN_APP, PushExecutor.LANE_INLINE,
+                (context, message) -> runApplication(context, message.getPayloadJSON()));
+        route(PushMessage.TYPE_BROADCAST, PushExecutor.LANE_INLINE,
+                (context, message) -> sendBroadcast(context, message.getPayloadJSON()));
+        route(PushMessage.TYPE_PERMISSIVE_MODE, PushExecutor.LANE_INLINE,
+                (context, message) -> sendLocalBroadcast(context, Const.ACTION_PERMISSIVE_MODE));
+        // Temporarily exit kiosk mode
+        route(PushMessage.TYPE_EXIT_KIOSK, PushExecutor.LANE_INLINE,
+                (context, message) -> sendLocalBroadcast(context, Const.ACTION_EXIT_KIOSK));
+        route(PushMessage.TYPE_ENTER_KIOSK, PushExecutor.LANE_INLINE,
+                (context, message) -> sendLocalBroadcast(context, Const.ACTION_ENTER_KIOSK));
+        route(PushMessage.TYPE_ADMIN_PANEL, PushExecutor.LANE_INLINE,
+                (context, message) -> sendLocalBroadcast(context, Const.ACTION_ADMIN_PANEL));
+        route(PushMessage.TYPE_OPEN_URL, PushExecutor.LANE_INLINE,
+                (context, message) -> openUrl(context, message.getPayload()));
+        route(PushMessage.TYPE_EMERGENCY_MODE, PushExecutor.LANE_INLINE,
+                (context, message) -> setEmergencyMode(context, message.getPayload()));
+        // Flash screen to get attention
+        route(PushMessage.TYPE_ATTENTION, PushExecutor.LANE_INLINE,
+                (context, message) -> showAttention(context));
+        // Show message overlay
+        route(PushMessage.TYPE_MESSAGE, PushExecutor.LANE_INLINE, (context, message) -> {
             String messageText = message.getPayload();
             if (messageText != null && !messageText.isEmpty()) {
                 showMessage(context, messageText);
             }
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_TIMER)) {
-            int minutes = 30; // default
-            try {
-                minutes = Integer.parseInt(message.getPayload());
-            } catch (Exception e) {
-                // Use default
-            }
-
-            Intent serviceIntent = new Intent(context, com.hmdm.launcher.ui.TimerOverlayService.class);
+        });
+        route(PushMessage.TYPE_TIMER, PushExecutor.LANE_INLINE,
+                (context, message) -> setTimer(context, message.getPayload()));
+
+        route(PushMessage.TYPE_LOCK, PushExecutor.LANE_URGENT,
+                (context, message) -> lockDevice(context));
+        route(PushMessage.TYPE_UNLOCK, PushExecutor.LANE_URGENT,
+                (context, message) -> unlockDevice(context));
+        route(PushMessage.TYPE_REBOOT, PushExecutor.LANE_URGENT,
+                (context, message) -> reboot(context));
+        // These may run shell commands
+        route(PushMessage.TYPE_SET_VOLUME, PushExecutor.LANE_URGENT,
+                (context, message) -> setVolume(context, message.getPayload()));
+        route(PushMessage.TYPE_SET_BRIGHTNESS, PushExecutor.LANE_URGENT,
+                (context, message) -> setBrightness(context, message.getPayload()));
+        route(PushMessage.TYPE_PING_LOCATION, PushExecutor.LANE_URGENT,
+                (context, message) -> EmergencyService.sendSingleLocationPing(context));
+
+        route(PushMessage.TYPE_CLEAR_DOWNLOADS, PushExecutor.LANE_CONFIG,
+                (context, message) -> clearDownloads(context));
+        // Run a system intent (like settings or ACTION_VIEW)
+        route(PushMessage.TYPE_INTENT, PushExecutor.LANE_CONFIG,
+                (context, message) -> callIntent(context, message.getPayloadJSON()));
+        route(PushMessage.TYPE_GRANT_PERMISSIONS, PushExecutor.LANE_CONFIG,
+                (context, message) -> grantPermissions(context, message.getPayloadJSON()));
+        route(PushMessage.TYPE_CLEAR_APP_DATA, PushExecutor.LANE_CONFIG,
+                (context, message) -> clearAppData(context, message.getPayloadJSON()));
+
+        route(PushMessage.TYPE_UNINSTALL_APP, PushExecutor.LANE_BULK,
+                (context, message) -> uninstallApplication(context, message.getPayloadJSON()));
+        route(PushMessage.TYPE_DELETE_FILE, PushExecutor.LANE_BULK,
+                (context, message) -> deleteFile(context, message.getPayloadJSON()));
+        // Delete directory recursively
+        route(PushMessage.TYPE_DELETE_DIR, PushExecutor.LANE_BULK,
+                (context, message) -> deleteDir(context, message.getPayloadJSON()));
+        // Purge directory (delete all files recursively)
+        route(PushMessage.TYPE_PURGE_DIR, PushExecutor.LANE_BULK,
+                (context, message) -> purgeDir(context, message.getPayloadJSON()));
+        // Run a command-line script
+        route(PushMessage.TYPE_RUN_COMMAND, PushExecutor.LANE_BULK,
+                (context, message) -> runCommand(context, message.getPayloadJSON()));
+    }
 
-            if (minutes <= 0) {
-                // Stop timer
-                context.stopService(serviceIntent);
-                RemoteLogger.log(context, Const.LOG_INFO, "Timer stopped");
-            } else {
-                // Start timer
-                serviceIntent.putExtra("duration_minutes", minutes);
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                    context.startForegroundService(serviceIntent);
-                } else {
-                    context.startService(serviceIntent);
-                }
-                RemoteLogger.log(context, Const.LOG_INFO, "Timer started: " + minutes + " minutes");
-            }
+    public static void process(PushMessage message, Context context) {
+        RemoteLogger.log(context, Const.LOG_INFO, "Got Push Message, type " + message.getMessageType());
+        final Route route = ROUTES.get(message.getMessageType());
+        if (route != null) {
+            PushExecutor.execute(context, route.lane, message.getMessageType(),
+                    () -> route.action.run(context, message));
             return;
         }
 
@@ -288,6 +179,131 @@ public class PushNotificationProcessor {
         context.sendBroadcast(intent);
     }
 
+    private static void sendLocalBroadcast(Context context, String action) {
+        LocalBroadcastManager.getInstance(context).sendBroadcast(new Intent(action));
+    }
+
+    private static void openUrl(Context context, String url) {
+        // Payload is just the URL string
+        if (url != null && !url.isEmpty()) {
+            openUrlInBrowser(context, url);
+        }
+    }
+
+    private static void setVolume(Context context, String payload) {
+        // Payload is volume level 0-15, convert to 0-100%
+        try {
+            int volumeLevel = Integer.parseInt(payload);
+            // Clamp to valid range
+            volumeLevel = Math.max(0, Math.min(15, volumeLevel));
+            int volumePercent = (volumeLevel * 100) / 15;
+
+            // Temporarily unlock volume if locked (device owner required)
+            ServerConfig config = SettingsHelper.getInstance(context).getConfig();
+            boolean wasLocked = config != null && Boolean.TRUE.equals(config.getLockVolume());
+            if (wasLocked) {
+                Utils.lockVolume(false, context);
+            }
+
+            boolean success = Utils.setVolume(volumePercent, context);
+
+            // Re-lock volume if it was locked
+            if (wasLocked) {
+                Utils.lockVolume(true, context);
+            }
+
+            if (!success) {
+                // AudioManager method failed, try shell command for media volume
+                String command = "media volume --stream 3 --set " + volumeLevel;
+                String result = SystemUtils.executeShellCommand(command, true);
+                RemoteLogger.log(context, Const.LOG_DEBUG, "Set volume via shell: " + volumeLevel + " Result: " + result);
+            } else {
+                RemoteLogger.log(context, Const.LOG_DEBUG, "Set volume to " + volumePercent + "%");
+            }
+        } catch (NumberFormatException e) {
+            RemoteLogger.log(context, Const.LOG_WARN, "Invalid volume value: " + payload);
+        }
+    }
+
+    private static void setBrightness(Context context, String payload) {
+        // Payload is brightness level 0-255
+        try {
+            int brightness = Integer.parseInt(payload);
+            // Clamp brightness to valid range
+            brightness = Math.max(0, Math.min(255, brightness));
+
+            // Try device owner method first (sets auto=false for manual brightness)
+            boolean success = Utils.setBrightnessPolicy(false, brightness, context);
+
+            if (!success) {
+                // Device owner method failed, try shell command
+                // First disable auto-brightness, then set manual brightness
+                SystemUtils.executeShellCommand("settings put system screen_brightness_mode 0", true);
+                String command = "settings put system screen_brightness " + brightness;
+                String result = SystemUtils.executeShellCommand(command, true);
+                RemoteLogger.log(context, Const.LOG_DEBUG, "Set brightness via shell: " + brightness + " Result: " + result);
+            } else {
+                RemoteLogger.log(context, Const.LOG_DEBUG, "Set brightness to " + brightness);
+            }
+        } catch (NumberFormatException e) {
+            RemoteLogger.log(context, Const.LOG_WARN, "Invalid brightness value: " + payload);
+        }
+    }
+
+    private static void setEmergencyMode(Context context, String payload) {
+        // Payload: "on" or "off", optionally with interval like "on:30000"
+        if (payload == null) {
+            return;
+        }
+        Intent serviceIntent = new Intent(context, EmergencyService.class);
+        if (payload.startsWith("on")) {
+            serviceIntent.setAction(EmergencyService.ACTION_START);
+            // Parse optional interval (e.g., "on:30000" for 30 second intervals)
+            if (payload.contains(":")) {
+                try {
+                    int interval = Integer.parseInt(payload.split(":")[1]);
+                    serviceIntent.putExtra(EmergencyService.EXTRA_INTERVAL, interval);
+                } catch (Exception e) {
+                    // Use default interval
+                }
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                context.startForegroundService(serviceIntent);
+            } else {
+                context.startService(serviceIntent);
+            }
+        } else if (payload.equals("off")) {
+            serviceIntent.setAction(EmergencyService.ACTION_STOP);
+            context.startService(serviceIntent);
+        }
+    }
+
+    private static void setTimer(Context context, String payload) {
+        int minutes = 30; // default
+        try {
+            minutes = Integer.parseInt(payload);
+        } catch (Exception e) {
+            // Use default
+        }
+
+        Intent serviceIntent = new Intent(context, com.hmdm.launcher.ui.TimerOverlayService.class);
+
+        if (minutes <= 0) {
+            // Stop timer
+            context.stopService(serviceIntent);
+            RemoteLogger.log(context, Const.LOG_INFO, "Timer stopped");
+        } else {
+            // Start timer
+            serviceIntent.putExtra("duration_minutes", minutes);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                context.startForegroundService(serviceIntent);
+            } else {
+                context.startService(serviceIntent);
+            }
+            RemoteLogger.log(context, Const.LOG_INFO, "Timer started: " + minutes + " minutes");
+        }
+    }
+
     private static void runApplication(Context context, JSONObject payload) {
         if (payload == null) {
             return;
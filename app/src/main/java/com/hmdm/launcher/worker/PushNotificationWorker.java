@@ -33,7 +33,6 @@ import com.hmdm.launcher.Const;
 import com.hmdm.launcher.helper.ConfigUpdater;
 import com.hmdm.launcher.helper.CryptoHelper;
 import com.hmdm.launcher.helper.SettingsHelper;
-import com.hmdm.launcher.json.PushMessage;
 import com.hmdm.launcher.json.PushResponse;
 import com.hmdm.launcher.json.ServerConfig;
 import com.hmdm.launcher.server.ServerService;
@@ -42,10 +41,7 @@ import com.hmdm.launcher.util.PushNotificationMqttWrapper;
 import com.hmdm.launcher.util.RemoteLogger;
 
 import java.io.UnsupportedEncodingException;
-import java.net.URL;
 import java.net.URLEncoder;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import retrofit2.Response;
@@ -142,17 +138,8 @@ public class PushNotificationWorker extends Worker {
 
             if ( response.isSuccessful() ) {
                 if ( Const.STATUS_OK.equals( response.body().getStatus() ) && response.body().getData() != null ) {
-                    Map<String, PushMessage> filteredMessages = new HashMap<String, PushMessage>();
-                    for (PushMessage message : response.body().getData()) {
-                        // Filter out multiple configuration update requests
-                        if (!message.getMessageType().equals(PushMessage.TYPE_CONFIG_UPDATED) ||
-                                !filteredMessages.containsKey(PushMessage.TYPE_CONFIG_UPDATED)) {
-                            filteredMessages.put(message.getMessageType(), message);
-                        }
-                    }
-                    for (Map.Entry<String, PushMessage> entry : filteredMessages.entrySet()) {
-                        PushNotificationProcessor.process(entry.getValue(), context);
-                    }
+                    // Duplicate and repeated configuration update requests are filtered out by the queue
+                    PushMessageQueue.add(context, response.body().getData());
                     return Result.success();
                 } else {
                     return Result.failure();
@@ -197,24 +184,8 @@ public class PushNotificationWorker extends Worker {
         return Result.success();
     }
 
-    // We assume we're running in the background!
-    // https://stackoverflow.com/questions/57552955/is-possible-backgroundworker-dowork-in-main-thread
     private void mqttReconnect() {
-        int keepaliveTime = Const.DEFAULT_PUSH_ALARM_KEEPALIVE_TIME_SEC;
-        String pushOptions = settingsHelper.getConfig().getPushOptions();
-        Integer newKeepaliveTime = settingsHelper.getConfig().getKeepaliveTime();
-        if (newKeepaliveTime != null && newKeepaliveTime >= 30) {
-            keepaliveTime = newKeepaliveTime;
-        }
-        try {
-            PushNotificationMqttWrapper.getInstance().disconnect(context);
-            Thread.sleep(5000);
-            URL url = new URL(settingsHelper.getBaseUrl());
-            PushNotificationMqttWrapper.getInstance().connect(context, url.getHost(), BuildConfig.MQTT_PORT,
-                    pushOptions, keepaliveTime, settingsHelper.getDeviceId(), null, null);
-        } catch (Exception e) {
-            RemoteLogger.log(context, Const.LOG_DEBUG, "Reconnection failure: " + e.getMessage());
-            e.printStackTrace();
-        }
+        // The reconnection is delayed with a random jitter, so devices don't reconnect at once
+        PushNotificationMqttWrapper.getInstance().reconnect(context);
     }
 }
@@ -29,6 +29,7 @@ import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.db.DatabaseHelper;
 import com.hmdm.launcher.db.LogTable;
@@ -37,16 +38,35 @@ import com.hmdm.launcher.json.RemoteLogItem;
 import com.hmdm.launcher.server.ServerService;
 import com.hmdm.launcher.server.ServerServiceKeeper;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
 import okhttp3.ResponseBody;
 import retrofit2.Response;
 
 public class RemoteLogWorker extends Worker {
 
-    // Amount of log messages sent to server at once
-    public static final int MAX_UPLOADED_MESSAGES = 10;
+    // Amount of log messages read from the database at once, they're sent in batches limited by size
+    public static final int MAX_UPLOADED_MESSAGES = 1000;
+
+    // Size of the uploaded batch (uncompressed JSON) is adapted to the network:
+    // it grows after fast uploads and shrinks after slow or failed ones
+    private static final int MIN_BATCH_BYTES = 4 * 1024;
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+    private static final int INITIAL_BATCH_BYTES = 32 * 1024;
+    private static final long FAST_UPLOAD_MS = 2000;
+    private static final long SLOW_UPLOAD_MS = 10000;
+    // Estimated JSON size of an item except the message and the package ID
+    private static final int ITEM_OVERHEAD_BYTES = 64;
+    // Smaller requests are not compressed
+    private static final int MIN_GZIP_BYTES = 512;
 
     // Logs are sent once per minute to reduce the server load
     public static final int FIRE_PERIOD_MINS = 1;
@@ -57,6 +77,10 @@ public class RemoteLogWorker extends Worker {
     private static final String WORK_TAG_REMOTE_LOG = "com.hmdm.launcher.WORK_TAG_REMOTE_LOG";
 
     private static boolean uploadScheduled = false;
+    private static int batchBytes = INITIAL_BATCH_BYTES;
+    // Reset if the server doesn't accept compressed requests
+    private static boolean gzipEnabled = true;
+    private static final ObjectMapper mapper = new ObjectMapper();
 
     private Context context;
     private SettingsHelper settingsHelper;
@@ -104,17 +128,27 @@ public class RemoteLogWorker extends Worker {
                     uploadScheduled = false;
                     return Result.success();
                 }
-                if (!upload(unsentItems)) {
-                    // There was an error: retry!
-                    // XXX: we do not use Result.retry() here because new logs may come
-                    Log.i(Const.LOG_TAG, "Failed to upload logs: retry in " + FIRE_PERIOD_RETRY_MINS + " mins");
-                    uploadScheduled = false;
-                    scheduleUpload(context, FIRE_PERIOD_RETRY_MINS);
-                    return Result.failure();
-                } else {
-                    Log.i(Const.LOG_TAG, "Logs are uploaded");
-                    // Mark items as sent and query next items
-                    LogTable.delete(DatabaseHelper.instance(context).getWritableDatabase(), unsentItems);
+                while (unsentItems.size() > 0) {
+                    List<RemoteLogItem> batch = takeBatch(unsentItems, batchBytes);
+                    long start = System.currentTimeMillis();
+                    if (!upload(batch)) {
+                        // There was an error: retry with a smaller batch!
+                        // XXX: we do not use Result.retry() here because new logs may come
+                        batchBytes = Math.max(MIN_BATCH_BYTES, batchBytes / 2);
+                        Log.i(Const.LOG_TAG, "Failed to upload logs: retry in " + FIRE_PERIOD_RETRY_MINS + " mins");
+                        uploadScheduled = false;
+                        scheduleUpload(context, FIRE_PERIOD_RETRY_MINS);
+                        return Result.failure();
+                    }
+                    long duration = System.currentTimeMillis() - start;
+                    if (duration < FAST_UPLOAD_MS) {
+                        batchBytes = Math.min(MAX_BATCH_BYTES, batchBytes * 2);
+                    } else if (duration > SLOW_UPLOAD_MS) {
+                        batchBytes = Math.max(MIN_BATCH_BYTES, batchBytes / 2);
+                    }
+                    Log.i(Const.LOG_TAG, batch.size() + " log items uploaded in " + duration + " ms, next batch size: " + batchBytes);
+                    // Mark items as sent
+                    LogTable.deleteUpTo(dbHelper.getWritableDatabase(), batch.get(batch.size() - 1).getId());
                 }
             }
         } catch (Exception e) {
@@ -126,28 +160,95 @@ public class RemoteLogWorker extends Worker {
         }
     }
 
+    // Removes the items fitting into the batch size from the list (at least one item)
+    private static List<RemoteLogItem> takeBatch(List<RemoteLogItem> items, int maxBytes) {
+        List<RemoteLogItem> batch = new ArrayList<>();
+        int bytes = 0;
+        Iterator<RemoteLogItem> it = items.iterator();
+        while (it.hasNext()) {
+            RemoteLogItem item = it.next();
+            int itemBytes = ITEM_OVERHEAD_BYTES +
+                    (item.getMessage() != null ? item.getMessage().length() : 0) +
+                    (item.getPackageId() != null ? item.getPackageId().length() : 0);
+            if (batch.size() > 0 && bytes + itemBytes > maxBytes) {
+                break;
+            }
+            batch.add(item);
+            bytes += itemBytes;
+            it.remove();
+        }
+        return batch;
+    }
+
     // Returns true on success and false on failure
     public boolean upload(List<RemoteLogItem> logItems) {
+        byte[] json;
+        try {
+            json = mapper.writeValueAsBytes(logItems);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        if (gzipEnabled && json.length >= MIN_GZIP_BYTES) {
+            Response<ResponseBody> response = send(gzip(json), "gzip");
+            if (response == null) {
+                // Network error
+                return false;
+            }
+            if (response.isSuccessful()) {
+                return true;
+            }
+            // The server may not accept compressed requests, try the plain one
+            Log.w(Const.LOG_TAG, "Compressed log upload failed, code " + response.code() + ", retrying uncompressed");
+            gzipEnabled = false;
+            response = send(json, null);
+            if (response != null && !response.isSuccessful()) {
+                // Failure is not related to compression
+                gzipEnabled = true;
+            }
+            return response != null && response.isSuccessful();
+        }
+
+        Response<ResponseBody> response = send(json, null);
+        return response != null && response.isSuccessful();
+    }
+
+    // Returns null on network errors
+    private Response<ResponseBody> send(byte[] data, String contentEncoding) {
         ServerService serverService = ServerServiceKeeper.getServerServiceInstance(context);
         ServerService secondaryServerService = ServerServiceKeeper.getSecondaryServerServiceInstance(context);
+        RequestBody body = RequestBody.create(MediaType.parse("application/json"), data);
         Response<ResponseBody> response = null;
 
         try {
-            response = serverService.sendLogs(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), logItems).execute();
-            return response.isSuccessful();
+            response = serverService.sendLogsEncoded(settingsHelper.getServerProject(), settingsHelper.getDeviceId(),
+                    contentEncoding, body).execute();
         } catch (Exception e) {
             e.printStackTrace();
         }
 
         try {
             if (response == null) {
-                response = secondaryServerService.
-                        sendLogs(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), logItems).execute();
-                return response.isSuccessful();
+                response = secondaryServerService.sendLogsEncoded(settingsHelper.getServerProject(),
+                        settingsHelper.getDeviceId(), contentEncoding, body).execute();
             }
         } catch ( Exception e ) {
             e.printStackTrace();
         }
-        return false;
+        return response;
+    }
+
+    private static byte[] gzip(byte[] data) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4 + 64);
+            GZIPOutputStream gzos = new GZIPOutputStream(bos);
+            gzos.write(data);
+            gzos.close();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            // Never happens for in-memory streams
+            throw new RuntimeException(e);
+        }
     }
 }
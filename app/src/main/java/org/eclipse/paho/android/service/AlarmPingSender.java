@@ -26,6 +26,7 @@ import android.os.PowerManager.WakeLock;
 import android.util.Log;
 
 import com.hmdm.launcher.Const;
+import com.hmdm.launcher.util.MqttKeepaliveController;
 import com.hmdm.launcher.util.RemoteLogger;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
@@ -159,7 +160,6 @@ class AlarmPingSender implements MqttPingSender {
 			wakelock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, wakeLockTag);
 			wakelock.acquire();
 
-			RemoteLogger.log(context, Const.LOG_VERBOSE, "Sending MQTT Ping at:" + System.currentTimeMillis());
 			PingDeathDetector.getInstance().registerPing();
 
 			// Assign new callback to token to execute code after PingResq
@@ -169,7 +169,7 @@ class AlarmPingSender implements MqttPingSender {
 
 				@Override
 				public void onSuccess(IMqttToken asyncActionToken) {
-					RemoteLogger.log(context, Const.LOG_VERBOSE, "Ping success");
+					MqttKeepaliveController.getInstance().onPingSuccess(context);
 					Log.d(TAG, "Success. Release lock(" + wakeLockTag + "):"
 							+ System.currentTimeMillis());
 					//Release wakelock when it is done.
@@ -180,6 +180,7 @@ class AlarmPingSender implements MqttPingSender {
 				public void onFailure(IMqttToken asyncActionToken,
 									  Throwable exception) {
 					RemoteLogger.log(context, Const.LOG_INFO, "MQTT ping failure");
+					MqttKeepaliveController.getInstance().onPingFailure(context);
 					Log.d(TAG, "Failure. Release lock(" + wakeLockTag + "):"
 							+ System.currentTimeMillis());
 					//Release wakelock when it is done.
@@ -189,7 +190,7 @@ class AlarmPingSender implements MqttPingSender {
 
 
 			if (token == null && wakelock.isHeld()) {
-				RemoteLogger.log(context, Const.LOG_VERBOSE, "WakeLock released");
+				Log.d(TAG, "No ping required, release lock(" + wakeLockTag + ")");
 				wakelock.release();
 			}
 		}
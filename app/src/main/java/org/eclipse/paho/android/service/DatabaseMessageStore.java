@@ -49,6 +49,9 @@ class DatabaseMessageStore implements MessageStore {
 	// a SQLiteOpenHelper specific for this database
 	private MQTTDatabaseHelper mqttDb = null;
 
+	// Name of the database file, used to find the messages left by this store
+	static final String DATABASE_NAME = MQTTDatabaseHelper.DATABASE_NAME;
+
 	// a place to send trace data
 	private MqttTraceHandler traceHandler = null;
 
@@ -142,7 +145,19 @@ class DatabaseMessageStore implements MessageStore {
 	 *            a context to use for android calls
 	 */
 	public DatabaseMessageStore(MqttService service, Context context) {
-		this.traceHandler = service;
+		this((MqttTraceHandler) service, context);
+	}
+
+	/**
+	 * Constructor - create a DatabaseMessageStore with the given trace handler
+	 * 
+	 * @param traceHandler
+	 *            a place to send trace data
+	 * @param context
+	 *            a context to use for android calls
+	 */
+	DatabaseMessageStore(MqttTraceHandler traceHandler, Context context) {
+		this.traceHandler = traceHandler;
 
 		// Open message database
 		mqttDb = new MQTTDatabaseHelper(traceHandler, context);
@@ -169,6 +184,7 @@ class DatabaseMessageStore implements MessageStore {
 	public String storeArrived(String clientHandle, String topic,
 			MqttMessage message) {
 		
+		long start = System.nanoTime();
 		db = mqttDb.getWritableDatabase();
 		
 		traceHandler.traceDebug(TAG, "storeArrived{" + clientHandle + "}, {"
@@ -201,7 +217,8 @@ class DatabaseMessageStore implements MessageStore {
 						TAG,
 						"storeArrived: inserted message with id of {"
 								+ id
-								+ "} - Number of messages in database for this clientHandle = "
+								+ "} in " + (System.nanoTime() - start) / 1000
+								+ " us - Number of messages in database for this clientHandle = "
 								+ count);
 		return id;
 	}
@@ -244,6 +261,7 @@ class DatabaseMessageStore implements MessageStore {
 	@Override
 	public boolean discardArrived(String clientHandle, String id) {
 		
+		long start = System.nanoTime();
 		db = mqttDb.getWritableDatabase();
 		
 		traceHandler.traceDebug(TAG, "discardArrived{" + clientHandle + "}, {"
@@ -272,7 +290,9 @@ class DatabaseMessageStore implements MessageStore {
 		traceHandler
 				.traceDebug(
 						TAG,
-						"discardArrived - Message deleted successfully. - messages in db for this clientHandle "
+						"discardArrived - Message deleted successfully in "
+								+ (System.nanoTime() - start) / 1000
+								+ " us - messages in db for this clientHandle "
 								+ count);
 		return true;
 	}
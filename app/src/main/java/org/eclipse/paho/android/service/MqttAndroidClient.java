@@ -134,6 +134,19 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	// Listener for when the service is connected or disconnected
 	private final MyServiceConnection serviceConnection = new MyServiceConnection();
 
+	// Receives the service callbacks directly, without a local broadcast
+	private final MqttServiceCallback serviceCallback = new MqttServiceCallback() {
+		@Override
+		public void onCallback(Bundle data) {
+			processCallback(data);
+		}
+
+		@Override
+		public void onMessageArrived(String messageId, String topic, MqttMessage message) {
+			messageArrived(messageId, topic, new ParcelableMqttMessage(message));
+		}
+	};
+
 	// The Android Service which will process our mqtt calls
 	private MqttService mqttService;
 
@@ -491,6 +504,7 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 		}
 		mqttService.setTraceEnabled(traceEnabled);
 		mqttService.setTraceCallbackId(clientHandle);
+		mqttService.registerCallback(clientHandle, serviceCallback);
 		
 		String activityToken = storeToken(connectToken);
 		try {
@@ -1382,8 +1396,16 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	 */
 	@Override
 	public void onReceive(Context context, Intent intent) {
-		Bundle data = intent.getExtras();
+		processCallback(intent.getExtras());
+	}
 
+	/**
+	 * Process the callback data received directly from the service or by a broadcast
+	 *
+	 * @param data
+	 *            the callback data
+	 */
+	private void processCallback(Bundle data) {
 		String handleFromIntent = data
 				.getString(MqttServiceConstants.CALLBACK_CLIENT_HANDLE);
 
@@ -1590,14 +1612,25 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	 * @param data
 	 */
 	private void messageArrivedAction(Bundle data) {
-		if (callback != null) {
-			String messageId = data
-					.getString(MqttServiceConstants.CALLBACK_MESSAGE_ID);
-			String destinationName = data
-					.getString(MqttServiceConstants.CALLBACK_DESTINATION_NAME);
+		String messageId = data
+				.getString(MqttServiceConstants.CALLBACK_MESSAGE_ID);
+		String destinationName = data
+				.getString(MqttServiceConstants.CALLBACK_DESTINATION_NAME);
+
+		ParcelableMqttMessage message = data
+				.getParcelable(MqttServiceConstants.CALLBACK_MESSAGE_PARCEL);
+		messageArrived(messageId, destinationName, message);
+	}
 
-			ParcelableMqttMessage message = data
-					.getParcelable(MqttServiceConstants.CALLBACK_MESSAGE_PARCEL);
+	/**
+	 * Pass an arrived message to the callback
+	 * 
+	 * @param messageId
+	 * @param destinationName
+	 * @param message
+	 */
+	private void messageArrived(String messageId, String destinationName, ParcelableMqttMessage message) {
+		if (callback != null) {
 			try {
 				if (messageAck == Ack.AUTO_ACK) {
 					callback.messageArrived(destinationName, message);
@@ -1760,6 +1793,9 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	 * IntentReceiver leaks.
 	 */
 	public void unregisterResources(){
+		if (mqttService != null && clientHandle != null) {
+			mqttService.unregisterCallback(clientHandle, serviceCallback);
+		}
 		if(myContext != null && receiverRegistered){
 			synchronized (MqttAndroidClient.this) {
 				LocalBroadcastManager.getInstance(myContext).unregisterReceiver(this);
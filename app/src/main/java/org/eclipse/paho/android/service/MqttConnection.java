@@ -932,7 +932,11 @@ class MqttConnection implements MqttCallbackExtended {
 		// Default action if no application-level listener is setup
 		String messageId = service.messageStore.storeArrived(clientHandle,
 				topic, message);
-	
+		if (service.messageArrivedToActivity(clientHandle, messageId, topic, message)) {
+			return;
+		}
+
+		// No in-process receiver: pass the message by a broadcast
 		Bundle resultBundle = messageToBundle(messageId, topic, message);
 		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
 				MqttServiceConstants.MESSAGE_ARRIVED_ACTION);
@@ -28,7 +28,9 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 
@@ -43,6 +45,7 @@ import com.hmdm.launcher.pro.ProUtils;
 import com.hmdm.launcher.util.PushNotificationMqttWrapper;
 import com.hmdm.launcher.util.Utils;
 
+import org.eclipse.paho.android.service.MessageStore.StoredMessage;
 import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
@@ -53,6 +56,7 @@ import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 import org.eclipse.paho.client.mqttv3.MqttSecurityException;
 
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -276,6 +280,10 @@ public class MqttService extends Service implements MqttTraceHandler {
 	// mapping from client handle strings to actual client connections.
 	private Map<String/* clientHandle */, MqttConnection/* client */> connections = new ConcurrentHashMap<>();
 
+	// In-process receivers of the callbacks, used instead of local broadcasts
+	private ConcurrentHashMap<String/* clientHandle */, MqttServiceCallback> directCallbacks = new ConcurrentHashMap<>();
+	private Handler callbackHandler = new Handler(Looper.getMainLooper());
+
   public MqttService() {
     super();
   }
@@ -295,6 +303,22 @@ public class MqttService extends Service implements MqttTraceHandler {
       Bundle dataBundle) {
     // Don't call traceDebug, as it will try to callbackToActivity leading
     // to recursion.
+    final MqttServiceCallback directCallback = clientHandle != null ? directCallbacks.get(clientHandle) : null;
+    // Traces are also received by the app for debugging, so they're always broadcasted
+    if (directCallback != null && dataBundle != null &&
+        !MqttServiceConstants.TRACE_ACTION.equals(dataBundle.getString(MqttServiceConstants.CALLBACK_ACTION))) {
+      // The callers reuse their bundles (e.g. deliveryComplete), so a copy is posted like an Intent would have
+      final Bundle data = new Bundle(dataBundle);
+      data.putString(MqttServiceConstants.CALLBACK_CLIENT_HANDLE, clientHandle);
+      data.putSerializable(MqttServiceConstants.CALLBACK_STATUS, status);
+      callbackHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          directCallback.onCallback(data);
+        }
+      });
+      return;
+    }
     Intent callbackIntent = new Intent(
         MqttServiceConstants.CALLBACK_TO_ACTIVITY);
     if (clientHandle != null) {
@@ -308,6 +332,58 @@ public class MqttService extends Service implements MqttTraceHandler {
     LocalBroadcastManager.getInstance(this).sendBroadcast(callbackIntent);
   }
 
+  /**
+   * pass an arrived message directly to the in-process receiver, without building a Bundle
+   *
+   * @param clientHandle
+   *            source of the data
+   * @param messageId
+   *            identifier of the message in the message store
+   * @param topic
+   *            the topic on which the message was received
+   * @param message
+   *            the message itself
+   * @return false if there's no receiver, so the message should be passed by callbackToActivity()
+   */
+  boolean messageArrivedToActivity(String clientHandle, final String messageId,
+      final String topic, final MqttMessage message) {
+    final MqttServiceCallback directCallback = clientHandle != null ? directCallbacks.get(clientHandle) : null;
+    if (directCallback == null) {
+      return false;
+    }
+    callbackHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        directCallback.onMessageArrived(messageId, topic, message);
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Register an in-process receiver of the callbacks of a client
+   *
+   * @param clientHandle
+   *            identifies the MqttConnection
+   * @param callback
+   *            the receiver
+   */
+  void registerCallback(String clientHandle, MqttServiceCallback callback) {
+    directCallbacks.put(clientHandle, callback);
+  }
+
+  /**
+   * Unregister the receiver; a receiver registered later by another client with the same handle is kept
+   *
+   * @param clientHandle
+   *            identifies the MqttConnection
+   * @param callback
+   *            the receiver
+   */
+  void unregisterCallback(String clientHandle, MqttServiceCallback callback) {
+    directCallbacks.remove(clientHandle, callback);
+  }
+
   // The major API implementation follows :-
 
   /**
@@ -646,11 +722,43 @@ public class MqttService extends Service implements MqttTraceHandler {
 
     // create somewhere to buffer received messages until
     // we know that they have been passed to the application
-    messageStore = new DatabaseMessageStore(this, this);
+    if (BuildConfig.MQTT_SEGMENT_MESSAGE_STORE) {
+      messageStore = new SegmentMessageStore(this, this);
+      migrateDatabaseMessageStore();
+    } else {
+      messageStore = new DatabaseMessageStore(this, this);
+    }
 	}
 
 
 
+  /**
+   * Move the messages left in the database store (used before the segment store)
+   * to the segment store, so they are not lost when the store type changes
+   */
+  private void migrateDatabaseMessageStore() {
+    if (!getDatabasePath(DatabaseMessageStore.DATABASE_NAME).exists()) {
+      return;
+    }
+    int count = 0;
+    try {
+      DatabaseMessageStore oldStore = new DatabaseMessageStore(this, this);
+      Iterator<StoredMessage> iterator = oldStore.getAllArrivedMessages(null);
+      while (iterator.hasNext()) {
+        StoredMessage stored = iterator.next();
+        messageStore.storeArrived(stored.getClientHandle(), stored.getTopic(), stored.getMessage());
+        count++;
+      }
+      oldStore.close();
+    } catch (Exception e) {
+      // Keep the database, the migration is retried at the next start
+      traceException(TAG, "migrateDatabaseMessageStore", e);
+      return;
+    }
+    deleteDatabase(DatabaseMessageStore.DATABASE_NAME);
+    traceDebug(TAG, "migrateDatabaseMessageStore: " + count + " messages moved to the segment store");
+  }
+
 	/**
 	 * @see android.app.Service#onDestroy()
 	 */
@@ -0,0 +1,33 @@
+package org.eclipse.paho.android.service;
+
+import android.os.Bundle;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * In-process receiver of the MqttService callbacks.
+ * The client and the service run in the same process, so the callback data is passed directly
+ * instead of a local broadcast (which is still used if no receiver is registered).
+ * Arrived messages, the most frequent callback, are passed as typed fields without building a Bundle.
+ */
+interface MqttServiceCallback {
+	/**
+	 * Called in the main thread
+	 *
+	 * @param data
+	 *            the callback data, the same as the extras of the broadcast intent
+	 */
+	void onCallback(Bundle data);
+
+	/**
+	 * Called in the main thread when a message arrived
+	 *
+	 * @param messageId
+	 *            identifier of the message in the message store
+	 * @param topic
+	 *            the topic on which the message was received
+	 * @param message
+	 *            the message itself
+	 */
+	void onMessageArrived(String messageId, String topic, MqttMessage message);
+}
@@ -0,0 +1,540 @@
+package org.eclipse.paho.android.service;
+
+import android.content.Context;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Implementation of the {@link MessageStore} interface, using an append-only segment file.
+ * Each change (store, discard, clear) is a record protected by a checksum; the file is replayed
+ * into an in-memory index when the store is opened, so reading messages doesn't touch the disk.
+ * A torn record at the end of the file (after a crash or power loss) is detected by the checksum
+ * and cut off. When most records in the file are obsolete, live messages are rewritten to a new segment.
+ */
+class SegmentMessageStore implements MessageStore {
+
+	// TAG used for indentify trace data etc.
+	private static final String TAG = "SegmentMessageStore";
+
+	private static final String SEGMENT_NAME = "mqtt_arrived.seg";
+	private static final String COMPACT_NAME = "mqtt_arrived.tmp";
+
+	private static final byte RECORD_STORE = 1;
+	private static final byte RECORD_DISCARD = 2;
+	private static final byte RECORD_CLEAR = 3;
+
+	// Record framing: length (4 bytes), body, CRC32 of the body (4 bytes)
+	private static final int FRAME_OVERHEAD = 8;
+	private static final int MAX_RECORD_SIZE = 4 * 1024 * 1024;
+
+	// If there are more stored messages, the oldest ones are discarded
+	private static final int MAX_MESSAGES = 1000;
+	// The segment is compacted when it exceeds this size and live records take less than a half of it
+	private static final long COMPACT_MIN_SIZE = 256 * 1024;
+
+	// a place to send trace data
+	private MqttTraceHandler traceHandler;
+
+	private final File segmentFile;
+	private final File compactFile;
+	private FileOutputStream out;
+	private long segmentSize;
+	private long liveSize;
+	private long nextId = 1;
+
+	// Message ID -> stored message, in the arrival order
+	private final LinkedHashMap<String, SegmentStoredData> index = new LinkedHashMap<>();
+
+	/**
+	 * Constructor - open the segment file and restore the stored messages
+	 *
+	 * @param service
+	 *            our parent MqttService
+	 * @param context
+	 *            a context to use for android calls
+	 */
+	public SegmentMessageStore(MqttService service, Context context) {
+		this(service, context.getFilesDir());
+	}
+
+	/**
+	 * Constructor - open the segment file in the given directory and restore the stored messages
+	 *
+	 * @param traceHandler
+	 *            a place to send trace data
+	 * @param dir
+	 *            directory of the segment file
+	 */
+	SegmentMessageStore(MqttTraceHandler traceHandler, File dir) {
+		this.traceHandler = traceHandler;
+		this.segmentFile = new File(dir, SEGMENT_NAME);
+		this.compactFile = new File(dir, COMPACT_NAME);
+
+		long start = System.nanoTime();
+		replay();
+		traceHandler.traceDebug(TAG, "SegmentMessageStore<init> complete: " + index.size()
+				+ " messages, " + segmentSize + " bytes, " + (System.nanoTime() - start) / 1000 + " us");
+	}
+
+	/**
+	 * Store an MQTT message
+	 *
+	 * @param clientHandle
+	 *            identifier for the client storing the message
+	 * @param topic
+	 *            The topic on which the message was published
+	 * @param message
+	 *            the arrived MQTT message
+	 * @return an identifier for the message, so that it can be removed when appropriate
+	 */
+	@Override
+	public synchronized String storeArrived(String clientHandle, String topic, MqttMessage message) {
+		long start = System.nanoTime();
+		String id = Long.toString(nextId++);
+		SegmentStoredData data = new SegmentStoredData(id, clientHandle, topic, message.getPayload(),
+				message.getQos(), message.isRetained(), message.isDuplicate());
+		try {
+			// A lost store record means a lost message, so it is synced to the disk
+			data.recordSize = append(encodeStore(data), true);
+		} catch (IOException e) {
+			// The message is still delivered from memory, but it won't survive a restart
+			traceHandler.traceException(TAG, "storeArrived", e);
+		}
+		index.put(id, data);
+		liveSize += data.recordSize;
+
+		while (index.size() > MAX_MESSAGES) {
+			SegmentStoredData eldest = index.values().iterator().next();
+			traceHandler.traceError(TAG, "storeArrived: store is full, discarding message {" + eldest.messageId + "}");
+			discard(eldest);
+		}
+		traceHandler.traceDebug(TAG, "storeArrived: stored message with id of {" + id + "} in "
+				+ (System.nanoTime() - start) / 1000 + " us - messages in store = " + index.size());
+		return id;
+	}
+
+	/**
+	 * Delete an MQTT message.
+	 *
+	 * @param clientHandle
+	 *            identifier for the client which stored the message
+	 * @param id
+	 *            the identifying string returned when the message was stored
+	 *
+	 * @return true if the message was found and deleted
+	 */
+	@Override
+	public synchronized boolean discardArrived(String clientHandle, String id) {
+		long start = System.nanoTime();
+		SegmentStoredData data = index.get(id);
+		if (data == null || !data.clientHandle.equals(clientHandle)) {
+			traceHandler.traceError(TAG, "discardArrived - message {" + id + "} not found");
+			return false;
+		}
+		discard(data);
+		compactIfNeeded();
+		traceHandler.traceDebug(TAG, "discardArrived - message deleted in "
+				+ (System.nanoTime() - start) / 1000 + " us - messages in store = " + index.size());
+		return true;
+	}
+
+	/**
+	 * Get an iterator over all messages stored (optionally for a specific client)
+	 *
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, all messages are retrieved
+	 * @return iterator of all the arrived MQTT messages
+	 */
+	@Override
+	public synchronized Iterator<StoredMessage> getAllArrivedMessages(String clientHandle) {
+		// A snapshot, so the caller may discard messages while iterating
+		List<StoredMessage> result = new ArrayList<>();
+		for (SegmentStoredData data : index.values()) {
+			if (clientHandle == null || clientHandle.equals(data.clientHandle)) {
+				result.add(data);
+			}
+		}
+		final Iterator<StoredMessage> iterator = result.iterator();
+		return new Iterator<StoredMessage>() {
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+
+			@Override
+			public StoredMessage next() {
+				return iterator.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Delete all messages (optionally for a specific client)
+	 *
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, all messages are deleted
+	 */
+	@Override
+	public synchronized void clearArrivedMessages(String clientHandle) {
+		int count = 0;
+		Iterator<SegmentStoredData> iterator = index.values().iterator();
+		while (iterator.hasNext()) {
+			SegmentStoredData data = iterator.next();
+			if (clientHandle == null || clientHandle.equals(data.clientHandle)) {
+				liveSize -= data.recordSize;
+				iterator.remove();
+				count++;
+			}
+		}
+		if (count > 0) {
+			try {
+				append(encodeClear(clientHandle), false);
+			} catch (IOException e) {
+				traceHandler.traceException(TAG, "clearArrivedMessages", e);
+			}
+			compactIfNeeded();
+		}
+		traceHandler.traceDebug(TAG, "clearArrivedMessages: messages deleted = " + count);
+	}
+
+	@Override
+	public synchronized void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			out = null;
+		}
+	}
+
+	private void discard(SegmentStoredData data) {
+		index.remove(data.messageId);
+		liveSize -= data.recordSize;
+		try {
+			// Not synced: a lost discard record only causes a repeated delivery
+			append(encodeDiscard(data.messageId), false);
+		} catch (IOException e) {
+			traceHandler.traceException(TAG, "discard", e);
+		}
+	}
+
+	/**
+	 * Append a record to the segment
+	 *
+	 * @return the size of the record in the segment
+	 */
+	private int append(byte[] body, boolean sync) throws IOException {
+		if (out == null) {
+			out = new FileOutputStream(segmentFile, true);
+		}
+		byte[] frame = frame(body);
+		try {
+			// Single write call, so the record is either written entirely or cut off at the end
+			out.write(frame);
+			if (sync) {
+				out.getFD().sync();
+			}
+		} catch (IOException e) {
+			// Remove a partially written record (e.g. if the disk is full), otherwise
+			// the records appended after it would be lost on replay
+			close();
+			truncate(segmentSize);
+			throw e;
+		}
+		segmentSize += frame.length;
+		return frame.length;
+	}
+
+	private void compactIfNeeded() {
+		if (segmentSize < COMPACT_MIN_SIZE || liveSize * 2 > segmentSize) {
+			return;
+		}
+		long start = System.nanoTime();
+		long oldSize = segmentSize;
+		close();
+		FileOutputStream compactOut = null;
+		try {
+			compactOut = new FileOutputStream(compactFile, false);
+			int[] recordSizes = new int[index.size()];
+			int n = 0;
+			long size = 0;
+			for (SegmentStoredData data : index.values()) {
+				byte[] frame = frame(encodeStore(data));
+				compactOut.write(frame);
+				recordSizes[n++] = frame.length;
+				size += frame.length;
+			}
+			compactOut.getFD().sync();
+			compactOut.close();
+			compactOut = null;
+			if (!compactFile.renameTo(segmentFile)) {
+				throw new IOException("Failed to rename " + compactFile);
+			}
+			n = 0;
+			for (SegmentStoredData data : index.values()) {
+				data.recordSize = recordSizes[n++];
+			}
+			segmentSize = size;
+			liveSize = size;
+		} catch (IOException e) {
+			// The old segment is still valid
+			traceHandler.traceException(TAG, "compact", e);
+			if (compactOut != null) {
+				try {
+					compactOut.close();
+				} catch (IOException e1) {
+				}
+			}
+			compactFile.delete();
+			return;
+		}
+		traceHandler.traceDebug(TAG, "compact: " + oldSize + " -> " + segmentSize + " bytes in "
+				+ (System.nanoTime() - start) / 1000 + " us");
+	}
+
+	/**
+	 * Restore the index from the segment file; the records after the first damaged one are cut off
+	 */
+	private void replay() {
+		compactFile.delete();
+		if (!segmentFile.exists()) {
+			return;
+		}
+		long validSize = 0;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)));
+			CRC32 crc = new CRC32();
+			while (true) {
+				int length = in.readInt();
+				if (length <= 0 || length > MAX_RECORD_SIZE) {
+					traceHandler.traceError(TAG, "replay: bad record length " + length + " at " + validSize);
+					break;
+				}
+				byte[] body = new byte[length];
+				in.readFully(body);
+				int checksum = in.readInt();
+				crc.reset();
+				crc.update(body);
+				if ((int) crc.getValue() != checksum) {
+					traceHandler.traceError(TAG, "replay: checksum mismatch at " + validSize);
+					break;
+				}
+				applyRecord(body, length + FRAME_OVERHEAD);
+				validSize += length + FRAME_OVERHEAD;
+			}
+		} catch (EOFException e) {
+			// End of the segment, or a record cut off by a crash
+		} catch (IOException e) {
+			traceHandler.traceException(TAG, "replay", e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		segmentSize = validSize;
+		if (validSize < segmentFile.length()) {
+			traceHandler.traceError(TAG, "replay: truncating damaged segment from "
+					+ segmentFile.length() + " to " + validSize + " bytes");
+			truncate(validSize);
+		}
+	}
+
+	private void truncate(long size) {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(segmentFile, "rw");
+			file.setLength(size);
+		} catch (IOException e) {
+			traceHandler.traceException(TAG, "truncate", e);
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void applyRecord(byte[] body, int recordSize) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		byte type = in.readByte();
+		switch (type) {
+			case RECORD_STORE:
+				String id = in.readUTF();
+				String clientHandle = in.readUTF();
+				String topic = in.readUTF();
+				int qos = in.readByte();
+				boolean retained = in.readBoolean();
+				boolean duplicate = in.readBoolean();
+				byte[] payload = new byte[in.readInt()];
+				in.readFully(payload);
+				SegmentStoredData data = new SegmentStoredData(id, clientHandle, topic, payload, qos, retained, duplicate);
+				data.recordSize = recordSize;
+				index.put(id, data);
+				liveSize += recordSize;
+				try {
+					nextId = Math.max(nextId, Long.parseLong(id) + 1);
+				} catch (NumberFormatException e) {
+				}
+				break;
+			case RECORD_DISCARD:
+				SegmentStoredData discarded = index.remove(in.readUTF());
+				if (discarded != null) {
+					liveSize -= discarded.recordSize;
+				}
+				break;
+			case RECORD_CLEAR:
+				String handle = in.readBoolean() ? in.readUTF() : null;
+				Iterator<SegmentStoredData> iterator = index.values().iterator();
+				while (iterator.hasNext()) {
+					SegmentStoredData item = iterator.next();
+					if (handle == null || handle.equals(item.clientHandle)) {
+						liveSize -= item.recordSize;
+						iterator.remove();
+					}
+				}
+				break;
+			default:
+				throw new IOException("Unknown record type " + type);
+		}
+	}
+
+	private static byte[] encodeStore(SegmentStoredData data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + data.payload.length);
+		DataOutputStream body = new DataOutputStream(bytes);
+		body.writeByte(RECORD_STORE);
+		body.writeUTF(data.messageId);
+		body.writeUTF(data.clientHandle);
+		body.writeUTF(data.topic);
+		body.writeByte(data.qos);
+		body.writeBoolean(data.retained);
+		body.writeBoolean(data.duplicate);
+		body.writeInt(data.payload.length);
+		body.write(data.payload);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encodeDiscard(String id) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream body = new DataOutputStream(bytes);
+		body.writeByte(RECORD_DISCARD);
+		body.writeUTF(id);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encodeClear(String clientHandle) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream body = new DataOutputStream(bytes);
+		body.writeByte(RECORD_CLEAR);
+		body.writeBoolean(clientHandle != null);
+		if (clientHandle != null) {
+			body.writeUTF(clientHandle);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] frame(byte[] body) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + FRAME_OVERHEAD);
+		DataOutputStream frame = new DataOutputStream(bytes);
+		frame.writeInt(body.length);
+		frame.write(body);
+		frame.writeInt((int) crc.getValue());
+		return bytes.toByteArray();
+	}
+
+	private static class SegmentStoredData implements StoredMessage {
+		private final String messageId;
+		private final String clientHandle;
+		private final String topic;
+		private final byte[] payload;
+		private final int qos;
+		private final boolean retained;
+		private final boolean duplicate;
+		// Size of the store record in the segment
+		private int recordSize;
+
+		SegmentStoredData(String messageId, String clientHandle, String topic, byte[] payload,
+						  int qos, boolean retained, boolean duplicate) {
+			this.messageId = messageId;
+			this.clientHandle = clientHandle;
+			this.topic = topic;
+			this.payload = payload;
+			this.qos = qos;
+			this.retained = retained;
+			this.duplicate = duplicate;
+		}
+
+		@Override
+		public String getMessageId() {
+			return messageId;
+		}
+
+		@Override
+		public String getClientHandle() {
+			return clientHandle;
+		}
+
+		@Override
+		public String getTopic() {
+			return topic;
+		}
+
+		@Override
+		public MqttMessage getMessage() {
+			MqttMessageHack message = new MqttMessageHack(payload);
+			message.setQos(qos);
+			message.setRetained(retained);
+			message.setDuplicate(duplicate);
+			return message;
+		}
+	}
+
+	/**
+	 * A way to get at the "setDuplicate" method of MqttMessage
+	 */
+	private static class MqttMessageHack extends MqttMessage {
+
+		public MqttMessageHack(byte[] payload) {
+			super(payload);
+		}
+
+		@Override
+		protected void setDuplicate(boolean dup) {
+			super.setDuplicate(dup);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package com.hmdm.launcher.helper;
+
+import com.hmdm.launcher.json.Application;
+import com.hmdm.launcher.json.ApplicationSetting;
+import com.hmdm.launcher.json.RemoteFile;
+import com.hmdm.launcher.json.ServerConfig;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigDiffTest {
+    private static final int ALL = ConfigDiff.FILES | ConfigDiff.SETTINGS | ConfigDiff.RESTRICTIONS |
+            ConfigDiff.PUSH | ConfigDiff.OTHER;
+
+    // Builds a new instance on each call, so the compared configs never share objects
+    private static ServerConfig config() {
+        ServerConfig config = new ServerConfig();
+        config.setTitle("Launcher");
+        config.setBackgroundColor("#ffffff");
+        config.setPushOptions("mqttWorker");
+        config.setKeepaliveTime(300);
+        config.setRestrictions("no_install_apps");
+
+        Application app = new Application();
+        app.setPkg("com.example.app");
+        app.setName("Example");
+        app.setVersion("1.0");
+        app.setUrl("https://example.com/app.apk");
+        List<Application> apps = new ArrayList<>();
+        apps.add(app);
+        config.setApplications(apps);
+
+        config.setFiles(new ArrayList<>(Arrays.asList(file("/sdcard/a.txt"))));
+
+        ApplicationSetting setting = new ApplicationSetting();
+        setting.setPackageId("com.example.app");
+        setting.setName("server");
+        setting.setValue("example.com");
+        List<ApplicationSetting> settings = new ArrayList<>();
+        settings.add(setting);
+        config.setApplicationSettings(settings);
+        return config;
+    }
+
+    private static RemoteFile file(String path) {
+        RemoteFile file = new RemoteFile();
+        file.setPath(path);
+        file.setUrl("https://example.com/files" + path);
+        return file;
+    }
+
+    // Checks that exactly the expected sections are changed
+    private static void assertSections(int expected, ConfigDiff diff) {
+        for (int section = ConfigDiff.FILES; section <= ConfigDiff.OTHER; section <<= 1) {
+            assertEquals("section " + section, (expected & section) != 0, diff.isChanged(section));
+        }
+    }
+
+    @Test
+    public void allAndNone() {
+        assertSections(ALL, ConfigDiff.all());
+        assertFalse(ConfigDiff.all().isEmpty());
+        assertEquals("all", ConfigDiff.all().toString());
+
+        assertSections(0, ConfigDiff.none());
+        assertTrue(ConfigDiff.none().isEmpty());
+        assertEquals("none", ConfigDiff.none().toString());
+    }
+
+    @Test
+    public void nothingToCompareWith() {
+        assertSections(ALL, ConfigDiff.compare(null, config()));
+        assertSections(ALL, ConfigDiff.compare(config(), null));
+    }
+
+    @Test
+    public void unchangedConfig() {
+        ConfigDiff diff = ConfigDiff.compare(config(), config());
+        assertTrue(diff.isEmpty());
+        assertEquals("none", diff.toString());
+    }
+
+    @Test
+    public void filesChanged() {
+        ServerConfig newConfig = config();
+        newConfig.getFiles().add(file("/sdcard/b.txt"));
+        ConfigDiff diff = ConfigDiff.compare(config(), newConfig);
+        assertSections(ConfigDiff.FILES, diff);
+        assertEquals("files", diff.toString());
+    }
+
+    @Test
+    public void downloadWindowBelongsToFiles() {
+        ServerConfig newConfig = config();
+        newConfig.setAppUpdateFrom("22:00");
+        assertSections(ConfigDiff.FILES, ConfigDiff.compare(config(), newConfig));
+    }
+
+    @Test
+    public void pushChanged() {
+        ServerConfig newConfig = config();
+        newConfig.setPushOptions("mqttAlarm");
+        assertSections(ConfigDiff.PUSH, ConfigDiff.compare(config(), newConfig));
+
+        newConfig = config();
+        newConfig.setKeepaliveTime(600);
+        assertSections(ConfigDiff.PUSH, ConfigDiff.compare(config(), newConfig));
+    }
+
+    @Test
+    public void restrictionsChanged() {
+        ServerConfig newConfig = config();
+        newConfig.setRestrictions("no_install_apps,no_uninstall_apps");
+        assertSections(ConfigDiff.RESTRICTIONS, ConfigDiff.compare(config(), newConfig));
+
+        // A removed attribute is a change too
+        newConfig.setRestrictions(null);
+        assertSections(ConfigDiff.RESTRICTIONS, ConfigDiff.compare(config(), newConfig));
+    }
+
+    @Test
+    public void settingsChanged() {
+        ServerConfig newConfig = config();
+        newConfig.getApplicationSettings().get(0).setValue("example.org");
+        ConfigDiff diff = ConfigDiff.compare(config(), newConfig);
+        assertSections(ConfigDiff.SETTINGS, diff);
+        assertEquals("settings", diff.toString());
+    }
+
+    @Test
+    public void otherAttributesChanged() {
+        ServerConfig newConfig = config();
+        newConfig.getApplications().get(0).setVersion("1.1");
+        assertSections(ConfigDiff.OTHER, ConfigDiff.compare(config(), newConfig));
+
+        newConfig = config();
+        newConfig.setBackgroundColor("#000000");
+        newConfig.setTitle("Kiosk");
+        ConfigDiff diff = ConfigDiff.compare(config(), newConfig);
+        assertSections(ConfigDiff.OTHER, diff);
+        assertFalse(diff.isEmpty());
+        assertEquals("other", diff.toString());
+    }
+
+    @Test
+    public void severalSectionsChanged() {
+        ServerConfig newConfig = config();
+        newConfig.setFiles(new ArrayList<RemoteFile>());
+        newConfig.setKeepaliveTime(600);
+        newConfig.setTitle("Kiosk");
+        ConfigDiff diff = ConfigDiff.compare(config(), newConfig);
+        assertSections(ConfigDiff.FILES | ConfigDiff.PUSH | ConfigDiff.OTHER, diff);
+        assertEquals("files,push,other", diff.toString());
+    }
+}
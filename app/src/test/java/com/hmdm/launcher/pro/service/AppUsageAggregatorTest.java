@@ -0,0 +1,191 @@
+package com.hmdm.launcher.pro.service;
+
+import com.hmdm.launcher.db.AppUsageTable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AppUsageAggregatorTest {
+    private static final long HOUR_MS = 3600000L;
+    private static final long MINUTE_MS = 60000L;
+    private static final String APP = "com.example.app";
+    private static final String OTHER_APP = "com.example.other";
+
+    // Beginning of the current hour: the aggregator flushes by the wall clock
+    private long hour;
+    private final List<List<AppUsageTable.AppUsage>> stored = new ArrayList<>();
+    private AppUsageAggregator aggregator;
+
+    @Before
+    public void setUp() {
+        long now = System.currentTimeMillis();
+        hour = now - now % HOUR_MS;
+        aggregator = new AppUsageAggregator(new AppUsageAggregator.Store() {
+            @Override
+            public void add(List<AppUsageTable.AppUsage> items) {
+                stored.add(items);
+            }
+        });
+    }
+
+    private List<AppUsageTable.AppUsage> flushed() {
+        aggregator.flush();
+        assertEquals(1, stored.size());
+        return stored.remove(0);
+    }
+
+    private static AppUsageTable.AppUsage find(List<AppUsageTable.AppUsage> items, String pkg, long hour) {
+        for (AppUsageTable.AppUsage item : items) {
+            if (item.getPkg().equals(pkg) && item.getHour() == hour) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    private static long totalForeground(List<AppUsageTable.AppUsage> items) {
+        long foreground = 0;
+        for (AppUsageTable.AppUsage item : items) {
+            foreground += item.getForeground();
+        }
+        return foreground;
+    }
+
+    private static int totalLaunches(List<AppUsageTable.AppUsage> items) {
+        int launches = 0;
+        for (AppUsageTable.AppUsage item : items) {
+            launches += item.getLaunches();
+        }
+        return launches;
+    }
+
+    @Test
+    public void countsLaunches() {
+        aggregator.onForeground(APP, hour + MINUTE_MS);
+        aggregator.onForeground(OTHER_APP, hour + 2 * MINUTE_MS);
+        aggregator.onForeground(APP, hour + 3 * MINUTE_MS);
+        aggregator.onBackground(APP, hour + 4 * MINUTE_MS);
+
+        List<AppUsageTable.AppUsage> items = flushed();
+        assertEquals(2, items.size());
+        AppUsageTable.AppUsage app = find(items, APP, hour);
+        assertEquals(2, app.getLaunches());
+        assertEquals(2 * MINUTE_MS, app.getForeground());
+        AppUsageTable.AppUsage other = find(items, OTHER_APP, hour);
+        assertEquals(1, other.getLaunches());
+        assertEquals(MINUTE_MS, other.getForeground());
+    }
+
+    @Test
+    public void sameAppIsNotLaunchedAgain() {
+        // Switching between activities of the same app: background and foreground events of one package
+        aggregator.onForeground(APP, hour + MINUTE_MS);
+        aggregator.onBackground(APP, hour + 2 * MINUTE_MS);
+        aggregator.onForeground(APP, hour + 2 * MINUTE_MS);
+        aggregator.onForeground(APP, hour + 3 * MINUTE_MS);
+        aggregator.onBackground(APP, hour + 4 * MINUTE_MS);
+
+        AppUsageTable.AppUsage app = find(flushed(), APP, hour);
+        assertEquals(1, app.getLaunches());
+        assertEquals(3 * MINUTE_MS, app.getForeground());
+    }
+
+    @Test
+    public void splitsForegroundTimeByHours() {
+        long start = hour - 2 * HOUR_MS - 10 * MINUTE_MS;
+        aggregator.onForeground(APP, start);
+        aggregator.onBackground(APP, hour - 5 * MINUTE_MS);
+
+        List<AppUsageTable.AppUsage> items = flushed();
+        assertEquals(3, items.size());
+        AppUsageTable.AppUsage first = find(items, APP, hour - 3 * HOUR_MS);
+        assertEquals(10 * MINUTE_MS, first.getForeground());
+        assertEquals(1, first.getLaunches());
+        AppUsageTable.AppUsage second = find(items, APP, hour - 2 * HOUR_MS);
+        assertEquals(HOUR_MS, second.getForeground());
+        assertEquals(0, second.getLaunches());
+        AppUsageTable.AppUsage third = find(items, APP, hour - HOUR_MS);
+        assertEquals(55 * MINUTE_MS, third.getForeground());
+        assertEquals(0, third.getLaunches());
+    }
+
+    @Test
+    public void backgroundOfOtherAppIsIgnored() {
+        aggregator.onForeground(APP, hour + MINUTE_MS);
+        // A late event of a previous app doesn't stop the foreground one
+        aggregator.onBackground(OTHER_APP, hour + 2 * MINUTE_MS);
+        aggregator.onBackground(APP, hour + 5 * MINUTE_MS);
+
+        List<AppUsageTable.AppUsage> items = flushed();
+        assertEquals(1, items.size());
+        assertEquals(4 * MINUTE_MS, find(items, APP, hour).getForeground());
+    }
+
+    @Test
+    public void screenOffFlushesAndResetsLaunches() {
+        aggregator.onForeground(APP, hour + MINUTE_MS);
+        aggregator.onScreenOff(hour + 3 * MINUTE_MS);
+
+        assertEquals(1, stored.size());
+        AppUsageTable.AppUsage app = find(stored.remove(0), APP, hour);
+        assertEquals(1, app.getLaunches());
+        assertEquals(2 * MINUTE_MS, app.getForeground());
+
+        // The screen is off: no time is added until the next foreground event
+        aggregator.onForeground(APP, hour + 10 * MINUTE_MS);
+        aggregator.onBackground(APP, hour + 11 * MINUTE_MS);
+        app = find(flushed(), APP, hour);
+        assertEquals(1, app.getLaunches());
+        assertEquals(MINUTE_MS, app.getForeground());
+    }
+
+    @Test
+    public void skipsOutdatedEvents() {
+        aggregator.onForeground(APP, hour + 5 * MINUTE_MS);
+        aggregator.onForeground(OTHER_APP, hour + 2 * MINUTE_MS);
+        aggregator.onBackground(APP, hour + MINUTE_MS);
+        aggregator.onBackground(APP, hour + 6 * MINUTE_MS);
+
+        List<AppUsageTable.AppUsage> items = flushed();
+        assertEquals(1, items.size());
+        AppUsageTable.AppUsage app = find(items, APP, hour);
+        assertEquals(1, app.getLaunches());
+        assertEquals(MINUTE_MS, app.getForeground());
+        assertNull(find(items, OTHER_APP, hour));
+    }
+
+    @Test
+    public void flushesPeriodically() {
+        long now = System.currentTimeMillis();
+        aggregator.onForeground(APP, now - MINUTE_MS);
+        aggregator.flushIfNeeded(now);
+        assertTrue(stored.isEmpty());
+
+        // The current app usage is accounted up to the flush time (the interval may cross an hour boundary)
+        aggregator.flushIfNeeded(now + 5 * MINUTE_MS);
+        assertEquals(1, stored.size());
+        List<AppUsageTable.AppUsage> items = stored.remove(0);
+        assertEquals(6 * MINUTE_MS, totalForeground(items));
+        assertEquals(1, totalLaunches(items));
+
+        // The app stays in foreground, so it isn't launched again
+        aggregator.onBackground(APP, now + 6 * MINUTE_MS);
+        items = flushed();
+        assertEquals(MINUTE_MS, totalForeground(items));
+        assertEquals(0, totalLaunches(items));
+    }
+
+    @Test
+    public void emptyFlushStoresNothing() {
+        aggregator.flush();
+        aggregator.onScreenOff(hour + MINUTE_MS);
+        assertTrue(stored.isEmpty());
+    }
+}
@@ -0,0 +1,159 @@
+package com.hmdm.launcher.util;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.json.RemoteLogConfig;
+import com.hmdm.launcher.json.RemoteLogItem;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LogRuleMatcherTest {
+    private static final String PACKAGE = "com.example.app";
+
+    private static RemoteLogConfig rule(String packageId, int level, String filter) {
+        RemoteLogConfig rule = new RemoteLogConfig();
+        rule.setPackageId(packageId);
+        rule.setLogLevel(level);
+        rule.setFilter(filter);
+        return rule;
+    }
+
+    private static RemoteLogItem item(String packageId, int level, String message) {
+        RemoteLogItem item = new RemoteLogItem();
+        item.setPackageId(packageId);
+        item.setLogLevel(level);
+        item.setMessage(message);
+        return item;
+    }
+
+    private static LogRuleMatcher matcher(RemoteLogConfig... rules) {
+        return new LogRuleMatcher(new ArrayList<>(Arrays.asList(rules)));
+    }
+
+    @Test
+    public void matchesPackageAndLevel() {
+        LogRuleMatcher matcher = matcher(rule(PACKAGE, Const.LOG_INFO, null));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_ERROR, "error")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_INFO, "info")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "debug")));
+        assertFalse(matcher.match(item("com.example.other", Const.LOG_ERROR, "error")));
+        assertFalse(matcher.match(item(null, Const.LOG_ERROR, "error")));
+    }
+
+    @Test
+    public void emptyFilterMatchesAnyMessage() {
+        LogRuleMatcher matcher = matcher(rule(PACKAGE, Const.LOG_WARN, ""));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_WARN, null)));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_WARN, "anything")));
+    }
+
+    @Test
+    public void noRules() {
+        assertFalse(new LogRuleMatcher(null).match(item(PACKAGE, Const.LOG_ERROR, "error")));
+        assertFalse(matcher().match(item(PACKAGE, Const.LOG_ERROR, "error")));
+    }
+
+    @Test
+    public void filterIsContainedInMessage() {
+        LogRuleMatcher matcher = matcher(rule(PACKAGE, Const.LOG_VERBOSE, "timeout"));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "connection timeout")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "timeout while reading")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "time out")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_DEBUG, null)));
+    }
+
+    @Test
+    public void caseFoldingIsAsciiOnly() {
+        // Same as SQLite LIKE: only ASCII letters are case-insensitive
+        LogRuleMatcher matcher = matcher(rule(PACKAGE, Const.LOG_VERBOSE, "Error"),
+                rule(PACKAGE, Const.LOG_VERBOSE, "caf\u00e9"));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_INFO, "ERROR: failed")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_INFO, "an error")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_INFO, "Caf\u00e9 closed")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_INFO, "CAF\u00c9 closed")));
+    }
+
+    @Test
+    public void percentWildcard() {
+        LogRuleMatcher matcher = matcher(rule(PACKAGE, Const.LOG_VERBOSE, "install%failed"));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_INFO, "Install of app.apk failed")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_INFO, "installfailed")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_INFO, "install\nfailed")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_INFO, "failed to install")));
+    }
+
+    @Test
+    public void underscoreWildcard() {
+        LogRuleMatcher matcher = matcher(rule(PACKAGE, Const.LOG_VERBOSE, "code _0"));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_INFO, "error code 40")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_INFO, "error code 50 returned")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_INFO, "error code 0")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_INFO, "error code 41")));
+    }
+
+    @Test
+    public void regexCharactersAreLiteral() {
+        LogRuleMatcher matcher = matcher(rule(PACKAGE, Const.LOG_VERBOSE, "a.b%(c)"));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_INFO, "a.b then (c)")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_INFO, "axb then (c)")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_INFO, "a.b then c")));
+    }
+
+    @Test
+    public void wildcardRuleLevel() {
+        LogRuleMatcher matcher = matcher(rule(PACKAGE, Const.LOG_WARN, "disk%full"));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_ERROR, "disk is full")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_INFO, "disk is full")));
+    }
+
+    @Test
+    public void overlappingFiltersKeepTheirLevels() {
+        // "he" is a suffix of "she" and a prefix of "hers": the automaton must find them through the failure links
+        LogRuleMatcher matcher = matcher(
+                rule(PACKAGE, Const.LOG_ERROR, "she"),
+                rule(PACKAGE, Const.LOG_WARN, "he"),
+                rule(PACKAGE, Const.LOG_VERBOSE, "hers"));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_ERROR, "ushe")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_WARN, "ushe")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_INFO, "ushe")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "shers")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "sher")));
+    }
+
+    @Test
+    public void sameFilterUsesTheHighestLevel() {
+        LogRuleMatcher matcher = matcher(
+                rule(PACKAGE, Const.LOG_ERROR, "sync"),
+                rule(PACKAGE, Const.LOG_INFO, "sync"));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_INFO, "sync started")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "sync started")));
+    }
+
+    @Test
+    public void unfilteredRuleOverridesFilteredOne() {
+        LogRuleMatcher matcher = matcher(
+                rule(PACKAGE, Const.LOG_WARN, null),
+                rule(PACKAGE, Const.LOG_VERBOSE, "trace"));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_WARN, "anything")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "anything")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_VERBOSE, "stack trace")));
+    }
+
+    @Test
+    public void rulesOfOtherPackagesDontApply() {
+        LogRuleMatcher matcher = matcher(
+                rule(PACKAGE, Const.LOG_VERBOSE, "network"),
+                rule("com.example.other", Const.LOG_VERBOSE, "storage"),
+                rule(null, Const.LOG_VERBOSE, null));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "network down")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "storage full")));
+        List<RemoteLogConfig> none = new ArrayList<>();
+        assertFalse(new LogRuleMatcher(none).match(item(PACKAGE, Const.LOG_ERROR, "network down")));
+    }
+}
@@ -0,0 +1,166 @@
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.android.service.MessageStore.StoredMessage;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the segment message store on the host JVM with the real file system (each stored message is synced).
+ * Tracing is disabled: MqttService sends each trace line as a broadcast, which would dominate the numbers.
+ * The SQLite store can only run on a device, so it isn't measured here.
+ */
+public class SegmentMessageStoreBenchmarkTest {
+    private static final String CLIENT = "client";
+    private static final String TOPIC = "device";
+    private static final int WARMUP_MESSAGES = 200;
+    private static final int MESSAGES = 1000;
+    private static final int PAYLOAD_SIZE = 256;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class NoTrace implements MqttTraceHandler {
+        @Override
+        public void traceDebug(String tag, String message) {
+        }
+
+        @Override
+        public void traceError(String tag, String message) {
+        }
+
+        @Override
+        public void traceException(String tag, String message, Exception e) {
+        }
+    }
+
+    @Test
+    public void storeAndDiscard() throws Exception {
+        File dir = folder.newFolder();
+        SegmentMessageStore store = new SegmentMessageStore(new NoTrace(), dir);
+        run(store, WARMUP_MESSAGES);
+
+        long start = System.nanoTime();
+        long[] times = run(store, MESSAGES);
+        long total = System.nanoTime() - start;
+        store.close();
+
+        System.out.println("SegmentMessageStore: " + MESSAGES + " messages of " + PAYLOAD_SIZE + " bytes in " +
+                total / 1000000 + " ms; store " + percentiles(times, 0) + "; discard " + percentiles(times, 1));
+
+        // Everything has been discarded, so nothing is restored
+        store = new SegmentMessageStore(new NoTrace(), dir);
+        assertEquals(0, count(store.getAllArrivedMessages(null)));
+        store.close();
+    }
+
+    @Test
+    public void restoresMessagesAfterReopen() throws Exception {
+        File dir = folder.newFolder();
+        SegmentMessageStore store = new SegmentMessageStore(new NoTrace(), dir);
+        List<String> ids = new ArrayList<>();
+        for (int n = 0; n < 10; n++) {
+            ids.add(store.storeArrived(CLIENT, TOPIC, message(n)));
+        }
+        for (int n = 0; n < 10; n += 2) {
+            assertTrue(store.discardArrived(CLIENT, ids.get(n)));
+        }
+        store.close();
+
+        store = new SegmentMessageStore(new NoTrace(), dir);
+        Iterator<StoredMessage> iterator = store.getAllArrivedMessages(CLIENT);
+        for (int n = 1; n < 10; n += 2) {
+            StoredMessage stored = iterator.next();
+            assertEquals(ids.get(n), stored.getMessageId());
+            assertArrayEquals(message(n).getPayload(), stored.getMessage().getPayload());
+        }
+        assertTrue(!iterator.hasNext());
+
+        // New IDs don't repeat the restored ones
+        String id = store.storeArrived(CLIENT, TOPIC, message(10));
+        assertTrue(!ids.contains(id));
+        store.close();
+    }
+
+    @Test
+    public void cutsOffTornRecord() throws Exception {
+        File dir = folder.newFolder();
+        SegmentMessageStore store = new SegmentMessageStore(new NoTrace(), dir);
+        for (int n = 0; n < 3; n++) {
+            store.storeArrived(CLIENT, TOPIC, message(n));
+        }
+        store.close();
+
+        // A record cut off by a power loss: the length is written, the body is not
+        File segment = new File(dir, "mqtt_arrived.seg");
+        FileOutputStream out = new FileOutputStream(segment, true);
+        out.write(new byte[] {0, 0, 1, 0, 1, 2, 3});
+        out.close();
+
+        store = new SegmentMessageStore(new NoTrace(), dir);
+        assertEquals(3, count(store.getAllArrivedMessages(null)));
+        store.storeArrived(CLIENT, TOPIC, message(3));
+        store.close();
+
+        // The record stored after the damaged one is restored too
+        store = new SegmentMessageStore(new NoTrace(), dir);
+        assertEquals(4, count(store.getAllArrivedMessages(null)));
+        store.close();
+    }
+
+    // Stores and discards the messages; returns the times of each operation, ns
+    private static long[] run(SegmentMessageStore store, int messages) {
+        long[] times = new long[messages * 2];
+        List<String> ids = new ArrayList<>();
+        for (int n = 0; n < messages; n++) {
+            long start = System.nanoTime();
+            ids.add(store.storeArrived(CLIENT, TOPIC, message(n)));
+            times[n * 2] = System.nanoTime() - start;
+        }
+        for (int n = 0; n < messages; n++) {
+            long start = System.nanoTime();
+            store.discardArrived(CLIENT, ids.get(n));
+            times[n * 2 + 1] = System.nanoTime() - start;
+        }
+        return times;
+    }
+
+    private static MqttMessage message(int n) {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        Arrays.fill(payload, (byte) n);
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(2);
+        return message;
+    }
+
+    private static int count(Iterator<StoredMessage> iterator) {
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+
+    // Median and 99th percentile of every second item starting from offset, us
+    private static String percentiles(long[] times, int offset) {
+        long[] values = new long[times.length / 2];
+        for (int n = 0; n < values.length; n++) {
+            values[n] = times[n * 2 + offset];
+        }
+        Arrays.sort(values);
+        return "p50 " + values[values.length / 2] / 1000 + " us, p99 " + values[values.length * 99 / 100] / 1000 + " us";
+    }
+}